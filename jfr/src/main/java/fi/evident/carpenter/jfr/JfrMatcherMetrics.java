@@ -0,0 +1,127 @@
+package fi.evident.carpenter.jfr;
+
+import fi.evident.carpenter.MatcherMetrics;
+import fi.evident.carpenter.RewriteResult.StopReason;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link MatcherMetrics} that emits Java Flight Recorder events for instrumented matchers
+ * and rule sets.
+ *
+ * <pre>
+ * Instrumentation.install(new JfrMatcherMetrics());
+ * </pre>
+ *
+ * The events are named {@code fi.evident.carpenter.Match}, {@code fi.evident.carpenter.Rewrite}
+ * and {@code fi.evident.carpenter.Rule} and are configured like any other events, e.g. with
+ * {@code -XX:StartFlightRecording:settings=...} or {@link jdk.jfr.Recording#enable(String)}.
+ * Match events are disabled by default. The events span the measured operations, so the
+ * {@code threshold} setting can be used to record only the slow ones. While an event is
+ * disabled, the operations it would record are not measured at all.
+ */
+public final class JfrMatcherMetrics implements MatcherMetrics {
+
+    static final String EVENT_PREFIX = "fi.evident.carpenter.";
+
+    static {
+        // Register the events up front so that recordings can refer to them before they are first emitted
+        FlightRecorder.register(MatchEvent.class);
+        FlightRecorder.register(RewriteEvent.class);
+        FlightRecorder.register(RuleEvent.class);
+    }
+
+    @NotNull
+    private static final EventType matchType = EventType.getEventType(MatchEvent.class);
+
+    @NotNull
+    private static final EventType rewriteType = EventType.getEventType(RewriteEvent.class);
+
+    @NotNull
+    private static final EventType ruleType = EventType.getEventType(RuleEvent.class);
+
+    @Override
+    public boolean measuresMatches() {
+        return matchType.isEnabled();
+    }
+
+    @NotNull
+    @Override
+    public Object matchStarting(@NotNull String name) {
+        MatchEvent event = new MatchEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void matchAttempted(@NotNull Object started, @NotNull String name, boolean success, int partialMatches, int conflicts, long nanos) {
+        MatchEvent event = (MatchEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.matcher = name;
+            event.success = success;
+            event.partialMatches = partialMatches;
+            event.conflicts = conflicts;
+            event.commit();
+        }
+    }
+
+    @Override
+    public boolean measuresRewrites() {
+        return rewriteType.isEnabled();
+    }
+
+    @NotNull
+    @Override
+    public Object rewriteStarting(@NotNull String name) {
+        RewriteEvent event = new RewriteEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void rewritten(@NotNull Object started, @NotNull String name, int steps, long nanos) {
+        commitRewrite((RewriteEvent) started, name, false, steps, steps == 0 ? "NO_MATCH" : "REWRITTEN");
+    }
+
+    @Override
+    public void rewrittenAll(@NotNull Object started, @NotNull String name, int steps, long nanos, @NotNull StopReason stopReason) {
+        commitRewrite((RewriteEvent) started, name, true, steps, stopReason.name());
+    }
+
+    @Override
+    public boolean measuresRules() {
+        return ruleType.isEnabled();
+    }
+
+    @NotNull
+    @Override
+    public Object ruleStarting(@NotNull String rule) {
+        RuleEvent event = new RuleEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void ruleAttempted(@NotNull Object started, @NotNull String rule, boolean fired, long nanos) {
+        RuleEvent event = (RuleEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rule = rule;
+            event.fired = fired;
+            event.commit();
+        }
+    }
+
+    private static void commitRewrite(@NotNull RewriteEvent event, @NotNull String name, boolean all, int steps, @NotNull String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.matcher = name;
+            event.all = all;
+            event.steps = steps;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+}
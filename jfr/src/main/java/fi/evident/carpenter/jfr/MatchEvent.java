@@ -0,0 +1,34 @@
+package fi.evident.carpenter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An instrumented matcher was applied to a value. Disabled by default, since matchers
+ * are applied far more often than values are rewritten.
+ */
+@Name(JfrMatcherMetrics.EVENT_PREFIX + "Match")
+@Label("Match")
+@Category("Carpenter")
+@Description("Instrumented matcher was applied to a value")
+@Enabled(false)
+final class MatchEvent extends Event {
+
+    @Label("Matcher")
+    String matcher;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Partial Matches")
+    @Description("Successful sub-matches produced during the attempt")
+    int partialMatches;
+
+    @Label("Conflicts")
+    @Description("Constraint merges that failed because of conflicting bindings")
+    int conflicts;
+}
@@ -0,0 +1,31 @@
+package fi.evident.carpenter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * {@code rewrite} or {@code rewriteAll} of an instrumented matcher has finished.
+ */
+@Name(JfrMatcherMetrics.EVENT_PREFIX + "Rewrite")
+@Label("Rewrite")
+@Category("Carpenter")
+@Description("Instrumented matcher rewrote a value")
+final class RewriteEvent extends Event {
+
+    @Label("Matcher")
+    String matcher;
+
+    @Label("Rewrite All")
+    @Description("Whether the value was rewritten until no rewrites applied or a limit was reached")
+    boolean all;
+
+    @Label("Steps")
+    int steps;
+
+    @Label("Outcome")
+    @Description("NO_MATCH or REWRITTEN for single rewrites, the stop reason for rewriteAll")
+    String outcome;
+}
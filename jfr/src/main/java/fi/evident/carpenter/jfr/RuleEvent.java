@@ -0,0 +1,23 @@
+package fi.evident.carpenter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A rule of a rule set was tried.
+ */
+@Name(JfrMatcherMetrics.EVENT_PREFIX + "Rule")
+@Label("Rule")
+@Category("Carpenter")
+@Description("Rule of a rule set was tried against a value")
+final class RuleEvent extends Event {
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Fired")
+    boolean fired;
+}
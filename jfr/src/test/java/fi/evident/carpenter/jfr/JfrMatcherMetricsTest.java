@@ -0,0 +1,147 @@
+package fi.evident.carpenter.jfr;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Instrumentation;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.Rule;
+import fi.evident.carpenter.RuleSet;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static fi.evident.carpenter.Matchers.predicate;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JfrMatcherMetricsTest {
+
+    private final Capture<Integer> n = new Capture<>("n");
+    private final Matcher<Integer> positive = n.save(predicate((Integer i) -> i > 0)).instrumented("positive");
+
+    @Before
+    public void install() {
+        Instrumentation.install(new JfrMatcherMetrics());
+    }
+
+    @After
+    public void uninstall() {
+        Instrumentation.uninstall();
+    }
+
+    @Test
+    public void rewritesAreRecorded() throws IOException {
+        List<RecordedEvent> events = record(JfrMatcherMetrics.EVENT_PREFIX + "Rewrite", () -> {
+            positive.rewriteAll(3, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) - 1));
+            positive.rewrite(0, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) - 1));
+        });
+
+        assertThat(events.size(), is(2));
+
+        RecordedEvent all = events.get(0);
+        assertThat(all.getString("matcher"), is("positive"));
+        assertThat(all.getBoolean("all"), is(true));
+        assertThat(all.getInt("steps"), is(3));
+        assertThat(all.getString("outcome"), is("FIXPOINT"));
+
+        RecordedEvent single = events.get(1);
+        assertThat(single.getBoolean("all"), is(false));
+        assertThat(single.getInt("steps"), is(0));
+        assertThat(single.getString("outcome"), is("NO_MATCH"));
+    }
+
+    @Test
+    public void ruleAttemptsAreRecordedByLabel() throws IOException {
+        RuleSet<Integer> rules = new RuleSet<>(asList(
+                new Rule<>("negative", predicate((Integer i) -> i < 0), (m, rewrites) -> { }),
+                new Rule<>("decrement", n.save(predicate((Integer i) -> i > 0)), (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) - 1))));
+
+        List<RecordedEvent> events = record(JfrMatcherMetrics.EVENT_PREFIX + "Rule", () -> rules.rewrite(1));
+
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getString("rule"), is("negative"));
+        assertThat(events.get(0).getBoolean("fired"), is(false));
+        assertThat(events.get(1).getString("rule"), is("decrement"));
+        assertThat(events.get(1).getBoolean("fired"), is(true));
+    }
+
+    @Test
+    public void matchesAreRecordedOnlyWhenEnabled() throws IOException {
+        String name = JfrMatcherMetrics.EVENT_PREFIX + "Match";
+
+        assertThat(record(name, false, () -> positive.apply(1)).size(), is(0));
+
+        List<RecordedEvent> events = record(name, true, () -> positive.apply(-1));
+        assertThat(events.size(), is(1));
+        assertThat(events.get(0).getString("matcher"), is("positive"));
+        assertThat(events.get(0).getBoolean("success"), is(false));
+    }
+
+    @Test
+    public void thresholdFiltersEvents() throws IOException {
+        String name = JfrMatcherMetrics.EVENT_PREFIX + "Rewrite";
+
+        assertThat(record(name, Duration.ofHours(1), () -> positive.rewriteAll(3, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) - 1))).size(), is(0));
+        assertThat(record(name, Duration.ZERO, () -> positive.rewriteAll(3, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) - 1))).size(), is(1));
+    }
+
+    @Test
+    public void disabledEventsAreNotMeasured() {
+        JfrMatcherMetrics metrics = new JfrMatcherMetrics();
+
+        assertThat(metrics.measuresMatches(), is(false));
+        assertThat(metrics.measuresRewrites(), is(false));
+        assertThat(metrics.measuresRules(), is(false));
+
+        try (Recording recording = new Recording()) {
+            // Rewrite events are enabled by default, match events disabled
+            recording.disable(JfrMatcherMetrics.EVENT_PREFIX + "Rewrite");
+            recording.start();
+
+            assertThat(metrics.measuresMatches(), is(false));
+            assertThat(metrics.measuresRewrites(), is(false));
+            assertThat(metrics.measuresRules(), is(true));
+        }
+    }
+
+    private static List<RecordedEvent> record(String name, Runnable action) throws IOException {
+        return record(name, true, action);
+    }
+
+    private static List<RecordedEvent> record(String name, boolean enable, Runnable action) throws IOException {
+        return record(name, enable, Duration.ZERO, action);
+    }
+
+    private static List<RecordedEvent> record(String name, Duration threshold, Runnable action) throws IOException {
+        return record(name, true, threshold, action);
+    }
+
+    private static List<RecordedEvent> record(String name, boolean enable, Duration threshold, Runnable action) throws IOException {
+        Path file = Files.createTempFile("carpenter", ".jfr");
+        try (Recording recording = new Recording()) {
+            if (enable)
+                recording.enable(name).withThreshold(threshold);
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().equals(name))
+                    .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                    .collect(Collectors.toList());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package fi.evident.carpenter.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates matchables for classes annotated with {@code fi.evident.carpenter.matchables.GenerateMatchable}.
+ *
+ * @see MatchableWriter
+ */
+@SupportedAnnotationTypes(MatchableProcessor.ANNOTATION)
+public final class MatchableProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "fi.evident.carpenter.matchables.GenerateMatchable";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(@NotNull Set<? extends TypeElement> annotations, @NotNull RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations)
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+                process((TypeElement) element);
+
+        return true;
+    }
+
+    private void process(@NotNull TypeElement type) {
+        try {
+            NodeClass node = analyze(type);
+
+            Writer writer = processingEnv.getFiler().createSourceFile(node.getQualifiedMatchableName(), type).openWriter();
+            try {
+                new MatchableWriter(node, writer).write();
+            } finally {
+                writer.close();
+            }
+
+        } catch (InvalidNodeException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "failed to write matchable: " + e, type);
+        }
+    }
+
+    @NotNull
+    private NodeClass analyze(@NotNull TypeElement type) throws InvalidNodeException {
+        // ElementKind.RECORD does not exist in older JDKs, so compare by name
+        boolean isRecord = type.getKind().name().equals("RECORD");
+
+        if (type.getKind() != ElementKind.CLASS && !isRecord)
+            throw new InvalidNodeException("@GenerateMatchable can only be applied to classes and records", type);
+        if (type.getModifiers().contains(Modifier.ABSTRACT))
+            throw new InvalidNodeException("@GenerateMatchable can't be applied to abstract classes", type);
+        if (!type.getTypeParameters().isEmpty())
+            throw new InvalidNodeException("@GenerateMatchable can't be applied to generic classes", type);
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC) && !isRecord)
+            throw new InvalidNodeException("@GenerateMatchable can't be applied to inner classes", type);
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS)
+            throw new InvalidNodeException("@GenerateMatchable can't be applied to local classes", type);
+
+        List<NodeClass.Child> children = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements()))
+            if (!field.getModifiers().contains(Modifier.STATIC))
+                children.add(new NodeClass.Child(field.getSimpleName().toString(), field.asType(), accessExpression(type, field)));
+
+        checkConstructor(type, children);
+
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        TypeMirror base = baseType(type);
+
+        if (!processingEnv.getTypeUtils().isAssignable(type.asType(), base))
+            throw new InvalidNodeException(type + " is not a subtype of " + base, type);
+
+        boolean exact = isRecord || type.getModifiers().contains(Modifier.FINAL);
+        return new NodeClass(pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString(), matchableName(type), type, base, exact, children, processingEnv.getTypeUtils());
+    }
+
+    @NotNull
+    private String accessExpression(@NotNull TypeElement type, @NotNull VariableElement field) throws InvalidNodeException {
+        String name = field.getSimpleName().toString();
+        if (!field.getModifiers().contains(Modifier.PRIVATE))
+            return name;
+
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String candidate : new String[] { name, "get" + capitalized, "is" + capitalized })
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements()))
+                if (method.getSimpleName().contentEquals(candidate)
+                        && method.getParameters().isEmpty()
+                        && !method.getModifiers().contains(Modifier.PRIVATE)
+                        && !method.getModifiers().contains(Modifier.STATIC)
+                        && processingEnv.getTypeUtils().isSameType(method.getReturnType(), field.asType()))
+                    return candidate + "()";
+
+        throw new InvalidNodeException("private field " + name + " has no accessor (" + name + "(), get" + capitalized + "() or is" + capitalized + "())", field);
+    }
+
+    private void checkConstructor(@NotNull TypeElement type, @NotNull List<NodeClass.Child> children) throws InvalidNodeException {
+        constructors:
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (ctor.getModifiers().contains(Modifier.PRIVATE) || ctor.getParameters().size() != children.size())
+                continue;
+
+            for (int i = 0; i < children.size(); i++)
+                if (!processingEnv.getTypeUtils().isSameType(ctor.getParameters().get(i).asType(), children.get(i).type))
+                    continue constructors;
+
+            return;
+        }
+
+        throw new InvalidNodeException(type + " has no non-private constructor taking its fields in declaration order", type);
+    }
+
+    @NotNull
+    private TypeMirror baseType(@NotNull TypeElement type) {
+        for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+            if (!((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(ANNOTATION))
+                continue;
+
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("base")) {
+                    TypeMirror base = (TypeMirror) entry.getValue().getValue();
+                    if (base.getKind() != TypeKind.VOID)
+                        return base;
+                }
+            }
+        }
+
+        return type.asType();
+    }
+
+    @NotNull
+    private static String matchableName(@NotNull TypeElement type) {
+        StringBuilder sb = new StringBuilder(type.getSimpleName());
+
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement())
+            sb.insert(0, '_').insert(0, e.getSimpleName());
+
+        return sb.append("Matchable").toString();
+    }
+
+    private static final class InvalidNodeException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        @Nullable
+        private final transient Element element;
+
+        InvalidNodeException(@NotNull String message, @Nullable Element element) {
+            super(message);
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package fi.evident.carpenter.processor;
+
+import fi.evident.carpenter.processor.NodeClass.Child;
+import fi.evident.carpenter.processor.NodeClass.ChildKind;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes the source of the matchable generated for a {@link NodeClass}.
+ *
+ * The generated {@code match} method tests the class of the value, reads the children directly
+ * from the fields (or their accessors) and threads the constraints through the children just like
+ * {@code Matchables} does, returning as soon as they become invalid. Matches of nodes that only
+ * have reference children are rebuilt through a single shared builder that calls the constructor
+ * directly. All names are written fully qualified, so the generated code can't clash with the
+ * names used by the annotated class.
+ */
+final class MatchableWriter {
+
+    @NotNull
+    private final NodeClass node;
+
+    @NotNull
+    private final Writer out;
+
+    MatchableWriter(@NotNull NodeClass node, @NotNull Writer out) {
+        this.node = node;
+        this.out = out;
+    }
+
+    void write() throws IOException {
+        List<Child> children = node.children;
+        String base = node.baseName;
+
+        if (!node.packageName.isEmpty())
+            line("package %s;", node.packageName).line("");
+
+        line("/**");
+        line(" * Matchable for {@link %s}, generated from its {@code @GenerateMatchable} annotation.", node.typeName);
+        line(" */");
+        line("%sfinal class %s implements %s {", node.isPublic ? "public " : "", node.matchableName, interfaceName());
+        line("");
+        line("    public static final %s INSTANCE = new %1$s();", node.matchableName);
+        line("");
+
+        if (children.isEmpty()) {
+            line("    private static final java.util.List<java.util.function.Function<?, ?>> GETTERS = java.util.Collections.emptyList();");
+        } else {
+            line("    private static final java.util.List<java.util.function.Function<?, ?>> GETTERS = java.util.Arrays.<java.util.function.Function<?, ?>>asList(");
+            for (int i = 0; i < children.size(); i++) {
+                Child child = children.get(i);
+                line("            (java.util.function.Function<%s, %s>) node -> node.%s%s", node.typeName, child.getBoxedTypeName(), child.access, i == children.size() - 1 ? ");" : ",");
+            }
+        }
+        line("");
+        line("    @SuppressWarnings(\"unchecked\")");
+        line("    private static final java.util.function.Function<Object[], %s> BUILDER = args -> new %s(%s);",
+                base, node.typeName, join(children, c -> "(" + c.getBoxedTypeName() + ") args[" + children.indexOf(c) + "]"));
+        line("");
+        line("    private static final fi.evident.carpenter.matchables.NodeType<%s> NODE_TYPE = fi.evident.carpenter.matchables.NodeType.of(%s.class, GETTERS, BUILDER);", base, node.typeName);
+        line("");
+        line("    private %s() {", node.matchableName);
+        line("    }");
+        line("");
+
+        writeMatch();
+        writeMatcher();
+
+        line("    @Override");
+        line("    public fi.evident.carpenter.matchables.NodeType<%s> getNodeType() {", base);
+        line("        return NODE_TYPE;");
+        line("    }");
+        line("}");
+    }
+
+    private void writeMatch() throws IOException {
+        List<Child> children = node.children;
+        String base = node.baseName;
+
+        if (implementsMatchableX())
+            line("    @Override");
+        line("    public fi.evident.carpenter.Match<%s> match(%s value%s) {", base, base, join(children, c -> ", " + c.getMatcherType() + " " + c.name + "Matcher", ""));
+
+        if (node.exact)
+            line("        if (value.getClass() != %s.class)", node.typeName);
+        else
+            line("        if (!(value instanceof %s))", node.typeName);
+        line("            return fi.evident.carpenter.Match.failure();");
+        line("");
+
+        if (children.isEmpty()) {
+            line("        return fi.evident.carpenter.Match.constant(value);");
+            line("    }");
+            line("");
+            return;
+        }
+
+        line("        %s node = (%1$s) value;", node.typeName);
+        line("        fi.evident.carpenter.Constraints constraints = fi.evident.carpenter.Constraints.empty();");
+        line("");
+
+        for (Child child : children) {
+            if (child.kind == ChildKind.REFERENCE) {
+                line("        fi.evident.carpenter.Match<%s> %sMatch = %2$sMatcher.apply(node.%s);", child.getBoxedTypeName(), child.name, child.access);
+                line("        constraints = constraints.merge(%sMatch.getConstraints());", child.name);
+            } else {
+                line("        %s %sValue = node.%s;", child.getPrimitiveName(), child.name, child.access);
+                line("        constraints = constraints.merge(%sMatcher.match(%1$sValue));", child.name);
+            }
+            line("        if (constraints.isInvalid())");
+            line("            return fi.evident.carpenter.Match.failure();");
+            line("");
+        }
+
+        if (node.hasPrimitiveMatchers()) {
+            // Primitive children have no matches, so they are rebuilt from the values read above
+            line("        return fi.evident.carpenter.Match.from(value, rewrites -> new %s(%s), constraints);", node.typeName,
+                    join(children, c -> c.kind == ChildKind.REFERENCE ? c.name + "Match.rebuild(rewrites)" : c.name + "Matcher.rebuild(" + c.name + "Value, rewrites)"));
+        } else {
+            line("        return fi.evident.carpenter.Match.fromChildren(value, BUILDER, constraints, %s);", join(children, c -> c.name + "Match"));
+        }
+
+        line("    }");
+        line("");
+    }
+
+    private void writeMatcher() throws IOException {
+        List<Child> children = node.children;
+        String shapes = children.isEmpty()
+                ? "java.util.Collections.<fi.evident.carpenter.Shape>emptyList()"
+                : "java.util.Arrays.asList(" + join(children, c -> c.name + "Matcher.getShape()") + ")";
+
+        if (implementsMatchableX())
+            line("    @Override");
+        line("    public fi.evident.carpenter.Matcher<%s> matcher(%s) {", node.baseName, join(children, c -> c.getMatcherType() + " " + c.name + "Matcher"));
+        line("        fi.evident.carpenter.Shape shape = fi.evident.carpenter.Shape.node(%s.class, GETTERS, %s);", node.typeName, shapes);
+        String apply = "value -> match(value" + join(children, c -> ", " + c.name + "Matcher", "") + ")";
+
+        if (children.isEmpty() || node.hasPrimitiveMatchers()) {
+            line("        return fi.evident.carpenter.Matcher.from(%s, shape);", apply);
+            line("    }");
+            line("");
+            return;
+        }
+
+        // Reference children may have several alternatives, so let matchAll backtrack over them
+        line("        return fi.evident.carpenter.Matcher.from(%s, value -> {", apply);
+        if (node.exact)
+            line("            if (value.getClass() != %s.class)", node.typeName);
+        else
+            line("            if (!(value instanceof %s))", node.typeName);
+        line("                return java.util.stream.Stream.empty();");
+        line("");
+        line("            %s node = (%1$s) value;", node.typeName);
+        line("            return fi.evident.carpenter.Match.allFromChildren(value, BUILDER, %d, i -> {", children.size());
+        line("                switch (i) {");
+        for (int i = 0; i < children.size(); i++) {
+            Child child = children.get(i);
+            String label = i == children.size() - 1 ? "default:" : "case " + i + ":";
+            line("                    %s return %sMatcher.matchAll(node.%s);", label, child.name, child.access);
+        }
+        line("                }");
+        line("            });");
+        line("        }, shape);");
+        line("    }");
+        line("");
+    }
+
+    /**
+     * Returns the {@code MatchableX} interface implemented by the generated class. Interfaces exist only
+     * for up to four children and take matchers for references, so other classes implement just {@code Matchable}.
+     */
+    @NotNull
+    private String interfaceName() {
+        if (!implementsMatchableX())
+            return "fi.evident.carpenter.matchables.Matchable<" + node.baseName + ">";
+
+        return "fi.evident.carpenter.matchables.Matchable" + node.children.size() + "<" + node.baseName + ", " + join(node.children, Child::getBoxedTypeName) + ">";
+    }
+
+    private boolean implementsMatchableX() {
+        int arity = node.children.size();
+        return arity >= 1 && arity <= 4 && !node.hasPrimitiveMatchers();
+    }
+
+    @NotNull
+    private MatchableWriter line(@NotNull String format, Object... args) throws IOException {
+        out.write(String.format(format, args));
+        out.write('\n');
+        return this;
+    }
+
+    @NotNull
+    private static String join(@NotNull List<Child> children, @NotNull Function<Child, String> f) {
+        return join(children, f, ", ");
+    }
+
+    @NotNull
+    private static String join(@NotNull List<Child> children, @NotNull Function<Child, String> f, @NotNull String separator) {
+        List<String> parts = new ArrayList<>(children.size());
+        for (Child child : children)
+            parts.add(f.apply(child));
+        return String.join(separator, parts);
+    }
+}
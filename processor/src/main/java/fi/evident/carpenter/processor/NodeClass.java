@@ -0,0 +1,138 @@
+package fi.evident.carpenter.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * A class annotated with {@code GenerateMatchable}, as seen by {@link MatchableWriter}.
+ */
+final class NodeClass {
+
+    @NotNull
+    final String packageName;
+
+    @NotNull
+    final String matchableName;
+
+    @NotNull
+    final String typeName;
+
+    @NotNull
+    final String baseName;
+
+    final boolean isPublic;
+
+    /**
+     * Can instances be recognized by their exact class instead of an {@code instanceof} test?
+     */
+    final boolean exact;
+
+    @NotNull
+    final List<Child> children;
+
+    NodeClass(@NotNull String packageName, @NotNull String matchableName, @NotNull TypeElement type, @NotNull TypeMirror base,
+              boolean exact, @NotNull List<Child> children, @NotNull Types types) {
+        this.packageName = packageName;
+        this.matchableName = matchableName;
+        this.typeName = type.getQualifiedName().toString();
+        this.baseName = base.toString();
+        this.isPublic = type.getModifiers().contains(Modifier.PUBLIC);
+        this.exact = exact;
+        this.children = unmodifiableList(children);
+
+        for (Child child : children)
+            child.resolveBoxedType(types);
+    }
+
+    @NotNull
+    String getQualifiedMatchableName() {
+        return packageName.isEmpty() ? matchableName : packageName + '.' + matchableName;
+    }
+
+    /**
+     * Returns true iff some child is matched with a primitive matcher.
+     */
+    boolean hasPrimitiveMatchers() {
+        for (Child child : children)
+            if (child.kind != ChildKind.REFERENCE)
+                return true;
+        return false;
+    }
+
+    enum ChildKind {
+        REFERENCE, INT, LONG, DOUBLE
+    }
+
+    static final class Child {
+
+        @NotNull
+        final String name;
+
+        @NotNull
+        final TypeMirror type;
+
+        /**
+         * Java expression that reads the child from variable {@code node}, without the variable.
+         */
+        @NotNull
+        final String access;
+
+        @NotNull
+        final ChildKind kind;
+
+        /**
+         * Name of the type with primitives replaced by their wrappers.
+         */
+        private String boxedTypeName;
+
+        Child(@NotNull String name, @NotNull TypeMirror type, @NotNull String access) {
+            this.name = name;
+            this.type = type;
+            this.access = access;
+
+            switch (type.getKind()) {
+                case INT:    this.kind = ChildKind.INT; break;
+                case LONG:   this.kind = ChildKind.LONG; break;
+                case DOUBLE: this.kind = ChildKind.DOUBLE; break;
+                default:     this.kind = ChildKind.REFERENCE;
+            }
+        }
+
+        private void resolveBoxedType(@NotNull Types types) {
+            boxedTypeName = type.getKind().isPrimitive()
+                    ? types.boxedClass((PrimitiveType) type).getQualifiedName().toString()
+                    : type.toString();
+        }
+
+        @NotNull
+        String getBoxedTypeName() {
+            return boxedTypeName;
+        }
+
+        @NotNull
+        String getPrimitiveName() {
+            return type.toString();
+        }
+
+        /**
+         * Returns the type of the matcher used for this child.
+         */
+        @NotNull
+        String getMatcherType() {
+            switch (kind) {
+                case INT:    return "fi.evident.carpenter.IntMatcher";
+                case LONG:   return "fi.evident.carpenter.LongMatcher";
+                case DOUBLE: return "fi.evident.carpenter.DoubleMatcher";
+                default:     return "fi.evident.carpenter.Matcher<" + boxedTypeName + ">";
+            }
+        }
+    }
+}
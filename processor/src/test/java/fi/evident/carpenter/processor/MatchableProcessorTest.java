@@ -0,0 +1,257 @@
+package fi.evident.carpenter.processor;
+
+import fi.evident.carpenter.IntCapture;
+import fi.evident.carpenter.IntMatcher;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.matchables.Matchable;
+import fi.evident.carpenter.matchables.Matchable2;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.lang.model.SourceVersion;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fi.evident.carpenter.Matchers.any;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class MatchableProcessorTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+    private static final String EXPR =
+            "package test;\n" +
+            "public abstract class Expr {\n" +
+            "    @fi.evident.carpenter.matchables.GenerateMatchable(base = Expr.class)\n" +
+            "    public static final class Num extends Expr {\n" +
+            "        final int value;\n" +
+            "        public Num(int value) { this.value = value; }\n" +
+            "        @Override public boolean equals(Object o) { return o instanceof Num && ((Num) o).value == value; }\n" +
+            "        @Override public int hashCode() { return value; }\n" +
+            "    }\n" +
+            "    @fi.evident.carpenter.matchables.GenerateMatchable(base = Expr.class)\n" +
+            "    public static final class Add extends Expr {\n" +
+            "        private final Expr left, right;\n" +
+            "        public Add(Expr left, Expr right) { this.left = left; this.right = right; }\n" +
+            "        public Expr getLeft() { return left; }\n" +
+            "        public Expr getRight() { return right; }\n" +
+            "        @Override public boolean equals(Object o) { return o instanceof Add && ((Add) o).left.equals(left) && ((Add) o).right.equals(right); }\n" +
+            "        @Override public int hashCode() { return left.hashCode() * 31 + right.hashCode(); }\n" +
+            "    }\n" +
+            "    @fi.evident.carpenter.matchables.GenerateMatchable(base = Expr.class)\n" +
+            "    public static class Call extends Expr {\n" +
+            "        final String name; final Expr a, b, c, d; final long flags;\n" +
+            "        public Call(String name, Expr a, Expr b, Expr c, Expr d, long flags) { this.name = name; this.a = a; this.b = b; this.c = c; this.d = d; this.flags = flags; }\n" +
+            "    }\n" +
+            "}\n";
+
+    @Test
+    public void generatesMatchableInterfacesForSmallNodes() throws Exception {
+        ClassLoader loader = compile("test/Expr.java", EXPR);
+
+        Matchable2<Object, Object, Object> add = instance(loader, "test.Expr_AddMatchable");
+        Object one = newNum(loader, 1);
+        Object value = newAdd(loader, one, newNum(loader, 2));
+
+        assertThat(add.matcher(isEqual(one), any()).apply(value).isSuccess(), is(true));
+        assertThat(add.matcher(isEqual(newNum(loader, 2)), any()).apply(value).isSuccess(), is(false));
+        assertThat(add.match(one, any(), any()).isSuccess(), is(false));
+        assertThat(add.getNodeType().getChildren(value)[1], is(newNum(loader, 2)));
+    }
+
+    @Test
+    public void rebuildsThroughConstructor() throws Exception {
+        ClassLoader loader = compile("test/Expr.java", EXPR);
+
+        Matchable2<Object, Object, Object> add = instance(loader, "test.Expr_AddMatchable");
+        fi.evident.carpenter.Capture<Object> x = new fi.evident.carpenter.Capture<>("x");
+        Object value = newAdd(loader, newNum(loader, 1), newNum(loader, 2));
+        Object three = newNum(loader, 3);
+
+        Object result = add.matcher(x, any()).rewrite(value, (m, rewrites) -> rewrites.replaceValue(x, three)).get();
+        assertThat(result, is(newAdd(loader, newNum(loader, 3), newNum(loader, 2))));
+
+        Object unchanged = add.matcher(x, any()).rewrite(value, (m, rewrites) -> { }).get();
+        assertThat(unchanged, is(sameInstance(value)));
+    }
+
+    @Test
+    public void matchAllBacktracksOverChildren() throws Exception {
+        ClassLoader loader = compile("test/Expr.java", EXPR);
+
+        Matchable2<Object, Object, Object> add = instance(loader, "test.Expr_AddMatchable");
+        fi.evident.carpenter.Capture<Object> x = new fi.evident.carpenter.Capture<>("x");
+        Object one = newNum(loader, 1);
+        Object value = newAdd(loader, newAdd(loader, one, one), one);
+
+        Matcher<Object> matcher = add.matcher(add.matcher(any(), x).or(x), x);
+        assertThat(matcher.apply(value).isSuccess(), is(true));
+        assertThat(matcher.matchAll(value).count(), is(1L));
+        assertThat(add.matcher(x.or(any()), x).matchAll(value).count(), is(1L));
+    }
+
+    @Test
+    public void primitiveChildrenUsePrimitiveMatchers() throws Exception {
+        ClassLoader loader = compile("test/Expr.java", EXPR);
+
+        Object num = instance(loader, "test.Expr_NumMatchable");
+        assertThat(num, is(instanceOf(Matchable.class)));
+
+        Method matcher = num.getClass().getMethod("matcher", IntMatcher.class);
+        IntCapture n = new IntCapture("n");
+
+        @SuppressWarnings("unchecked")
+        Matcher<Object> numMatcher = (Matcher<Object>) matcher.invoke(num, n);
+        Match<Object> match = numMatcher.apply(newNum(loader, 5));
+        assertThat(match.getInt(n), is(5));
+
+        Object result = numMatcher.rewrite(newNum(loader, 5), (m, rewrites) -> rewrites.replaceInt(n, m.getInt(n) + 1)).get();
+        assertThat(result, is(newNum(loader, 6)));
+    }
+
+    @Test
+    public void supportsMoreThanFourChildren() throws Exception {
+        ClassLoader loader = compile("test/Expr.java", EXPR);
+
+        Object call = instance(loader, "test.Expr_CallMatchable");
+        Method match = null;
+        for (Method method : call.getClass().getMethods())
+            if (method.getName().equals("match"))
+                match = method;
+
+        assertThat(match.getParameterCount(), is(7));
+
+        Class<?> callClass = loader.loadClass("test.Expr$Call");
+        Class<?> exprClass = loader.loadClass("test.Expr");
+        Object one = newNum(loader, 1);
+        Object value = callClass.getConstructor(String.class, exprClass, exprClass, exprClass, exprClass, long.class).newInstance("f", one, one, one, one, 42L);
+
+        Match<?> m = (Match<?>) match.invoke(call, value, isEqual("f"), any(), any(), any(), any(), fi.evident.carpenter.LongMatcher.isEqual(42));
+        assertThat(m.isSuccess(), is(true));
+    }
+
+    @Test
+    public void generatesMatchablesForRecords() throws Exception {
+        assumeTrue(SourceVersion.latest().ordinal() >= 16);
+
+        ClassLoader loader = compile("test/Pair.java",
+                "package test;\n" +
+                "@fi.evident.carpenter.matchables.GenerateMatchable\n" +
+                "public record Pair(String first, String second) { }\n");
+
+        Matchable2<Object, Object, Object> pair = instance(loader, "test.PairMatchable");
+        Object value = loader.loadClass("test.Pair").getConstructor(String.class, String.class).newInstance("a", "b");
+
+        assertThat(pair.matcher(isEqual("a"), isEqual("b")).apply(value).isSuccess(), is(true));
+    }
+
+    @Test
+    public void reportsMissingConstructor() throws Exception {
+        boolean success = tryCompile("test/Bad.java",
+                "package test;\n" +
+                "@fi.evident.carpenter.matchables.GenerateMatchable\n" +
+                "public final class Bad {\n" +
+                "    final int x;\n" +
+                "    public Bad() { this.x = 0; }\n" +
+                "}\n");
+
+        assertThat(success, is(false));
+        assertThat(errors(), containsString("no non-private constructor"));
+    }
+
+    @Test
+    public void reportsPrivateFieldsWithoutAccessors() throws Exception {
+        boolean success = tryCompile("test/Hidden.java",
+                "package test;\n" +
+                "@fi.evident.carpenter.matchables.GenerateMatchable\n" +
+                "public final class Hidden {\n" +
+                "    private final String secret;\n" +
+                "    public Hidden(String secret) { this.secret = secret; }\n" +
+                "}\n");
+
+        assertThat(success, is(false));
+        assertThat(errors(), containsString("private field secret has no accessor"));
+    }
+
+    @NotNull
+    private ClassLoader compile(@NotNull String path, @NotNull String source) throws IOException {
+        if (!tryCompile(path, source))
+            throw new AssertionError("compilation failed: " + errors());
+
+        return new URLClassLoader(new URL[] { new File(temp.getRoot(), "classes").toURI().toURL() }, getClass().getClassLoader());
+    }
+
+    private boolean tryCompile(@NotNull String path, @NotNull String source) throws IOException {
+        File sources = new File(temp.getRoot(), "sources");
+        File classes = new File(temp.getRoot(), "classes");
+        File file = new File(sources, path);
+
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.createDirectories(classes.toPath());
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+            List<String> options = new ArrayList<>(asList(
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-d", classes.getPath(),
+                    "-s", sources.getPath()));
+
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, fileManager.getJavaFileObjects(file));
+            task.setProcessors(asList(new MatchableProcessor()));
+            return task.call();
+        }
+    }
+
+    @NotNull
+    private String errors() {
+        StringBuilder sb = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                sb.append(diagnostic.getMessage(null)).append('\n');
+        return sb.toString();
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <T> T instance(@NotNull ClassLoader loader, @NotNull String name) throws Exception {
+        return (T) loader.loadClass(name).getField("INSTANCE").get(null);
+    }
+
+    @NotNull
+    private static Object newNum(@NotNull ClassLoader loader, int value) throws Exception {
+        return loader.loadClass("test.Expr$Num").getConstructor(int.class).newInstance(value);
+    }
+
+    @NotNull
+    private static Object newAdd(@NotNull ClassLoader loader, @NotNull Object left, @NotNull Object right) throws Exception {
+        Class<?> expr = loader.loadClass("test.Expr");
+        return loader.loadClass("test.Expr$Add").getConstructor(expr, expr).newInstance(left, right);
+    }
+}
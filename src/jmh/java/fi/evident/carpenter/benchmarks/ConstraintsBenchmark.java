@@ -0,0 +1,120 @@
+package fi.evident.carpenter.benchmarks;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Constraints;
+import fi.evident.carpenter.Equality;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging constraints of rules with eight captures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstraintsBenchmark {
+
+    private static final int CAPTURES = 8;
+
+    private Capture<String>[] captures;
+    private Constraints[] singles;
+    private Constraints firstHalf;
+    private Constraints secondHalf;
+    private Constraints all;
+    private Constraints partial;
+    private Constraints conflicting;
+    private Constraints[] largeDeep;
+    private Constraints[] largeHashGuarded;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        captures = (Capture<String>[]) new Capture<?>[CAPTURES];
+        singles = new Constraints[CAPTURES];
+        for (int i = 0; i < CAPTURES; i++) {
+            captures[i] = new Capture<>("c" + i);
+            singles[i] = Constraints.forValue(captures[i], "value" + i);
+        }
+
+        firstHalf = mergeRange(0, CAPTURES / 2);
+        secondHalf = mergeRange(CAPTURES / 2, CAPTURES);
+        all = mergeRange(0, CAPTURES);
+        partial = firstHalf.merge(Constraints.forValue(new Capture<String>("other"), "x"));
+        conflicting = firstHalf.merge(Constraints.forValue(captures[CAPTURES - 1], "different"));
+
+        // Large values that differ only at the end, bound to captures using different equalities
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            sb.append('x');
+        String large1 = sb + "1";
+        String large2 = sb + "2";
+        Capture<String> deep = new Capture<>("deep");
+        Capture<String> hashGuarded = new Capture<>("hashGuarded", Equality.hashGuarded());
+        largeDeep = new Constraints[] { Constraints.forValue(deep, large1), Constraints.forValue(deep, large2) };
+        largeHashGuarded = new Constraints[] { Constraints.forValue(hashGuarded, large1), Constraints.forValue(hashGuarded, large2) };
+    }
+
+    private Constraints mergeRange(int from, int to) {
+        Constraints result = Constraints.empty();
+        for (int i = from; i < to; i++)
+            result = result.merge(singles[i]);
+        return result;
+    }
+
+    /**
+     * Merges eight single bindings one at a time, like a pattern does bottom-up.
+     */
+    @Benchmark
+    public Constraints mergeOneByOne() {
+        return mergeRange(0, CAPTURES);
+    }
+
+    @Benchmark
+    public Constraints mergeDisjointHalves() {
+        return firstHalf.merge(secondHalf);
+    }
+
+    /**
+     * Non-linear pattern: every capture is bound on both sides.
+     */
+    @Benchmark
+    public Constraints mergeOverlapping() {
+        return all.merge(all);
+    }
+
+    /**
+     * Five bindings on the left, eight on the right, four of them shared.
+     */
+    @Benchmark
+    public Constraints mergePartiallyOverlapping() {
+        return partial.merge(all);
+    }
+
+    /**
+     * Non-linear pattern where the second binding of a capture disagrees with the first.
+     */
+    @Benchmark
+    public Constraints mergeConflicting() {
+        return all.merge(conflicting);
+    }
+
+    /**
+     * Non-linear pattern rejecting large values that differ only at the end.
+     */
+    @Benchmark
+    public Constraints mergeConflictingLargeValues() {
+        return largeDeep[0].merge(largeDeep[1]);
+    }
+
+    /**
+     * Like {@link #mergeConflictingLargeValues()}, but comparing cached hashes first.
+     */
+    @Benchmark
+    public Constraints mergeConflictingLargeValuesHashGuarded() {
+        return largeHashGuarded[0].merge(largeHashGuarded[1]);
+    }
+}
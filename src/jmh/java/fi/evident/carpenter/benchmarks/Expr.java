@@ -0,0 +1,170 @@
+package fi.evident.carpenter.benchmarks;
+
+import fi.evident.carpenter.matchables.Matchable1;
+import fi.evident.carpenter.matchables.Matchable2;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+import static fi.evident.carpenter.matchables.Matchables.matchable;
+
+/**
+ * Arithmetic expressions used as benchmark data.
+ */
+public abstract class Expr {
+
+    public static final Matchable1<Expr, Integer> NUM = matchable(Num.class, Num::new, Num::getValue);
+    public static final Matchable1<Expr, Expr> NEG = matchable(Neg.class, Neg::new, Neg::getExpr);
+    public static final Matchable2<Expr, Expr, Expr> ADD = matchable(Add.class, Add::new, Add::getLeft, Add::getRight);
+    public static final Matchable2<Expr, Expr, Expr> MUL = matchable(Mul.class, Mul::new, Mul::getLeft, Mul::getRight);
+
+    private Expr() {
+    }
+
+    @NotNull
+    public static Expr num(int value) {
+        return new Num(value);
+    }
+
+    @NotNull
+    public static Expr neg(@NotNull Expr expr) {
+        return new Neg(expr);
+    }
+
+    @NotNull
+    public static Expr add(@NotNull Expr left, @NotNull Expr right) {
+        return new Add(left, right);
+    }
+
+    @NotNull
+    public static Expr mul(@NotNull Expr left, @NotNull Expr right) {
+        return new Mul(left, right);
+    }
+
+    /**
+     * Returns a random tree of given depth where roughly a third of nodes are
+     * negations, some of which are double negations.
+     */
+    @NotNull
+    public static Expr randomTree(@NotNull Random random, int depth) {
+        if (depth == 0)
+            return num(random.nextInt(4));
+
+        switch (random.nextInt(6)) {
+            case 0:
+                return neg(neg(randomTree(random, depth - 1)));
+            case 1:
+                return neg(randomTree(random, depth - 1));
+            case 2:
+                return mul(randomTree(random, depth - 1), randomTree(random, depth - 1));
+            default:
+                return add(randomTree(random, depth - 1), randomTree(random, depth - 1));
+        }
+    }
+
+    /**
+     * Returns a balanced tree of additions with given number of leaves.
+     */
+    @NotNull
+    public static Expr balancedTree(int leaves) {
+        if (leaves == 1)
+            return num(leaves);
+
+        int half = leaves / 2;
+        return add(balancedTree(half), balancedTree(leaves - half));
+    }
+
+    public static final class Num extends Expr {
+
+        private final int value;
+
+        Num(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Num && value == ((Num) o).value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+    }
+
+    public static final class Neg extends Expr {
+
+        @NotNull
+        private final Expr expr;
+
+        Neg(@NotNull Expr expr) {
+            this.expr = expr;
+        }
+
+        @NotNull
+        public Expr getExpr() {
+            return expr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Neg && expr.equals(((Neg) o).expr);
+        }
+
+        @Override
+        public int hashCode() {
+            return -expr.hashCode();
+        }
+    }
+
+    public static abstract class Binary extends Expr {
+
+        @NotNull
+        private final Expr left;
+
+        @NotNull
+        private final Expr right;
+
+        Binary(@NotNull Expr left, @NotNull Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @NotNull
+        public Expr getLeft() {
+            return left;
+        }
+
+        @NotNull
+        public Expr getRight() {
+            return right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && left.equals(((Binary) o).left) && right.equals(((Binary) o).right);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * getClass().hashCode() + left.hashCode()) + right.hashCode();
+        }
+    }
+
+    public static final class Add extends Binary {
+        Add(@NotNull Expr left, @NotNull Expr right) {
+            super(left, right);
+        }
+    }
+
+    public static final class Mul extends Binary {
+        Mul(@NotNull Expr left, @NotNull Expr right) {
+            super(left, right);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package fi.evident.carpenter.benchmarks;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.ConsecutiveRuleSet;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.Rule;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static fi.evident.carpenter.Matchers.*;
+
+/**
+ * Scanning and rewriting wide lists with {@code listWithConsecutive} and {@code contains}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private final Capture<Integer> x = new Capture<>("x");
+    private final Capture<Integer> y = new Capture<>("y");
+
+    private List<Integer> values;
+
+    /**
+     * Six element peephole pattern that does not occur in the list.
+     */
+    private Matcher<List<Integer>> missingWindow;
+
+    /**
+     * Non-linear window: x _ x, which most windows fail on the third element.
+     */
+    private Matcher<List<Integer>> repeated;
+
+    private Matcher<List<Integer>> containsMissing;
+
+    private Matcher<List<Integer>> containsMissingParallel;
+
+    /**
+     * A non-zero followed by zero, used to move all zeros to the front.
+     */
+    private Matcher<List<Integer>> nonZeroBeforeZero;
+
+    /**
+     * Eight peephole rules of six elements, none of which occur in the list.
+     */
+    private List<Rule<List<Integer>>> peepholeRules;
+
+    private ConsecutiveRuleSet<Integer> peepholeRuleSet;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            values.add(random.nextInt(1000) == 0 ? 0 : 1 + random.nextInt(100));
+
+        missingWindow = listWithConsecutive(isEqual(-1), any(), any(), any(), any(), any());
+        repeated = listWithConsecutive(x, any(), x, isEqual(-1));
+        containsMissing = contains(isEqual(-1));
+        containsMissingParallel = containsParallel(isEqual(-1));
+        nonZeroBeforeZero = listWithConsecutive(x.save(predicate(v -> v != 0)), y.save(isEqual(0)));
+
+        peepholeRules = new ArrayList<>();
+        for (int i = 1; i <= 8; i++)
+            peepholeRules.add(new Rule<>(listWithConsecutive(x.save(isEqual(i)), isEqual(-i), any(), any(), any(), any()), (m, rewrites) -> { }));
+        peepholeRuleSet = new ConsecutiveRuleSet<>(peepholeRules);
+    }
+
+    /**
+     * Scanning the list once for all peephole rules.
+     */
+    @Benchmark
+    public Optional<List<Integer>> scanRulesTogether() {
+        return peepholeRuleSet.rewrite(values);
+    }
+
+    /**
+     * Scanning the list separately for every peephole rule.
+     */
+    @Benchmark
+    public Optional<List<Integer>> scanRulesOneByOne() {
+        for (Rule<List<Integer>> rule : peepholeRules) {
+            Optional<List<Integer>> result = rule.rewrite(values);
+            if (result.isPresent())
+                return result;
+        }
+        return Optional.empty();
+    }
+
+    @Benchmark
+    public Match<List<Integer>> scanMissingWindow() {
+        return missingWindow.apply(values);
+    }
+
+    @Benchmark
+    public Match<List<Integer>> scanNonLinearWindow() {
+        return repeated.apply(values);
+    }
+
+    @Benchmark
+    public Match<List<Integer>> containsMissing() {
+        return containsMissing.apply(values);
+    }
+
+    @Benchmark
+    public Match<List<Integer>> containsMissingParallel() {
+        return containsMissingParallel.apply(values);
+    }
+
+    /**
+     * Repeated rewriteAll to fixpoint with localized rewrites.
+     */
+    @Benchmark
+    public List<Integer> rewriteAllToFixpoint() {
+        return nonZeroBeforeZero.rewriteAll(values, (m, rewrites) -> {
+            rewrites.replaceValue(x, m.getValue(y));
+            rewrites.replaceValue(y, m.getValue(x));
+        });
+    }
+}
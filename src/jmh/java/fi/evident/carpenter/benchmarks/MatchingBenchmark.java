@@ -0,0 +1,103 @@
+package fi.evident.carpenter.benchmarks;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static fi.evident.carpenter.benchmarks.Expr.*;
+import static fi.evident.carpenter.Matchers.any;
+
+/**
+ * Matching patterns built from {@link fi.evident.carpenter.matchables.Matchables} against trees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+    private final Capture<Expr> a = new Capture<>("a");
+    private final Capture<Expr> b = new Capture<>("b");
+    private final Capture<Expr> c = new Capture<>("c");
+    private final Capture<Expr> d = new Capture<>("d");
+
+    /**
+     * (a * b) + (a * c): a non-linear distributivity pattern
+     */
+    private Matcher<Expr> distributivity;
+
+    /**
+     * A pattern six levels deep with four captures.
+     */
+    private Matcher<Expr> deep;
+
+    private Matcher<Expr> deepCompiled;
+
+    private Expr distributable;
+    private Expr notDistributable;
+    private Expr deepValue;
+
+    /**
+     * Like {@link #deepValue}, but fails to match at the last child of the pattern.
+     */
+    private Expr deepMismatch;
+
+    @Setup
+    public void setup() {
+        distributivity = ADD.matcher(MUL.matcher(a, b), MUL.matcher(a, c));
+        deep = NEG.matcher(ADD.matcher(MUL.matcher(NEG.matcher(a), ADD.matcher(b, any())), MUL.matcher(c, NEG.matcher(NEG.matcher(d)))));
+
+        deepCompiled = deep.compile();
+
+        Expr big = balancedTree(64);
+        distributable = add(mul(big, num(1)), mul(balancedTree(64), num(2)));
+        notDistributable = add(mul(big, num(1)), mul(balancedTree(63), num(2)));
+        deepValue = neg(add(mul(neg(num(1)), add(num(2), num(3))), mul(num(4), neg(neg(num(5))))));
+        deepMismatch = neg(add(mul(neg(num(1)), add(num(2), num(3))), mul(num(4), neg(num(5)))));
+    }
+
+    @Benchmark
+    public Match<Expr> nonLinearSuccess() {
+        return distributivity.apply(distributable);
+    }
+
+    @Benchmark
+    public Match<Expr> nonLinearFailure() {
+        return distributivity.apply(notDistributable);
+    }
+
+    @Benchmark
+    public Match<Expr> deepPattern() {
+        return deep.apply(deepValue);
+    }
+
+    @Benchmark
+    public Match<Expr> deepPatternCompiled() {
+        return deepCompiled.apply(deepValue);
+    }
+
+    @Benchmark
+    public Match<Expr> deepPatternMismatch() {
+        return deep.apply(deepMismatch);
+    }
+
+    @Benchmark
+    public Match<Expr> deepPatternMismatchCompiled() {
+        return deepCompiled.apply(deepMismatch);
+    }
+
+    @Benchmark
+    public Expr deepPatternRewrite() {
+        return deep.rewrite(deepValue, (m, rewrites) -> rewrites.replaceValue(d, m.getValue(a))).get();
+    }
+
+    @Benchmark
+    public Expr deepPatternRewriteCompiled() {
+        return deepCompiled.rewrite(deepValue, (m, rewrites) -> rewrites.replaceValue(d, m.getValue(a))).get();
+    }
+}
@@ -0,0 +1,112 @@
+package fi.evident.carpenter.benchmarks;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.Rule;
+import fi.evident.carpenter.RuleSet;
+import fi.evident.carpenter.strategies.Strategy;
+import fi.evident.carpenter.strategies.Traversal;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static fi.evident.carpenter.benchmarks.Expr.*;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static java.util.Arrays.asList;
+
+/**
+ * Rewriting trees to a normal form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RewriteBenchmark {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    private final Traversal<Expr> traversal = Traversal.of(Expr.class, NUM, NEG, ADD, MUL);
+
+    private Matcher<Expr> doubleNeg;
+    private RuleSet<Expr> rules;
+    private Strategy<Expr> strategy;
+
+    /**
+     * Tower of 1000 negations, reduced at the root by rewriteAll.
+     */
+    private Expr negations;
+
+    /**
+     * Random tree of about 100k nodes with localized redexes.
+     */
+    private Expr tree;
+
+    /**
+     * Balanced tree of about 100k nodes where every 5000th leaf is negated twice.
+     */
+    private Expr localized;
+
+    @Setup
+    public void setup() {
+        doubleNeg = whole.save(NEG.matcher(NEG.matcher(x)));
+        rules = new RuleSet<>(asList(
+                new Rule<>(doubleNeg, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))),
+                new Rule<>(whole.save(MUL.matcher(x, isEqual(num(1)))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))),
+                new Rule<>(whole.save(ADD.matcher(x, isEqual(num(0)))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)))));
+        strategy = rules::rewrite;
+
+        negations = num(1);
+        for (int i = 0; i < 1000; i++)
+            negations = neg(negations);
+
+        tree = randomTree(new Random(42), 20);
+        localized = negatedEvery(0, 50_000, 5000);
+    }
+
+    private static Expr negatedEvery(int first, int leaves, int interval) {
+        if (leaves == 1)
+            return first % interval == 0 ? neg(neg(num(first))) : num(first);
+
+        int half = leaves / 2;
+        return add(negatedEvery(first, half, interval), negatedEvery(first + half, leaves - half, interval));
+    }
+
+    @Benchmark
+    public Expr rewriteAllAtRoot() {
+        return doubleNeg.rewriteAll(negations, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+    }
+
+    @Benchmark
+    public Expr rewriteAllAnywhere() {
+        return traversal.anywhere(doubleNeg).rewriteAll(localized, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+    }
+
+    @Benchmark
+    public Expr rewriteAllWorklist() {
+        return traversal.rewriteAll(localized, doubleNeg, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+    }
+
+    @Benchmark
+    public Expr innermost() {
+        return traversal.innermost(tree, strategy);
+    }
+
+    @Benchmark
+    public Expr outermost() {
+        return traversal.outermost(tree, strategy);
+    }
+
+    @Benchmark
+    public Expr bottomup() {
+        return traversal.bottomup(tree, strategy);
+    }
+
+    @Benchmark
+    public Expr innermostParallel() {
+        return traversal.withParallelism(1000).innermost(tree, strategy);
+    }
+}
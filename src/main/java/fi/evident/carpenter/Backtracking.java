@@ -0,0 +1,233 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy enumeration of alternative matches for {@link Matcher#matchAll(Object)}.
+ *
+ * Everything is built on iterators instead of {@link Stream#flatMap(java.util.function.Function)},
+ * because on Java 8 flatMap pushes the whole inner stream downstream even if only its first
+ * element is needed.
+ */
+final class Backtracking {
+
+    private Backtracking() {
+    }
+
+    @NotNull
+    static <T> Stream<T> stream(@NotNull Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Concatenates the streams returned by {@code streams} for indices {@code from} (inclusive)
+     * to {@code to} (exclusive). A stream is created only after the previous ones are exhausted.
+     */
+    @NotNull
+    static <T> Stream<T> concat(int from, int to, @NotNull IntFunction<? extends Stream<? extends T>> streams) {
+        return stream(new Iterator<T>() {
+            private int next = from;
+
+            @NotNull
+            private Iterator<? extends T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (next >= to)
+                        return false;
+                    current = streams.apply(next++).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        });
+    }
+
+    /**
+     * Enumerates the combinations of the alternatives of {@code arity} positions whose constraints
+     * can be merged, ordered lexicographically by the positions of the alternatives in their streams.
+     *
+     * The search is depth-first: when constraints of an alternative conflict with the alternatives chosen
+     * for the previous positions, the next alternative is tried, and when a position runs out of
+     * alternatives, the search backtracks to the previous position. The stream of a position is requested
+     * only when some combination of the previous positions has been found, and its alternatives are
+     * buffered so that revisiting the position doesn't match the value again. Thus memory is linear in
+     * the number of alternatives, not in the number of combinations.
+     */
+    @NotNull
+    static Iterator<Combination> combinations(int arity, @NotNull IntFunction<? extends Stream<? extends Match<?>>> alternatives) {
+        return new CombinationIterator(arity, alternatives);
+    }
+
+    /**
+     * Matches chosen for every position, along with their merged constraints.
+     */
+    static final class Combination {
+
+        @NotNull
+        final Match<?>[] matches;
+
+        @NotNull
+        final Constraints constraints;
+
+        Combination(@NotNull Match<?>[] matches, @NotNull Constraints constraints) {
+            this.matches = matches;
+            this.constraints = constraints;
+        }
+
+        @NotNull
+        @SuppressWarnings("unchecked")
+        <T> List<Match<T>> matchList() {
+            return Arrays.asList((Match<T>[]) matches);
+        }
+    }
+
+    private static final class CombinationIterator implements Iterator<Combination> {
+
+        @NotNull
+        private final IntFunction<? extends Stream<? extends Match<?>>> alternatives;
+
+        @NotNull
+        private final Alternatives[] buffers;
+
+        /**
+         * Index of the next alternative to try for each position.
+         */
+        @NotNull
+        private final int[] next;
+
+        @NotNull
+        private final Match<?>[] chosen;
+
+        /**
+         * Merged constraints of the alternatives chosen for positions before each position.
+         */
+        @NotNull
+        private final Constraints[] constraints;
+
+        private int level = 0;
+
+        @Nullable
+        private Combination pending;
+
+        private boolean exhausted;
+
+        CombinationIterator(int arity, @NotNull IntFunction<? extends Stream<? extends Match<?>>> alternatives) {
+            this.alternatives = alternatives;
+            this.buffers = new Alternatives[arity];
+            this.next = new int[arity];
+            this.chosen = new Match<?>[arity];
+            this.constraints = new Constraints[arity + 1];
+            this.constraints[0] = Constraints.empty();
+
+            if (arity == 0) {
+                pending = new Combination(chosen, Constraints.empty());
+                exhausted = true;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pending == null && !exhausted)
+                pending = advance();
+            return pending != null;
+        }
+
+        @Override
+        public Combination next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Combination result = pending;
+            pending = null;
+            return result;
+        }
+
+        @Nullable
+        private Combination advance() {
+            int last = chosen.length - 1;
+
+            while (level >= 0) {
+                Match<?> match = buffer(level).get(next[level]++);
+
+                if (match == null) {
+                    // Out of alternatives: backtrack to the previous position
+                    level--;
+                    continue;
+                }
+
+                Constraints merged = constraints[level].merge(match.getConstraints());
+                if (merged.isInvalid())
+                    continue;
+
+                chosen[level] = match;
+
+                if (level == last)
+                    return new Combination(chosen.clone(), merged);
+
+                level++;
+                constraints[level] = merged;
+                next[level] = 0;
+            }
+
+            exhausted = true;
+            return null;
+        }
+
+        @NotNull
+        private Alternatives buffer(int position) {
+            Alternatives buffer = buffers[position];
+            if (buffer == null) {
+                buffer = new Alternatives(alternatives.apply(position).iterator());
+                buffers[position] = buffer;
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Alternatives of a single position, pulled from the source as they are needed.
+     */
+    private static final class Alternatives {
+
+        @NotNull
+        private final Iterator<? extends Match<?>> source;
+
+        @NotNull
+        private final List<Match<?>> seen = new ArrayList<>();
+
+        Alternatives(@NotNull Iterator<? extends Match<?>> source) {
+            this.source = source;
+        }
+
+        @Nullable
+        Match<?> get(int index) {
+            while (seen.size() <= index) {
+                if (!source.hasNext())
+                    return null;
+                seen.add(source.next());
+            }
+            return seen.get(index);
+        }
+    }
+}
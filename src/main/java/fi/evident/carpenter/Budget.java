@@ -0,0 +1,148 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.RewriteResult.StopReason;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tracks the {@link RewriteLimits} of a single {@code rewriteAll}.
+ *
+ * The loops of {@code rewriteAll} call {@link #allowsStep(Object)} before every rewrite and
+ * {@link #stepTaken()} after it. Every check also stops the rewrite if the {@link RewriteContext}
+ * of the current thread has been cancelled.
+ */
+final class Budget {
+
+    @NotNull
+    private static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, false, 0, 0);
+
+    private final long maxSteps;
+
+    private final boolean hasDeadline;
+
+    /**
+     * Deadline as a {@link System#nanoTime()} value, valid only if {@link #hasDeadline}.
+     */
+    private final long deadline;
+
+    /**
+     * Ring buffer of the latest states, or {@code null} if cycles are not detected.
+     */
+    @Nullable
+    private final Object[] recentStates;
+
+    /**
+     * Hashes of {@link #recentStates}, compared before the states themselves.
+     */
+    @Nullable
+    private final int[] recentHashes;
+
+    /**
+     * Total number of states recorded so far.
+     */
+    private long states;
+
+    private long steps;
+
+    @Nullable
+    private StopReason stopReason;
+
+    Budget(long maxSteps, boolean hasDeadline, long deadline, int cycleHistory) {
+        this.maxSteps = maxSteps;
+        this.hasDeadline = hasDeadline;
+        this.deadline = deadline;
+        this.recentStates = cycleHistory > 0 ? new Object[cycleHistory] : null;
+        this.recentHashes = cycleHistory > 0 ? new int[cycleHistory] : null;
+    }
+
+    /**
+     * Returns a shared budget without limits, which only checks for cancellation.
+     */
+    @NotNull
+    static Budget unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Returns true if {@code current} may be rewritten. Otherwise records the reason for stopping.
+     *
+     * @throws java.util.concurrent.CancellationException if the current rewrite job has been cancelled
+     */
+    boolean allowsStep(@NotNull Object current) {
+        RewriteContext.checkpoint();
+
+        if (steps >= maxSteps)
+            return stop(StopReason.STEP_LIMIT);
+
+        if (hasDeadline && System.nanoTime() - deadline >= 0)
+            return stop(StopReason.DEADLINE);
+
+        if (recentStates != null && repeatsRecentState(current))
+            return stop(StopReason.CYCLE);
+
+        return true;
+    }
+
+    /**
+     * Returns true if the states passed to {@link #allowsStep(Object)} are kept for detecting cycles.
+     * Loops that change their value in place must then pass a snapshot of it instead.
+     */
+    boolean keepsStates() {
+        return recentStates != null;
+    }
+
+    private boolean stop(@NotNull StopReason reason) {
+        stopReason = reason;
+        return false;
+    }
+
+    void stepTaken() {
+        if (this != UNLIMITED)
+            steps++;
+    }
+
+    /**
+     * Called when the loop stopped because of the budget, but the value turned out not to match anyway.
+     */
+    void reachedFixpoint() {
+        stopReason = null;
+    }
+
+    @NotNull
+    StopReason getStopReason() {
+        return stopReason != null ? stopReason : StopReason.FIXPOINT;
+    }
+
+    @NotNull
+    <T> RewriteResult<T> result(@NotNull T value) {
+        return new RewriteResult<>(value, getStopReason(), steps);
+    }
+
+    /**
+     * Returns true if {@code current} equals one of the recent states, and records it otherwise.
+     * Rewriting the same value again leads to the same states, so an equal state means a cycle.
+     * The hashes are compared first, so that only states with equal hashes are compared with
+     * {@link Object#equals(Object)}.
+     */
+    private boolean repeatsRecentState(@NotNull Object current) {
+        Object[] recentStates = this.recentStates;
+        int[] recentHashes = this.recentHashes;
+        assert recentStates != null && recentHashes != null;
+
+        int hash = current.hashCode();
+        int size = recentStates.length;
+        int count = (int) Math.min(states, size);
+
+        for (int i = 0; i < count; i++) {
+            Object state = recentStates[i];
+            if (recentHashes[i] == hash && (state == current || state.equals(current)))
+                return true;
+        }
+
+        int index = (int) (states % size);
+        recentStates[index] = current;
+        recentHashes[index] = hash;
+        states++;
+        return false;
+    }
+}
@@ -2,21 +2,42 @@ package fi.evident.carpenter;
 
 import fi.evident.carpenter.utils.NameSequence;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Capture stores the matched value for later access and possible replacement.
  * Equality constraints between matches can be implemented by using same capture.
+ *
+ * By default, values bound to the same capture must be {@link Object#equals(Object) equal},
+ * but a capture can be given another {@link Equality} to compare them.
+ *
+ * Captures are immutable and can be created and used from any thread. Every capture gets
+ * a dense id: ids are allocated consecutively from zero without locking, so they can be used
+ * to index arrays.
  */
 public final class Capture<T> extends Matcher<T> {
 
     @NotNull
     private final String debugName;
 
+    @NotNull
+    private final Equality<? super T> equality;
+
+    /**
+     * Dense identifier used to order captures inside {@link Constraints} and to index the slots of
+     * {@link MatchRewrites}.
+     */
+    private final int id = idSequence.getAndIncrement();
+
     @NotNull
     private static final NameSequence defaultNameSequence = new NameSequence("capture");
 
+    @NotNull
+    private static final AtomicInteger idSequence = new AtomicInteger();
+
     /**
      * Construcs new Capture.
      */
@@ -28,7 +49,23 @@ public final class Capture<T> extends Matcher<T> {
      * Constructs new Capture with given name for debugging.
      */
     public Capture(@NotNull String debugName) {
+        this(debugName, Equality.deep());
+    }
+
+    /**
+     * Constructs new Capture that compares the values bound to it with given equality.
+     */
+    public Capture(@NotNull Equality<? super T> equality) {
+        this(defaultNameSequence.next(), equality);
+    }
+
+    /**
+     * Constructs new Capture with given name for debugging that compares the values
+     * bound to it with given equality.
+     */
+    public Capture(@NotNull String debugName, @NotNull Equality<? super T> equality) {
         this.debugName = debugName;
+        this.equality = equality;
     }
 
     /**
@@ -37,12 +74,59 @@ public final class Capture<T> extends Matcher<T> {
     @NotNull
     @Override
     public Match<T> apply(@NotNull T value) {
-        return fromCapture(this, rewrites -> value, constraints(value));
+        return Match.fromCapture(this, value, constraints(value));
     }
 
     @NotNull
     public Matcher<T> save(@NotNull Matcher<T> matcher) {
-        return Matcher.from(value -> matcher.apply(value).flatMap(m -> fromCapture(this, m::rebuild, m.getConstraints().merge(constraints(value)))));
+        return new Matcher<T>() {
+            @NotNull
+            @Override
+            public Match<T> apply(@NotNull T value) {
+                return saved(value, matcher.apply(value));
+            }
+
+            @NotNull
+            @Override
+            public Stream<Match<T>> matchAll(@NotNull T value) {
+                return matcher.matchAll(value).map(m -> saved(value, m)).filter(Match::isSuccess);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return matcher.getShape();
+            }
+
+            @NotNull
+            @Override
+            String describe() {
+                return debugName + "@" + matcher.describe();
+            }
+
+            @NotNull
+            @Override
+            Pattern toPattern() {
+                return Pattern.saved(Capture.this, Pattern.of(matcher));
+            }
+        };
+    }
+
+    @NotNull
+    private Match<T> saved(@NotNull T value, @NotNull Match<T> match) {
+        return match.flatMap(m -> Match.fromSavedCapture(this, value, m, m.getConstraints().merge(constraints(value))));
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Returns true iff given values bound to this capture agree.
+     */
+    @SuppressWarnings("unchecked")
+    boolean agrees(@Nullable Object a, @Nullable Object b) {
+        return ((Equality<Object>) equality).areEqualOrNull(a, b);
     }
 
     @NotNull
@@ -51,8 +135,15 @@ public final class Capture<T> extends Matcher<T> {
     }
 
     @NotNull
-    private static <T> Match<T> fromCapture(@NotNull Capture<T> capture, @NotNull Function<MatchRewrites, T> defaultValue, @NotNull Constraints constraints) {
-        return Match.from(rewrites -> rewrites.getReplacedValue(capture).orElseGet(() -> defaultValue.apply(rewrites)), constraints);
+    @Override
+    Pattern toPattern() {
+        return Pattern.capture(this);
+    }
+
+    @NotNull
+    @Override
+    String describe() {
+        return debugName;
     }
 
     @Override
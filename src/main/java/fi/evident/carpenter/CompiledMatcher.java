@@ -0,0 +1,125 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Matcher that matches the {@link Pattern} of another matcher with a single method handle.
+ *
+ * A successful match creates the slots filled by the handle, constraints that use the slots of the
+ * captures as their values and a single match that rebuilds the value from the slots. Matches of
+ * opaque matchers in the pattern are kept in the slots after the captures and their constraints are
+ * merged in afterwards.
+ *
+ * @see Matcher#compile()
+ */
+final class CompiledMatcher<T> extends Matcher<T> {
+
+    @NotNull
+    private final Matcher<T> matcher;
+
+    @NotNull
+    private final Pattern pattern;
+
+    @NotNull
+    private final MethodHandle handle;
+
+    /**
+     * Captures of the pattern sorted by id, shared as keys by the constraints of all matches.
+     */
+    @NotNull
+    private final Capture<?>[] captures;
+
+    private final long mask;
+
+    private final int slotCount;
+
+    CompiledMatcher(@NotNull Matcher<T> matcher, @NotNull Pattern pattern) {
+        Pattern.Compilation compilation = new Pattern.Compilation(pattern);
+
+        this.matcher = matcher;
+        this.pattern = pattern;
+        this.handle = pattern.toHandle(compilation);
+        this.captures = compilation.getCaptures();
+        this.slotCount = compilation.getSlotCount();
+
+        long mask = 0;
+        for (Capture<?> capture : captures)
+            mask |= Constraints.maskBit(capture);
+        this.mask = mask;
+    }
+
+    @NotNull
+    @Override
+    @SuppressWarnings("unchecked")
+    public Match<T> apply(@NotNull T value) {
+        Object[] slots = new Object[slotCount];
+        if (!test(value, slots))
+            return Match.failure();
+
+        int captureCount = captures.length;
+        Constraints constraints = captureCount == 0 ? Constraints.empty()
+                : Constraints.fromSorted(captures, captureCount == slotCount ? slots : Arrays.copyOf(slots, captureCount), mask);
+
+        for (int i = captureCount; i < slotCount; i++) {
+            constraints = constraints.merge(((Match<?>) slots[i]).getConstraints());
+            if (constraints.isInvalid())
+                return Match.failure();
+        }
+
+        return Match.from(value, rewrites -> (T) pattern.rebuild(value, slots, rewrites), constraints);
+    }
+
+    private boolean test(@NotNull T value, @NotNull Object[] slots) {
+        try {
+            return (boolean) handle.invokeExact((Object) value, slots);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Stream<Match<T>> matchAll(@NotNull T value) {
+        return matcher.matchAll(value);
+    }
+
+    @NotNull
+    @Override
+    Matcher<T> compiled() {
+        return this;
+    }
+
+    /**
+     * Returns a new pattern for the wrapped matcher, since the slots of a pattern belong to a single compilation.
+     */
+    @Nullable
+    @Override
+    Pattern toPattern() {
+        return matcher.toPattern();
+    }
+
+    @NotNull
+    @Override
+    public Shape getShape() {
+        return matcher.getShape();
+    }
+
+    @NotNull
+    @Override
+    String describe() {
+        return matcher.describe();
+    }
+
+    @Override
+    public String toString() {
+        return matcher.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.Matchers.ConsecutiveMatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * An ordered collection of {@link Rule}s for lists whose matchers are created with
+ * {@link Matchers#listWithConsecutive(List)}, typically peephole rules for sequences of instructions.
+ *
+ * Instead of scanning the list once per rule, the list is scanned once for all rules, matching every
+ * element only against the element matchers that can continue a window started by the previous elements.
+ * Unlike {@link RuleSet}, which applies the first rule that matches anywhere, a rule set of consecutive
+ * rules rewrites the first window of the list that any rule matches. If several rules match windows
+ * starting at the same index, the first of them is applied.
+ */
+public final class ConsecutiveRuleSet<T> {
+
+    @NotNull
+    private final List<Rule<List<T>>> rules;
+
+    @NotNull
+    private final ConsecutiveScanner<T> scanner;
+
+    /**
+     * @throws IllegalArgumentException if the matcher of a rule is not created by
+     *         {@link Matchers#listWithConsecutive(List)} or has no element matchers or too many of them
+     */
+    public ConsecutiveRuleSet(@NotNull List<Rule<List<T>>> rules) {
+        this.rules = unmodifiableList(new ArrayList<>(rules));
+
+        List<List<Matcher<T>>> patterns = new ArrayList<>(rules.size());
+        for (Rule<List<T>> rule : this.rules) {
+            Matcher<List<T>> matcher = rule.getMatcher();
+            if (!(matcher instanceof ConsecutiveMatcher))
+                throw new IllegalArgumentException("matcher is not created by Matchers.listWithConsecutive: " + matcher);
+
+            patterns.add(((ConsecutiveMatcher<T>) matcher).getMatchers());
+        }
+
+        this.scanner = new ConsecutiveScanner<>(patterns);
+    }
+
+    @NotNull
+    public List<Rule<List<T>>> getRules() {
+        return rules;
+    }
+
+    /**
+     * Rewrites the first window of given list that any rule matches. If no rule matches,
+     * returns {@link Optional#empty()}.
+     */
+    @NotNull
+    public Optional<List<T>> rewrite(@NotNull List<T> value) {
+        Window<T> window = scanner.find(value, 0);
+        if (window == null)
+            return Optional.empty();
+
+        return window.toMatch(value).rewrite(rewriteGenerator(window.pattern));
+    }
+
+    /**
+     * Rewrites the list until no rule matches. If no rule matches at all, returns the original list.
+     *
+     * After a rewrite, scanning continues from the first window that can overlap the rewritten
+     * elements, since the windows before it stay unchanged.
+     */
+    @NotNull
+    public List<T> rewriteAll(@NotNull List<T> value) {
+        return rewriteAll(value, Budget.unlimited());
+    }
+
+    /**
+     * Rewrites the list like {@link #rewriteAll(List)} until no rule matches or given limits are reached.
+     */
+    @NotNull
+    public RewriteResult<List<T>> rewriteAll(@NotNull List<T> value, @NotNull RewriteLimits limits) {
+        Budget budget = limits.start();
+        return budget.result(rewriteAll(value, budget));
+    }
+
+    @NotNull
+    private List<T> rewriteAll(@NotNull List<T> value, @NotNull Budget budget) {
+        return Window.rewriteAll(scanner, scanner.getMaxLength(), value, this::rewriteGenerator, budget);
+    }
+
+    /**
+     * Returns the rewrite generator of given rule, reporting its use to installed {@link MatcherMetrics}.
+     */
+    @NotNull
+    private BiConsumer<Match<List<T>>, MatchRewrites> rewriteGenerator(int pattern) {
+        Rule<List<T>> rule = rules.get(pattern);
+        MatcherMetrics metrics = Instrumentation.metrics();
+        if (metrics == null || !metrics.measuresRules())
+            return rule.getRewriteGenerator();
+
+        return (match, rewrites) -> {
+            Object started = metrics.ruleStarting(rule.getLabel());
+            long start = System.nanoTime();
+            rule.getRewriteGenerator().accept(match, rewrites);
+            metrics.ruleAttempted(started, rule.getLabel(), true, System.nanoTime() - start);
+        };
+    }
+}
@@ -0,0 +1,260 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds windows of consecutive elements matched by any of several patterns in a single pass.
+ *
+ * Like in Aho-Corasick or the shift-and algorithm, the scanner keeps track of the prefixes of
+ * the patterns that match the elements before the current one: bit {@code j} of the state of a
+ * pattern is set iff the first {@code j + 1} matchers of the pattern match the elements ending
+ * at the current element. Each element is then matched only against the matchers that extend
+ * a live prefix and against the first matchers of the patterns, so a failing element matcher
+ * is never applied again for later windows.
+ *
+ * Matchers shared by several patterns (or by several positions of a pattern) are applied at most
+ * once per element, and the result is used for all of them. If the patterns start with different
+ * matchers, the first matchers are indexed by their {@link Shape}s in a {@link DiscriminationNet},
+ * so that only the patterns that can structurally start at an element are considered at all.
+ *
+ * Constraints of the element matches are merged only when all matchers of a pattern have matched,
+ * since partial windows can't be discarded before that anyway. Windows are returned in the order
+ * of their start indices and windows starting at the same index in the order of their patterns.
+ */
+final class ConsecutiveScanner<T> implements Window.Finder<T> {
+
+    /**
+     * Maximum number of matchers in a pattern, limited by the size of the state bitmasks.
+     */
+    static final int MAX_PATTERN_LENGTH = 64;
+
+    /**
+     * Distinct matchers of every position of every pattern.
+     */
+    @NotNull
+    private final ElementMatcher<T>[][] patterns;
+
+    private final int elementMatcherCount;
+
+    private final int maxLength;
+
+    /**
+     * Distinct first matchers of the patterns.
+     */
+    @NotNull
+    private final List<ElementMatcher<T>> starts;
+
+    /**
+     * Index of {@link #starts} or {@code null} if there's just a single first matcher.
+     */
+    @Nullable
+    private final DiscriminationNet<ElementMatcher<T>> startNet;
+
+    @SuppressWarnings("unchecked")
+    ConsecutiveScanner(@NotNull List<? extends List<? extends Matcher<T>>> patterns) {
+        this.patterns = (ElementMatcher<T>[][]) new ElementMatcher<?>[patterns.size()][];
+
+        Map<Matcher<T>, ElementMatcher<T>> elementMatchers = new IdentityHashMap<>();
+        List<ElementMatcher<T>> starts = new ArrayList<>();
+        int maxLength = 0;
+
+        for (int p = 0; p < patterns.size(); p++) {
+            List<? extends Matcher<T>> pattern = patterns.get(p);
+            if (pattern.isEmpty() || pattern.size() > MAX_PATTERN_LENGTH)
+                throw new IllegalArgumentException("patterns must have 1 to " + MAX_PATTERN_LENGTH + " matchers, but pattern " + p + " has " + pattern.size());
+
+            maxLength = Math.max(maxLength, pattern.size());
+            this.patterns[p] = (ElementMatcher<T>[]) new ElementMatcher<?>[pattern.size()];
+
+            for (int j = 0; j < pattern.size(); j++) {
+                Matcher<T> matcher = pattern.get(j);
+                ElementMatcher<T> item = elementMatchers.get(matcher);
+                if (item == null) {
+                    item = new ElementMatcher<>(elementMatchers.size(), matcher);
+                    elementMatchers.put(matcher, item);
+                }
+                this.patterns[p][j] = item;
+
+                if (j == 0) {
+                    if (item.startsPatterns.length == 0)
+                        starts.add(item);
+                    item.addStartOf(p);
+                }
+            }
+        }
+
+        this.elementMatcherCount = elementMatchers.size();
+        this.maxLength = maxLength;
+        this.starts = starts;
+        this.startNet = starts.size() > 1 ? new DiscriminationNet<>(starts, item -> item.matcher.getShape()) : null;
+    }
+
+    int getMaxLength() {
+        return maxLength;
+    }
+
+    @Nullable
+    @Override
+    public Window<T> find(@NotNull List<T> values, int from) {
+        int patternCount = patterns.length;
+        long[] states = new long[patternCount];
+
+        // Matches of the live windows: the match of position j of the window starting at s is
+        // stored at [p][(s % length) * length + j], which stays put until the window is finished.
+        Match<T>[][] matches = newMatchArrays(patternCount);
+        for (int p = 0; p < patternCount; p++)
+            matches[p] = newMatchArray(patterns[p].length * patterns[p].length);
+
+        // Results of the element matchers for the current element, valid if the stamp is the index + 1
+        Match<T>[] results = newMatchArray(elementMatcherCount);
+        int[] stamps = new int[elementMatcherCount];
+
+        Window<T> best = null;
+
+        for (int k = from, size = values.size(); k < size; k++) {
+            T value = values.get(k);
+            int stamp = k + 1;
+
+            for (int p = 0; p < patternCount; p++) {
+                ElementMatcher<T>[] pattern = patterns[p];
+                int length = pattern.length;
+
+                // Prefixes that can still be extended, shifted to the positions they'd be extended to
+                long live = (states[p] << 1) & ~(-1L << (length - 1) << 1);
+                long state = 0;
+
+                while (live != 0) {
+                    int j = Long.numberOfTrailingZeros(live);
+                    live &= live - 1;
+
+                    Match<T> match = apply(pattern[j], value, stamp, results, stamps);
+                    if (match.isSuccess()) {
+                        state |= 1L << j;
+                        matches[p][((k - j) % length) * length + j] = match;
+                    }
+                }
+
+                states[p] = state;
+            }
+
+            List<ElementMatcher<T>> candidates = startNet != null ? startNet.candidates(value) : starts;
+            for (int i = 0, n = candidates.size(); i < n; i++) {
+                ElementMatcher<T> start = candidates.get(i);
+                Match<T> match = apply(start, value, stamp, results, stamps);
+                if (match.isSuccess()) {
+                    for (int p : start.startsPatterns) {
+                        states[p] |= 1;
+                        matches[p][(k % patterns[p].length) * patterns[p].length] = match;
+                    }
+                }
+            }
+
+            for (int p = 0; p < patternCount; p++) {
+                int length = patterns[p].length;
+                if ((states[p] & (1L << (length - 1))) != 0) {
+                    int start = k - length + 1;
+                    if (best == null || start < best.index || (start == best.index && p < best.pattern)) {
+                        Window<T> window = completedWindow(p, start, matches[p]);
+                        if (window != null)
+                            best = window;
+                    }
+                }
+            }
+
+            if (best != null && !canFindEarlier(best, states, k))
+                return best;
+        }
+
+        return best;
+    }
+
+    @NotNull
+    private static <T> Match<T> apply(@NotNull ElementMatcher<T> item, @NotNull T value, int stamp, @NotNull Match<T>[] results, @NotNull int[] stamps) {
+        if (stamps[item.id] == stamp)
+            return results[item.id];
+
+        Match<T> match = item.matcher.apply(value);
+        results[item.id] = match;
+        stamps[item.id] = stamp;
+        return match;
+    }
+
+    @Nullable
+    private Window<T> completedWindow(int pattern, int start, @NotNull Match<T>[] matches) {
+        int length = patterns[pattern].length;
+        int offset = (start % length) * length;
+
+        Constraints constraints = Constraints.empty();
+        List<Match<T>> windowMatches = new ArrayList<>(length);
+        for (int j = 0; j < length; j++) {
+            Match<T> m = matches[offset + j];
+            constraints = constraints.merge(m.getConstraints());
+            if (constraints.isInvalid())
+                return null;
+            windowMatches.add(m);
+        }
+
+        return new Window<>(start, pattern, windowMatches, constraints);
+    }
+
+    /**
+     * Returns true if some unfinished window could still complete and precede {@code best}.
+     */
+    private boolean canFindEarlier(@NotNull Window<T> best, @NotNull long[] states, int k) {
+        for (int p = 0; p < states.length; p++) {
+            // Finished windows have been handled already, so only look at the proper prefixes
+            long live = states[p] & ~(1L << (patterns[p].length - 1));
+            if (live == 0)
+                continue;
+
+            int longest = 63 - Long.numberOfLeadingZeros(live);
+            int start = k - longest;
+            if (start < best.index || (start == best.index && p < best.pattern))
+                return true;
+        }
+        return false;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <T> Match<T>[][] newMatchArrays(int size) {
+        return (Match<T>[][]) new Match<?>[size][];
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <T> Match<T>[] newMatchArray(int size) {
+        return (Match<T>[]) new Match<?>[size];
+    }
+
+    /**
+     * A distinct element matcher along with the patterns it's the first matcher of.
+     */
+    private static final class ElementMatcher<T> {
+
+        private final int id;
+
+        @NotNull
+        private final Matcher<T> matcher;
+
+        @NotNull
+        private int[] startsPatterns = new int[0];
+
+        ElementMatcher(int id, @NotNull Matcher<T> matcher) {
+            this.id = id;
+            this.matcher = matcher;
+        }
+
+        void addStartOf(int pattern) {
+            startsPatterns = Arrays.copyOf(startsPatterns, startsPatterns.length + 1);
+            startsPatterns[startsPatterns.length - 1] = pattern;
+        }
+    }
+}
@@ -3,23 +3,19 @@ package fi.evident.carpenter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
-import static java.util.Collections.emptyMap;
-import static java.util.Collections.singletonMap;
-
 /**
  * Constraints are key/value mappings that can be merged if the values agree on both sides.
+ * Constraints are immutable and can be shared between threads.
  */
 public abstract class Constraints {
 
     @NotNull
-    private static final Constraints EMPTY_CONSTRAINTS = new DefaultConstraints(emptyMap());
+    private static final Constraints EMPTY_CONSTRAINTS = new DefaultConstraints(new Capture<?>[0], new Object[0], 0);
 
     @NotNull
     private static final Constraints INVALID_CONSTRAINTS = new InvalidConstraints();
@@ -52,11 +48,36 @@ public abstract class Constraints {
         return new DefaultConstraints(key, value);
     }
 
+    /**
+     * Creates constraints from given keys, sorted by {@link Capture#getId()}, and their values. The arrays
+     * are used as they are, so they must not be modified afterwards.
+     *
+     * @param mask union of {@link #maskBit(Capture)} of the keys
+     */
+    @NotNull
+    static Constraints fromSorted(@NotNull Capture<?>[] keys, @NotNull Object[] values, long mask) {
+        return new DefaultConstraints(keys, values, mask);
+    }
+
     /**
      * Return true iff the constraints are empty (and therefore also valid).
      */
     public abstract boolean isEmpty();
 
+    /**
+     * Returns true iff there is a value for given key.
+     */
+    public abstract boolean containsKey(@NotNull Capture<?> key);
+
+    /**
+     * Returns a mask where {@link #maskBit(Capture)} of every key is set.
+     */
+    abstract long getMask();
+
+    static long maskBit(@NotNull Capture<?> key) {
+        return 1L << (key.getId() & 63);
+    }
+
     /**
      * Returns value for given key.
      *
@@ -68,7 +89,8 @@ public abstract class Constraints {
      * Merge these constraints with given constraints.
      *
      * Merging constraints succeeds if both sides are valid and all variables defined on either
-     * side are either missing on the other side or have same value on the other side.
+     * side are either missing on the other side or have same value on the other side, as
+     * decided by the {@link Equality} of the capture.
      *
      * If merging succeeds, new constraints with union of the values is returned. Otherwise
      * invalid constraints are returned.
@@ -85,21 +107,103 @@ public abstract class Constraints {
 
     @NotNull
     private static Constraints merge(@NotNull DefaultConstraints c1, @NotNull DefaultConstraints c2) {
-        Map<Capture<?>,Object> result = new HashMap<>();
+        Capture<?>[] keys1 = c1.keys, keys2 = c2.keys;
+        Object[] values1 = c1.values, values2 = c2.values;
+        int n1 = keys1.length, n2 = keys2.length;
+
+        // Fast path for the common case where all keys of c2 come after the keys of c1
+        if (keys1[n1 - 1].getId() < keys2[0].getId())
+            return new DefaultConstraints(concat(keys1, keys2), concat(values1, values2), c1.mask | c2.mask);
+
+        // Disjoint masks imply disjoint keys, so the keys can be interleaved without comparing any values
+        if ((c1.mask & c2.mask) == 0)
+            return interleave(c1, c2);
+
+        Capture<?>[] keys = new Capture<?>[n1 + n2];
+        Object[] values = new Object[n1 + n2];
+        int i = 0, j = 0, n = 0, shared = 0;
+
+        while (i < n1 && j < n2) {
+            int id1 = keys1[i].getId();
+            int id2 = keys2[j].getId();
+
+            if (id1 < id2) {
+                keys[n] = keys1[i];
+                values[n++] = values1[i++];
+            } else if (id2 < id1) {
+                keys[n] = keys2[j];
+                values[n++] = values2[j++];
+            } else {
+                assert (c1.mask & c2.mask) != 0 : "shared key implies overlapping masks";
+                if (!keys1[i].agrees(values1[i], values2[j])) {
+                    Instrumentation.constraintConflict();
+                    return invalid();
+                }
+
+                keys[n] = keys1[i];
+                values[n++] = values1[i++];
+                j++;
+                shared++;
+            }
+        }
 
-        result.putAll(c1.values);
+        // If either side already contains everything, reuse it instead of allocating new constraints
+        if (shared == n2) return c1;
+        if (shared == n1) return c2;
 
-        for (Map.Entry<Capture<?>, Object> entry : c2.values.entrySet()) {
-            Capture<?> key = entry.getKey();
-            Object rhs = entry.getValue();
+        while (i < n1) {
+            keys[n] = keys1[i];
+            values[n++] = values1[i++];
+        }
+        while (j < n2) {
+            keys[n] = keys2[j];
+            values[n++] = values2[j++];
+        }
 
-            Object lhs = result.putIfAbsent(key, rhs);
+        if (n != keys.length) {
+            keys = Arrays.copyOf(keys, n);
+            values = Arrays.copyOf(values, n);
+        }
+
+        return new DefaultConstraints(keys, values, c1.mask | c2.mask);
+    }
 
-            if ((lhs != null || c1.values.containsKey(entry.getKey())) && !Objects.equals(lhs, rhs))
-                return invalid();
+    @NotNull
+    private static Constraints interleave(@NotNull DefaultConstraints c1, @NotNull DefaultConstraints c2) {
+        Capture<?>[] keys1 = c1.keys, keys2 = c2.keys;
+        Object[] values1 = c1.values, values2 = c2.values;
+        int n1 = keys1.length, n2 = keys2.length;
+
+        Capture<?>[] keys = new Capture<?>[n1 + n2];
+        Object[] values = new Object[n1 + n2];
+        int i = 0, j = 0, n = 0;
+
+        while (i < n1 && j < n2) {
+            if (keys1[i].getId() < keys2[j].getId()) {
+                keys[n] = keys1[i];
+                values[n++] = values1[i++];
+            } else {
+                keys[n] = keys2[j];
+                values[n++] = values2[j++];
+            }
+        }
+        while (i < n1) {
+            keys[n] = keys1[i];
+            values[n++] = values1[i++];
+        }
+        while (j < n2) {
+            keys[n] = keys2[j];
+            values[n++] = values2[j++];
         }
 
-        return new DefaultConstraints(result);
+        return new DefaultConstraints(keys, values, c1.mask | c2.mask);
+    }
+
+    @NotNull
+    private static <T> T[] concat(@NotNull T[] xs, @NotNull T[] ys) {
+        T[] result = Arrays.copyOf(xs, xs.length + ys.length);
+        System.arraycopy(ys, 0, result, xs.length, ys.length);
+        return result;
     }
 
     /**
@@ -130,17 +234,32 @@ public abstract class Constraints {
         return Collectors.reducing(empty(), Constraints::merge);
     }
 
+    /**
+     * Valid constraints stored as parallel arrays sorted by {@link Capture#getId()}. In addition
+     * to the arrays, a bitmask of the ids is kept so that merging constraints whose masks don't
+     * overlap can interleave the keys without comparing any values, and lookups of absent keys
+     * can usually fail without searching.
+     */
     private static final class DefaultConstraints extends Constraints {
 
         @NotNull
-        private final Map<Capture<?>,Object> values;
+        private final Capture<?>[] keys;
+
+        @NotNull
+        private final Object[] values;
+
+        private final long mask;
 
-        public DefaultConstraints(@NotNull Map<Capture<?>, Object> values) {
+        public DefaultConstraints(@NotNull Capture<?>[] keys, @NotNull Object[] values, long mask) {
+            assert keys.length == values.length;
+
+            this.keys = keys;
             this.values = values;
+            this.mask = mask;
         }
 
-        public DefaultConstraints(Capture<?> key, Object value) {
-            this.values = singletonMap(key, value);
+        public DefaultConstraints(@NotNull Capture<?> key, Object value) {
+            this(new Capture<?>[] { key }, new Object[] { value }, maskBit(key));
         }
 
         @Override
@@ -150,23 +269,61 @@ public abstract class Constraints {
 
         @Override
         public boolean isEmpty() {
-            return values.isEmpty();
+            return keys.length == 0;
+        }
+
+        @Override
+        long getMask() {
+            return mask;
+        }
+
+        @Override
+        public boolean containsKey(@NotNull Capture<?> key) {
+            return indexOf(key) >= 0;
         }
 
         @Override
         @SuppressWarnings("unchecked")
         public <T> T getValue(@NotNull Capture<T> key) {
-            Object value = values.get(key);
-
-            if (value == null && !values.containsKey(key))
+            int index = indexOf(key);
+            if (index < 0)
                 throw new IllegalArgumentException("no value for key " + key);
 
-            return (T) value;
+            return (T) values[index];
+        }
+
+        private int indexOf(@NotNull Capture<?> key) {
+            if ((mask & maskBit(key)) == 0)
+                return -1;
+
+            int id = key.getId();
+            int low = 0, high = keys.length - 1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midId = keys[mid].getId();
+
+                if (midId < id)
+                    low = mid + 1;
+                else if (midId > id)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+
+            return -1;
         }
 
         @Override
         public String toString() {
-            return "Constraints[values=" + values+ ']';
+            StringBuilder sb = new StringBuilder("Constraints[values={");
+
+            for (int i = 0; i < keys.length; i++) {
+                if (i != 0) sb.append(", ");
+                sb.append(keys[i]).append('=').append(values[i]);
+            }
+
+            return sb.append("}]").toString();
         }
     }
 
@@ -182,6 +339,16 @@ public abstract class Constraints {
             return false;
         }
 
+        @Override
+        long getMask() {
+            return ~0L;
+        }
+
+        @Override
+        public boolean containsKey(@NotNull Capture<?> key) {
+            return false;
+        }
+
         @Override
         public <T> T getValue(@NotNull Capture<T> key) {
             throw new IllegalStateException("can't get value for " + key + " from invalid constraints");
@@ -0,0 +1,191 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.Shape.Condition;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Comparator.comparingInt;
+
+/**
+ * Indexes items by their {@link Shape}s so that the items that can possibly match a value
+ * can be found without testing every item.
+ *
+ * The net is a decision tree where every inner node inspects a value found through a path
+ * of getters and branches on its runtime class (or its class and value if some item expects a
+ * constant there). Branches are built lazily the first time a given class or constant is
+ * encountered, so the net does not need to know the class hierarchy up front. The candidates
+ * are always returned in their original order.
+ */
+final class DiscriminationNet<R> {
+
+    @NotNull
+    private final Node<R> root;
+
+    DiscriminationNet(@NotNull List<R> items, @NotNull Function<? super R, Shape> shapeOf) {
+        List<Entry<R>> entries = new ArrayList<>(items.size());
+
+        for (R item : items) {
+            List<Condition> conditions = new ArrayList<>();
+            shapeOf.apply(item).collectConditions(emptyList(), conditions);
+
+            // Conditions on shorter paths must be tested first, since they guard the getters of longer paths
+            conditions.sort(comparingInt(c -> c.path.size()));
+            entries.add(new Entry<>(item, conditions));
+        }
+
+        this.root = new Node<>(entries);
+    }
+
+    /**
+     * Returns the items that could match given value in their original order.
+     */
+    @NotNull
+    List<R> candidates(@NotNull Object value) {
+        Node<R> node = root;
+        while (node.probe != null)
+            node = node.next(value);
+        return node.items;
+    }
+
+    private static final class Entry<R> {
+
+        @NotNull
+        private final R item;
+
+        @NotNull
+        private final List<Condition> conditions;
+
+        Entry(@NotNull R item, @NotNull List<Condition> conditions) {
+            this.item = item;
+            this.conditions = conditions;
+        }
+
+        @Nullable
+        Condition conditionFor(@NotNull List<Function<Object, Object>> path) {
+            for (Condition condition : conditions)
+                if (condition.path.equals(path))
+                    return condition;
+            return null;
+        }
+
+        @NotNull
+        Entry<R> without(@NotNull Condition condition) {
+            List<Condition> remaining = new ArrayList<>(conditions);
+            remaining.remove(condition);
+            return new Entry<>(item, remaining);
+        }
+    }
+
+    private static final class Node<R> {
+
+        @NotNull
+        private final List<Entry<R>> entries;
+
+        /**
+         * Path of the value inspected by this node or {@code null} for leaves.
+         */
+        @Nullable
+        private final List<Function<Object, Object>> probe;
+
+        /**
+         * Constants tested at {@link #probe}, if any.
+         */
+        @NotNull
+        private final Set<Object> constants = new HashSet<>();
+
+        /**
+         * Items of the entries. Only leaves are guaranteed to have all their conditions satisfied.
+         */
+        @NotNull
+        private final List<R> items;
+
+        @NotNull
+        private final ConcurrentMap<Class<?>, Node<R>> classEdges = new ConcurrentHashMap<>();
+
+        /**
+         * Edges for values equal to one of the {@link #constants}, keyed by their class and then by value,
+         * since equal values of different classes may still satisfy different class conditions.
+         */
+        @NotNull
+        private final ConcurrentMap<Class<?>, ConcurrentMap<Object, Node<R>>> constantEdges = new ConcurrentHashMap<>();
+
+        @Nullable
+        private volatile Node<R> nullEdge;
+
+        Node(@NotNull List<Entry<R>> entries) {
+            this.entries = entries;
+            this.probe = selectProbe(entries);
+
+            List<R> items = new ArrayList<>(entries.size());
+            for (Entry<R> entry : entries) {
+                items.add(entry.item);
+
+                if (probe != null) {
+                    Condition condition = entry.conditionFor(probe);
+                    if (condition != null && condition.isConstant())
+                        constants.add(condition.constant);
+                }
+            }
+            this.items = unmodifiableList(items);
+        }
+
+        @Nullable
+        private static <R> List<Function<Object, Object>> selectProbe(@NotNull List<Entry<R>> entries) {
+            // Conditions are sorted by path length, so the first condition of an entry is always safe to test
+            for (Entry<R> entry : entries)
+                if (!entry.conditions.isEmpty())
+                    return entry.conditions.get(0).path;
+            return null;
+        }
+
+        @NotNull
+        Node<R> next(@NotNull Object root) {
+            assert probe != null;
+
+            Object value = root;
+            for (Function<Object, Object> getter : probe)
+                value = getter.apply(value);
+
+            if (value == null) {
+                Node<R> edge = nullEdge;
+                if (edge == null)
+                    nullEdge = edge = child(null);
+                return edge;
+            } else if (constants.contains(value)) {
+                return constantEdges.computeIfAbsent(value.getClass(), cl -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(value, this::child);
+            } else {
+                // Only class tests can succeed, so the value is fully represented by its class
+                Object v = value;
+                return classEdges.computeIfAbsent(value.getClass(), cl -> child(v));
+            }
+        }
+
+        @NotNull
+        private Node<R> child(@Nullable Object value) {
+            assert probe != null;
+
+            List<Entry<R>> result = new ArrayList<>(entries.size());
+
+            for (Entry<R> entry : entries) {
+                Condition condition = entry.conditionFor(probe);
+                if (condition == null)
+                    result.add(entry);
+                else if (condition.test(value))
+                    result.add(entry.without(condition));
+            }
+
+            return new Node<>(result);
+        }
+    }
+}
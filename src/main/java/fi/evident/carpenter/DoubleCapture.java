@@ -0,0 +1,81 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Capture for primitive {@code double} values. Captured values are accessed with
+ * {@link Match#getDouble(DoubleCapture)} and replaced with {@link MatchRewrites#replaceDouble(DoubleCapture, double)}.
+ *
+ * Constraints store their values as objects, so binding a capture boxes the value. Values
+ * that don't bind captures are never boxed.
+ *
+ * @see Capture
+ */
+public final class DoubleCapture extends DoubleMatcher {
+
+    @NotNull
+    private final Capture<Double> capture;
+
+    /**
+     * Constructs new capture.
+     */
+    public DoubleCapture() {
+        this.capture = new Capture<>();
+    }
+
+    /**
+     * Constructs new capture with given name for debugging.
+     */
+    public DoubleCapture(@NotNull String debugName) {
+        this.capture = new Capture<>(debugName);
+    }
+
+    @NotNull
+    @Override
+    public Constraints match(double value) {
+        return Constraints.forValue(capture, value);
+    }
+
+    @Override
+    public double rebuild(double value, @NotNull MatchRewrites rewrites) {
+        Double replaced = rewrites.getReplacement(capture);
+        return replaced != null ? replaced : value;
+    }
+
+    /**
+     * Returns a matcher that binds this capture to values matched by given matcher.
+     */
+    @NotNull
+    public DoubleMatcher save(@NotNull DoubleMatcher matcher) {
+        return new DoubleMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(double value) {
+                Constraints constraints = matcher.match(value);
+                return constraints.isValid() ? constraints.merge(DoubleCapture.this.match(value)) : constraints;
+            }
+
+            @Override
+            public double rebuild(double value, @NotNull MatchRewrites rewrites) {
+                Double replaced = rewrites.getReplacement(capture);
+                return replaced != null ? replaced : matcher.rebuild(value, rewrites);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return matcher.getShape();
+            }
+        };
+    }
+
+    @NotNull
+    Capture<Double> getCapture() {
+        return capture;
+    }
+
+    @Override
+    public String toString() {
+        return capture.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.DoublePredicate;
+
+/**
+ * Matcher for primitive {@code double} values.
+ *
+ * Unlike {@code Matcher<Double>}, matching never boxes the value: the matcher only produces the
+ * {@link Constraints} of the match, which are invalid if the value does not match. Double matchers
+ * are used to match the {@code double} children of values described by
+ * {@link fi.evident.carpenter.matchables.Matchables#matchableDouble}.
+ *
+ * @see DoubleCapture
+ */
+public abstract class DoubleMatcher {
+
+    @NotNull
+    private static final DoubleMatcher ANY = predicate(v -> true);
+
+    /**
+     * Returns the constraints produced by matching given value or {@link Constraints#invalid()}
+     * if the value does not match.
+     */
+    @NotNull
+    public abstract Constraints match(double value);
+
+    /**
+     * Returns true iff given value matches.
+     */
+    public final boolean matches(double value) {
+        return match(value).isValid();
+    }
+
+    /**
+     * Returns the value that replaces given matched value when the match is rebuilt. Only
+     * captures can replace values, so the default implementation returns the value as it is.
+     */
+    public double rebuild(double value, @NotNull MatchRewrites rewrites) {
+        return value;
+    }
+
+    /**
+     * Returns the {@link Shape} of values this matcher can match.
+     *
+     * @see Matcher#getShape()
+     */
+    @NotNull
+    public Shape getShape() {
+        return Shape.any();
+    }
+
+    /**
+     * Returns a matcher that matches any value.
+     */
+    @NotNull
+    public static DoubleMatcher any() {
+        return ANY;
+    }
+
+    /**
+     * Returns a matcher that matches values equal to {@code expected}.
+     *
+     * Values are compared like {@link Double#equals(Object)} does, so {@code NaN} equals itself
+     * and {@code 0.0} does not equal {@code -0.0}.
+     */
+    @NotNull
+    public static DoubleMatcher isEqual(double expected) {
+        return predicate(v -> Double.compare(v, expected) == 0, Shape.equalTo(expected));
+    }
+
+    /**
+     * Returns a matcher that matches values between {@code min} and {@code max}, inclusive.
+     */
+    @NotNull
+    public static DoubleMatcher between(double min, double max) {
+        return predicate(v -> v >= min && v <= max);
+    }
+
+    @NotNull
+    public static DoubleMatcher predicate(@NotNull DoublePredicate predicate) {
+        return predicate(predicate, Shape.any());
+    }
+
+    @NotNull
+    private static DoubleMatcher predicate(@NotNull DoublePredicate predicate, @NotNull Shape shape) {
+        return new DoubleMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(double value) {
+                return predicate.test(value) ? Constraints.empty() : Constraints.invalid();
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+        };
+    }
+
+    /**
+     * Returns a matcher that calls {@code alternative} if the match fails.
+     */
+    @NotNull
+    public final DoubleMatcher or(@NotNull DoubleMatcher alternative) {
+        return new DoubleMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(double value) {
+                Constraints constraints = DoubleMatcher.this.match(value);
+                return constraints.isValid() ? constraints : alternative.match(value);
+            }
+
+            @Override
+            public double rebuild(double value, @NotNull MatchRewrites rewrites) {
+                return DoubleMatcher.this.matches(value) ? DoubleMatcher.this.rebuild(value, rewrites) : alternative.rebuild(value, rewrites);
+            }
+        };
+    }
+}
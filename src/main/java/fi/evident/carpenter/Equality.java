@@ -0,0 +1,69 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides whether two values bound to the same {@link Capture} agree when {@link Constraints}
+ * are merged, i.e. whether a non-linear pattern like {@code add(x, x)} matches.
+ *
+ * The default, {@link #deep()}, compares the values with {@link Object#equals(Object)}, which
+ * for large trees walks both of them whenever a repeated capture binds them. Captures binding
+ * large values can instead use {@link #identity()} if equal values are shared, or
+ * {@link #hashGuarded(ToIntFunction)} to reject most unequal values by comparing cached hashes.
+ */
+@FunctionalInterface
+public interface Equality<T> {
+
+    /**
+     * Returns true iff given values are considered equal. The values are never {@code null}.
+     */
+    boolean areEqual(@NotNull T a, @NotNull T b);
+
+    /**
+     * Returns true iff given values are considered equal, treating {@code null}
+     * as equal only to {@code null}.
+     */
+    default boolean areEqualOrNull(@Nullable T a, @Nullable T b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return areEqual(a, b);
+    }
+
+    /**
+     * Values are equal iff they are the same instance.
+     */
+    @NotNull
+    static <T> Equality<T> identity() {
+        return (a, b) -> a == b;
+    }
+
+    /**
+     * Values are equal iff {@link Object#equals(Object)} says so. This is the default for captures.
+     */
+    @NotNull
+    static <T> Equality<T> deep() {
+        return (a, b) -> a == b || a.equals(b);
+    }
+
+    /**
+     * Like {@link #deep()}, but compares {@link Object#hashCode()}s first. Useful when
+     * the values cache their hash codes, as {@link String}s do.
+     */
+    @NotNull
+    static <T> Equality<T> hashGuarded() {
+        return (a, b) -> a == b || (a.hashCode() == b.hashCode() && a.equals(b));
+    }
+
+    /**
+     * Like {@link #deep()}, but compares the hashes given by {@code hash} first and only calls
+     * {@link Object#equals(Object)} if they are equal. {@code hash} should return a hash cached
+     * by the value, so that unequal values are usually rejected in constant time.
+     */
+    @NotNull
+    static <T> Equality<T> hashGuarded(@NotNull ToIntFunction<? super T> hash) {
+        return (a, b) -> a == b || (hash.applyAsInt(a) == hash.applyAsInt(b) && a.equals(b));
+    }
+}
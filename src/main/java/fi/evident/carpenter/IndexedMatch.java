@@ -0,0 +1,35 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A successful {@link Match} of an element of a list along with the index of the element.
+ *
+ * @see Matchers#findAll(Matcher, java.util.List)
+ */
+public final class IndexedMatch<T> {
+
+    private final int index;
+
+    @NotNull
+    private final Match<T> match;
+
+    public IndexedMatch(int index, @NotNull Match<T> match) {
+        this.index = index;
+        this.match = match;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @NotNull
+    public Match<T> getMatch() {
+        return match;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedMatch[index=" + index + ", match=" + match + "]";
+    }
+}
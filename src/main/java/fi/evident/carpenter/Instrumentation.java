@@ -0,0 +1,85 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+
+/**
+ * Global switch for reporting measurements of {@link Matcher#instrumented(String) instrumented
+ * matchers} to {@link MatcherMetrics}.
+ *
+ * While no metrics are installed, instrumented matchers and the hooks in the matching code
+ * cost a single read of a volatile field. While metrics are installed, but don't measure
+ * some kind of operation, the operation costs an additional call to check that.
+ */
+public final class Instrumentation {
+
+    @Nullable
+    private static volatile MatcherMetrics metrics;
+
+    @NotNull
+    private static final ThreadLocal<Counters> counters = ThreadLocal.withInitial(Counters::new);
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Starts reporting to given metrics, replacing previously installed metrics.
+     */
+    public static void install(@NotNull MatcherMetrics metrics) {
+        Instrumentation.metrics = metrics;
+    }
+
+    /**
+     * Stops reporting measurements.
+     */
+    public static void uninstall() {
+        metrics = null;
+    }
+
+    /**
+     * Returns the currently installed metrics, if any.
+     */
+    @NotNull
+    public static Optional<MatcherMetrics> getInstalled() {
+        return Optional.ofNullable(metrics);
+    }
+
+    @Nullable
+    static MatcherMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the counters of current thread, or {@code null} if matches are not measured.
+     */
+    @Nullable
+    static Counters counters() {
+        return measuresMatches() ? counters.get() : null;
+    }
+
+    static void matchCreated() {
+        if (measuresMatches())
+            counters.get().matches++;
+    }
+
+    static void constraintConflict() {
+        if (measuresMatches())
+            counters.get().conflicts++;
+    }
+
+    private static boolean measuresMatches() {
+        MatcherMetrics metrics = Instrumentation.metrics;
+        return metrics != null && metrics.measuresMatches();
+    }
+
+    /**
+     * Running per-thread counts. Instrumented matchers compute the differences of the
+     * counts before and after an attempt.
+     */
+    static final class Counters {
+        int matches;
+        int conflicts;
+    }
+}
@@ -0,0 +1,195 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.Instrumentation.Counters;
+import fi.evident.carpenter.RewriteResult.StopReason;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Matcher that reports its attempts and rewrites to installed {@link MatcherMetrics}.
+ *
+ * @see Matcher#instrumented(String)
+ */
+final class InstrumentedMatcher<T> extends Matcher<T> {
+
+    @NotNull
+    private final Matcher<T> matcher;
+
+    @NotNull
+    private final String name;
+
+    InstrumentedMatcher(@NotNull Matcher<T> matcher, @NotNull String name) {
+        this.matcher = matcher;
+        this.name = name;
+    }
+
+    @NotNull
+    @Override
+    public Match<T> apply(@NotNull T value) {
+        MatcherMetrics metrics = Instrumentation.metrics();
+        Counters counters = Instrumentation.counters();
+        if (metrics == null || counters == null)
+            return matcher.apply(value);
+
+        int matches = counters.matches;
+        int conflicts = counters.conflicts;
+        Object started = metrics.matchStarting(name);
+        long start = System.nanoTime();
+
+        Match<T> match = matcher.apply(value);
+
+        long nanos = System.nanoTime() - start;
+        metrics.matchAttempted(started, name, match.isSuccess(), counters.matches - matches, counters.conflicts - conflicts, nanos);
+
+        return match;
+    }
+
+    @NotNull
+    @Override
+    public Stream<Match<T>> matchAll(@NotNull T value) {
+        return matcher.matchAll(value);
+    }
+
+    @NotNull
+    @Override
+    Optional<T> rewriteOnce(@NotNull T value, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        MatcherMetrics metrics = Instrumentation.metrics();
+        if (metrics == null || !metrics.measuresRewrites())
+            return super.rewriteOnce(value, rewriteGenerator);
+
+        Object started = metrics.rewriteStarting(name);
+        long start = System.nanoTime();
+        Optional<T> result = super.rewriteOnce(value, rewriteGenerator);
+        metrics.rewritten(started, name, result.isPresent() ? 1 : 0, System.nanoTime() - start);
+
+        return result;
+    }
+
+    /**
+     * Delegates to the wrapped matcher, so that it can use its own strategy for reaching the fixpoint,
+     * and observes the steps through the calls to the generator. Since the strategy need not call
+     * {@link #apply(Object)}, every step is reported as a successful match attempt, and the attempt
+     * that ends the loop as a failed one if the loop reached a fixpoint.
+     */
+    @NotNull
+    @Override
+    T rewriteToFixpoint(@NotNull T value, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator, @NotNull Budget budget) {
+        MatcherMetrics metrics = Instrumentation.metrics();
+        if (metrics == null)
+            return matcher.rewriteToFixpoint(value, rewriteGenerator, budget);
+
+        boolean measuresRewrites = metrics.measuresRewrites();
+        AttemptTracker attempts = AttemptTracker.start(metrics, name);
+        if (!measuresRewrites && attempts == null)
+            return matcher.rewriteToFixpoint(value, rewriteGenerator, budget);
+
+        int[] steps = { 0 };
+        Object started = measuresRewrites ? metrics.rewriteStarting(name) : null;
+        long start = System.nanoTime();
+
+        T result = matcher.rewriteToFixpoint(value, (match, rewrites) -> {
+            steps[0]++;
+            if (attempts != null)
+                attempts.attempted(true);
+            rewriteGenerator.accept(match, rewrites);
+        }, budget);
+
+        if (attempts != null)
+            attempts.finished(budget.getStopReason() != StopReason.FIXPOINT);
+        if (started != null)
+            metrics.rewrittenAll(started, name, steps[0], System.nanoTime() - start, budget.getStopReason());
+
+        return result;
+    }
+
+    /**
+     * Reports match attempts that are observed one after another, each covering the time and the
+     * counts since the previous one.
+     */
+    private static final class AttemptTracker {
+
+        @NotNull
+        private final MatcherMetrics metrics;
+
+        @NotNull
+        private final String name;
+
+        @NotNull
+        private final Counters counters;
+
+        @NotNull
+        private Object started;
+        private int matches;
+        private int conflicts;
+        private long start;
+
+        private AttemptTracker(@NotNull MatcherMetrics metrics, @NotNull String name, @NotNull Counters counters) {
+            this.metrics = metrics;
+            this.name = name;
+            this.counters = counters;
+            mark();
+        }
+
+        /**
+         * Returns a tracker for the attempts of given matcher, or {@code null} if matches are not measured.
+         */
+        @Nullable
+        static AttemptTracker start(@NotNull MatcherMetrics metrics, @NotNull String name) {
+            Counters counters = Instrumentation.counters();
+            return counters != null ? new AttemptTracker(metrics, name, counters) : null;
+        }
+
+        /**
+         * Reports an attempt that is followed by another one.
+         */
+        void attempted(boolean success) {
+            finished(success);
+            mark();
+        }
+
+        /**
+         * Reports the last attempt.
+         */
+        void finished(boolean success) {
+            long nanos = System.nanoTime() - start;
+            metrics.matchAttempted(started, name, success, counters.matches - matches, counters.conflicts - conflicts, nanos);
+        }
+
+        private void mark() {
+            started = metrics.matchStarting(name);
+            matches = counters.matches;
+            conflicts = counters.conflicts;
+            start = System.nanoTime();
+        }
+    }
+
+    /**
+     * Compiles the wrapped matcher, so that the instrumentation still sees every attempt and rewrite.
+     */
+    @NotNull
+    @Override
+    Matcher<T> compiled() {
+        return new InstrumentedMatcher<>(matcher.compile(), name);
+    }
+
+    @NotNull
+    @Override
+    public Shape getShape() {
+        return matcher.getShape();
+    }
+
+    @NotNull
+    @Override
+    String describe() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
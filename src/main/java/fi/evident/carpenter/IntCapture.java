@@ -0,0 +1,81 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Capture for primitive {@code int} values. Captured values are accessed with
+ * {@link Match#getInt(IntCapture)} and replaced with {@link MatchRewrites#replaceInt(IntCapture, int)}.
+ *
+ * Constraints store their values as objects, so binding a capture boxes the value. Values
+ * that don't bind captures are never boxed.
+ *
+ * @see Capture
+ */
+public final class IntCapture extends IntMatcher {
+
+    @NotNull
+    private final Capture<Integer> capture;
+
+    /**
+     * Constructs new capture.
+     */
+    public IntCapture() {
+        this.capture = new Capture<>();
+    }
+
+    /**
+     * Constructs new capture with given name for debugging.
+     */
+    public IntCapture(@NotNull String debugName) {
+        this.capture = new Capture<>(debugName);
+    }
+
+    @NotNull
+    @Override
+    public Constraints match(int value) {
+        return Constraints.forValue(capture, value);
+    }
+
+    @Override
+    public int rebuild(int value, @NotNull MatchRewrites rewrites) {
+        Integer replaced = rewrites.getReplacement(capture);
+        return replaced != null ? replaced : value;
+    }
+
+    /**
+     * Returns a matcher that binds this capture to values matched by given matcher.
+     */
+    @NotNull
+    public IntMatcher save(@NotNull IntMatcher matcher) {
+        return new IntMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(int value) {
+                Constraints constraints = matcher.match(value);
+                return constraints.isValid() ? constraints.merge(IntCapture.this.match(value)) : constraints;
+            }
+
+            @Override
+            public int rebuild(int value, @NotNull MatchRewrites rewrites) {
+                Integer replaced = rewrites.getReplacement(capture);
+                return replaced != null ? replaced : matcher.rebuild(value, rewrites);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return matcher.getShape();
+            }
+        };
+    }
+
+    @NotNull
+    Capture<Integer> getCapture() {
+        return capture;
+    }
+
+    @Override
+    public String toString() {
+        return capture.toString();
+    }
+}
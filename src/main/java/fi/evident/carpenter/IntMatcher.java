@@ -0,0 +1,119 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Matcher for primitive {@code int} values.
+ *
+ * Unlike {@code Matcher<Integer>}, matching never boxes the value: the matcher only produces the
+ * {@link Constraints} of the match, which are invalid if the value does not match. Int matchers
+ * are used to match the {@code int} children of values described by
+ * {@link fi.evident.carpenter.matchables.Matchables#matchableInt}.
+ *
+ * @see IntCapture
+ */
+public abstract class IntMatcher {
+
+    @NotNull
+    private static final IntMatcher ANY = predicate(v -> true);
+
+    /**
+     * Returns the constraints produced by matching given value or {@link Constraints#invalid()}
+     * if the value does not match.
+     */
+    @NotNull
+    public abstract Constraints match(int value);
+
+    /**
+     * Returns true iff given value matches.
+     */
+    public final boolean matches(int value) {
+        return match(value).isValid();
+    }
+
+    /**
+     * Returns the value that replaces given matched value when the match is rebuilt. Only
+     * captures can replace values, so the default implementation returns the value as it is.
+     */
+    public int rebuild(int value, @NotNull MatchRewrites rewrites) {
+        return value;
+    }
+
+    /**
+     * Returns the {@link Shape} of values this matcher can match.
+     *
+     * @see Matcher#getShape()
+     */
+    @NotNull
+    public Shape getShape() {
+        return Shape.any();
+    }
+
+    /**
+     * Returns a matcher that matches any value.
+     */
+    @NotNull
+    public static IntMatcher any() {
+        return ANY;
+    }
+
+    /**
+     * Returns a matcher that matches values equal to {@code expected}.
+     */
+    @NotNull
+    public static IntMatcher isEqual(int expected) {
+        return predicate(v -> v == expected, Shape.equalTo(expected));
+    }
+
+    /**
+     * Returns a matcher that matches values between {@code min} and {@code max}, inclusive.
+     */
+    @NotNull
+    public static IntMatcher between(int min, int max) {
+        return predicate(v -> v >= min && v <= max);
+    }
+
+    @NotNull
+    public static IntMatcher predicate(@NotNull IntPredicate predicate) {
+        return predicate(predicate, Shape.any());
+    }
+
+    @NotNull
+    private static IntMatcher predicate(@NotNull IntPredicate predicate, @NotNull Shape shape) {
+        return new IntMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(int value) {
+                return predicate.test(value) ? Constraints.empty() : Constraints.invalid();
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+        };
+    }
+
+    /**
+     * Returns a matcher that calls {@code alternative} if the match fails.
+     */
+    @NotNull
+    public final IntMatcher or(@NotNull IntMatcher alternative) {
+        return new IntMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(int value) {
+                Constraints constraints = IntMatcher.this.match(value);
+                return constraints.isValid() ? constraints : alternative.match(value);
+            }
+
+            @Override
+            public int rebuild(int value, @NotNull MatchRewrites rewrites) {
+                return IntMatcher.this.matches(value) ? IntMatcher.this.rebuild(value, rewrites) : alternative.rebuild(value, rewrites);
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Capture for primitive {@code long} values. Captured values are accessed with
+ * {@link Match#getLong(LongCapture)} and replaced with {@link MatchRewrites#replaceLong(LongCapture, long)}.
+ *
+ * Constraints store their values as objects, so binding a capture boxes the value. Values
+ * that don't bind captures are never boxed.
+ *
+ * @see Capture
+ */
+public final class LongCapture extends LongMatcher {
+
+    @NotNull
+    private final Capture<Long> capture;
+
+    /**
+     * Constructs new capture.
+     */
+    public LongCapture() {
+        this.capture = new Capture<>();
+    }
+
+    /**
+     * Constructs new capture with given name for debugging.
+     */
+    public LongCapture(@NotNull String debugName) {
+        this.capture = new Capture<>(debugName);
+    }
+
+    @NotNull
+    @Override
+    public Constraints match(long value) {
+        return Constraints.forValue(capture, value);
+    }
+
+    @Override
+    public long rebuild(long value, @NotNull MatchRewrites rewrites) {
+        Long replaced = rewrites.getReplacement(capture);
+        return replaced != null ? replaced : value;
+    }
+
+    /**
+     * Returns a matcher that binds this capture to values matched by given matcher.
+     */
+    @NotNull
+    public LongMatcher save(@NotNull LongMatcher matcher) {
+        return new LongMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(long value) {
+                Constraints constraints = matcher.match(value);
+                return constraints.isValid() ? constraints.merge(LongCapture.this.match(value)) : constraints;
+            }
+
+            @Override
+            public long rebuild(long value, @NotNull MatchRewrites rewrites) {
+                Long replaced = rewrites.getReplacement(capture);
+                return replaced != null ? replaced : matcher.rebuild(value, rewrites);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return matcher.getShape();
+            }
+        };
+    }
+
+    @NotNull
+    Capture<Long> getCapture() {
+        return capture;
+    }
+
+    @Override
+    public String toString() {
+        return capture.toString();
+    }
+}
@@ -0,0 +1,119 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.LongPredicate;
+
+/**
+ * Matcher for primitive {@code long} values.
+ *
+ * Unlike {@code Matcher<Long>}, matching never boxes the value: the matcher only produces the
+ * {@link Constraints} of the match, which are invalid if the value does not match. Long matchers
+ * are used to match the {@code long} children of values described by
+ * {@link fi.evident.carpenter.matchables.Matchables#matchableLong}.
+ *
+ * @see LongCapture
+ */
+public abstract class LongMatcher {
+
+    @NotNull
+    private static final LongMatcher ANY = predicate(v -> true);
+
+    /**
+     * Returns the constraints produced by matching given value or {@link Constraints#invalid()}
+     * if the value does not match.
+     */
+    @NotNull
+    public abstract Constraints match(long value);
+
+    /**
+     * Returns true iff given value matches.
+     */
+    public final boolean matches(long value) {
+        return match(value).isValid();
+    }
+
+    /**
+     * Returns the value that replaces given matched value when the match is rebuilt. Only
+     * captures can replace values, so the default implementation returns the value as it is.
+     */
+    public long rebuild(long value, @NotNull MatchRewrites rewrites) {
+        return value;
+    }
+
+    /**
+     * Returns the {@link Shape} of values this matcher can match.
+     *
+     * @see Matcher#getShape()
+     */
+    @NotNull
+    public Shape getShape() {
+        return Shape.any();
+    }
+
+    /**
+     * Returns a matcher that matches any value.
+     */
+    @NotNull
+    public static LongMatcher any() {
+        return ANY;
+    }
+
+    /**
+     * Returns a matcher that matches values equal to {@code expected}.
+     */
+    @NotNull
+    public static LongMatcher isEqual(long expected) {
+        return predicate(v -> v == expected, Shape.equalTo(expected));
+    }
+
+    /**
+     * Returns a matcher that matches values between {@code min} and {@code max}, inclusive.
+     */
+    @NotNull
+    public static LongMatcher between(long min, long max) {
+        return predicate(v -> v >= min && v <= max);
+    }
+
+    @NotNull
+    public static LongMatcher predicate(@NotNull LongPredicate predicate) {
+        return predicate(predicate, Shape.any());
+    }
+
+    @NotNull
+    private static LongMatcher predicate(@NotNull LongPredicate predicate, @NotNull Shape shape) {
+        return new LongMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(long value) {
+                return predicate.test(value) ? Constraints.empty() : Constraints.invalid();
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+        };
+    }
+
+    /**
+     * Returns a matcher that calls {@code alternative} if the match fails.
+     */
+    @NotNull
+    public final LongMatcher or(@NotNull LongMatcher alternative) {
+        return new LongMatcher() {
+            @NotNull
+            @Override
+            public Constraints match(long value) {
+                Constraints constraints = LongMatcher.this.match(value);
+                return constraints.isValid() ? constraints : alternative.match(value);
+            }
+
+            @Override
+            public long rebuild(long value, @NotNull MatchRewrites rewrites) {
+                return LongMatcher.this.matches(value) ? LongMatcher.this.rebuild(value, rewrites) : alternative.rebuild(value, rewrites);
+            }
+        };
+    }
+}
@@ -2,20 +2,27 @@ package fi.evident.carpenter;
 
 import fi.evident.carpenter.functions.Function3;
 import fi.evident.carpenter.functions.Function4;
-import fi.evident.carpenter.utils.CollectionUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
 
 /**
  * Represents a match (or match failure) of given type. Successful matches
  * can be used to ask values of {@link Capture}s using {@link #getValue(Capture)}
  * or the matched object can be rewritten using {@link #rebuild(MatchRewrites)}.
+ *
+ * Matches are immutable, so they can be shared between threads as long as the
+ * matched values are not modified.
  */
 public abstract class Match<T> {
 
@@ -36,6 +43,27 @@ public abstract class Match<T> {
     @NotNull
     public abstract <V> V getValue(@NotNull Capture<V> capture);
 
+    /**
+     * Returns value of given {@link IntCapture} in the object graph.
+     */
+    public final int getInt(@NotNull IntCapture capture) {
+        return getValue(capture.getCapture());
+    }
+
+    /**
+     * Returns value of given {@link LongCapture} in the object graph.
+     */
+    public final long getLong(@NotNull LongCapture capture) {
+        return getValue(capture.getCapture());
+    }
+
+    /**
+     * Returns value of given {@link DoubleCapture} in the object graph.
+     */
+    public final double getDouble(@NotNull DoubleCapture capture) {
+        return getValue(capture.getCapture());
+    }
+
     /**
      * Returns the merged constraints of all given matches.
      */
@@ -44,8 +72,13 @@ public abstract class Match<T> {
         return matches.stream().map(Match::getConstraints).collect(Constraints.mergeAll());
     }
 
+    /**
+     * Returns the constraints of this match. Failed matches always have invalid constraints,
+     * so combinators can thread a running set of constraints through the matches of their
+     * children and stop as soon as the merged constraints become invalid.
+     */
     @NotNull
-    protected abstract Constraints getConstraints();
+    public abstract Constraints getConstraints();
 
     /**
      * Returns a match representing failure.
@@ -73,7 +106,75 @@ public abstract class Match<T> {
      */
     @NotNull
     public static <T> Match<T> from(@NotNull Function<MatchRewrites, T> rebuilder, @NotNull Constraints constraints) {
-        return constraints.isValid() ? new SuccessMatch<>(rebuilder, constraints) : failure();
+        return constraints.isValid() ? new OpaqueMatch<>(null, rebuilder, constraints) : failure();
+    }
+
+    /**
+     * Creates a new Match for {@code original} using given constraints and given function for rebuilding
+     * the match. If the rewrites don't replace any capture bound in {@code constraints}, rebuilding the
+     * match returns {@code original} as it is without calling {@code rebuilder}.
+     */
+    @NotNull
+    public static <T> Match<T> from(@NotNull T original, @NotNull Function<MatchRewrites, T> rebuilder, @NotNull Constraints constraints) {
+        return constraints.isValid() ? new OpaqueMatch<>(original, rebuilder, constraints) : failure();
+    }
+
+    /**
+     * Creates a new Match for {@code original} that is rebuilt by applying {@code builder} to the rebuilt
+     * values of {@code children}. Unlike a rebuilding function, the builder does not need to capture the
+     * child matches, so a single builder (typically a constructor reference) can be shared by all matches
+     * of the same kind. Like with {@link #from(Object, Function, Constraints)}, {@code original} is returned
+     * as it is if the rewrites don't replace any capture bound in {@code constraints}.
+     *
+     * @param constraints merged constraints of the children
+     */
+    @NotNull
+    public static <T> Match<T> fromChildren(@NotNull T original, @NotNull Function<Object[], T> builder, @NotNull Constraints constraints, @NotNull Match<?>... children) {
+        return node(original, builder, constraints, children);
+    }
+
+    /**
+     * Returns a lazy stream of matches for {@code original}, one for every combination of the alternatives
+     * of its children whose constraints agree. The stream of alternatives for child {@code i} is obtained
+     * by calling {@code children} with {@code i}, and only when it's needed.
+     *
+     * @see Matcher#matchAll(Object)
+     * @see #fromChildren(Object, Function, Constraints, Match[])
+     */
+    @NotNull
+    public static <T> Stream<Match<T>> allFromChildren(@NotNull T original, @NotNull Function<Object[], T> builder, int arity, @NotNull IntFunction<? extends Stream<? extends Match<?>>> children) {
+        return Backtracking.stream(Backtracking.combinations(arity, children)).map(c -> node(original, builder, c.constraints, c.matches));
+    }
+
+    @NotNull
+    private static <T> Match<T> node(@Nullable T original, @NotNull Function<Object[], T> builder, @NotNull Constraints constraints, @NotNull Match<?>[] children) {
+        if (constraints.isInvalid()) return failure();
+
+        for (Match<?> child : children)
+            if (child.isFailure())
+                return failure();
+
+        return new NodeMatch<>(original, builder, null, children, constraints);
+    }
+
+    /**
+     * Creates a match for a value bound to {@code capture}. Rebuilding the match returns the replacement
+     * of the capture, if any, or the value itself.
+     */
+    @NotNull
+    static <T> Match<T> fromCapture(@NotNull Capture<T> capture, @Nullable T value, @NotNull Constraints constraints) {
+        return constraints.isValid() ? new LeafMatch<>(value, capture, constraints) : failure();
+    }
+
+    /**
+     * Creates a match that wraps {@code match} of {@code value} and binds it to {@code capture}. Rebuilding
+     * the match returns the replacement of the capture, if any, or the rebuilt {@code match}.
+     */
+    @NotNull
+    static <T> Match<T> fromSavedCapture(@NotNull Capture<T> capture, @NotNull T value, @NotNull Match<T> match, @NotNull Constraints constraints) {
+        if (match.isFailure() || constraints.isInvalid()) return failure();
+
+        return new NodeMatch<>(value, null, capture, new Match<?>[] { match }, constraints);
     }
 
     /**
@@ -87,7 +188,7 @@ public abstract class Match<T> {
      */
     @NotNull
     public static <T> Match<T> constant(T value) {
-        return from(rewrites -> value, Constraints.empty());
+        return new LeafMatch<>(value, null, Constraints.empty());
     }
 
     /**
@@ -97,77 +198,195 @@ public abstract class Match<T> {
     public abstract Optional<T> rewrite(@NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator);
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <T, V> Match<T> from(@NotNull Function<V, T> builder, @NotNull Match<V> match) {
         if (match.isFailure()) return failure();
 
-        return from(rewrites -> builder.apply(match.rebuild(rewrites)), match.getConstraints());
+        return node(null, args -> builder.apply((V) args[0]), match.getConstraints(), new Match<?>[] { match });
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <T, V1, V2> Match<T> from(@NotNull BiFunction<V1, V2, T> builder, @NotNull Match<V1> m1, @NotNull Match<V2> m2) {
         if (m1.isFailure() || m2.isFailure()) return failure();
 
         Constraints constraints = m1.getConstraints().merge(m2.getConstraints());
-        return from(rewrites -> builder.apply(m1.rebuild(rewrites), m2.rebuild(rewrites)), constraints);
+        return node(null, args -> builder.apply((V1) args[0], (V2) args[1]), constraints, new Match<?>[] { m1, m2 });
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <T, V1, V2, V3> Match<T> from(@NotNull Function3<V1, V2, V3, T> builder, @NotNull Match<V1> m1, @NotNull Match<V2> m2, @NotNull Match<V3> m3) {
         if (m1.isFailure() || m2.isFailure() || m3.isFailure()) return failure();
 
         Constraints constraints = m1.getConstraints().merge(m2.getConstraints()).merge(m3.getConstraints());
-        return from(rewrites -> builder.apply(m1.rebuild(rewrites), m2.rebuild(rewrites), m3.rebuild(rewrites)), constraints);
+        return node(null, args -> builder.apply((V1) args[0], (V2) args[1], (V3) args[2]), constraints, new Match<?>[] { m1, m2, m3 });
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <T, V1, V2, V3, V4> Match<T> from(@NotNull Function4<V1, V2, V3, V4, T> builder, @NotNull Match<V1> m1, @NotNull Match<V2> m2, @NotNull Match<V3> m3, @NotNull Match<V4> m4) {
         if (m1.isFailure() || m2.isFailure() || m3.isFailure() || m4.isFailure()) return failure();
 
         Constraints constraints = m1.getConstraints().merge(m2.getConstraints()).merge(m3.getConstraints()).merge(m4.getConstraints());
-        return from(rewrites -> builder.apply(m1.rebuild(rewrites), m2.rebuild(rewrites), m3.rebuild(rewrites), m4.rebuild(rewrites)), constraints);
+        return node(null, args -> builder.apply((V1) args[0], (V2) args[1], (V3) args[2], (V4) args[3]), constraints, new Match<?>[] { m1, m2, m3, m4 });
     }
 
     @NotNull
     public static <T, V> Match<T> fromList(@NotNull Function<List<V>, T> builder, @NotNull List<Match<V>> matches) {
-        Constraints constraints = mergedConstraints(matches);
-        return from(rewrites -> builder.apply(CollectionUtils.map(matches, m -> m.rebuild(rewrites))), constraints);
+        return fromList(null, builder, matches, mergedConstraints(matches));
+    }
+
+    /**
+     * Variant of {@link #fromList(Function, List)} for callers that have already merged
+     * the constraints of {@code matches} while matching them.
+     *
+     * @param original the matched value or {@code null} if it's not known
+     */
+    @NotNull
+    static <T, V> Match<T> fromList(@Nullable T original, @NotNull Function<List<V>, T> builder, @NotNull List<Match<V>> matches, @NotNull Constraints constraints) {
+        Match<?>[] children = matches.toArray(new Match<?>[matches.size()]);
+        return node(original, args -> builder.apply(listOf(args, args.length)), constraints, children);
     }
 
     @NotNull
     public static <T, V, V2> Match<T> fromList(@NotNull BiFunction<List<V>, V2, T> builder, @NotNull List<Match<V>> matches, @NotNull Match<V2> m2) {
+        return fromList(null, builder, matches, mergedConstraints(matches), m2);
+    }
+
+    /**
+     * Variant of {@link #fromList(BiFunction, List, Match)} for callers that have already merged
+     * the constraints of {@code matches} while matching them.
+     *
+     * @param original the matched value or {@code null} if it's not known
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    static <T, V, V2> Match<T> fromList(@Nullable T original, @NotNull BiFunction<List<V>, V2, T> builder, @NotNull List<Match<V>> matches, @NotNull Constraints matchesConstraints, @NotNull Match<V2> m2) {
         if (m2.isFailure()) return failure();
 
-        Constraints constraints = mergedConstraints(matches).merge(m2.getConstraints());
-        return from(rewrites -> builder.apply(CollectionUtils.map(matches, m -> m.rebuild(rewrites)), m2.rebuild(rewrites)), constraints);
+        int n = matches.size();
+        Match<?>[] children = matches.toArray(new Match<?>[n + 1]);
+        children[n] = m2;
+
+        Constraints constraints = matchesConstraints.merge(m2.getConstraints());
+        return node(original, args -> builder.apply(listOf(args, n), (V2) args[n]), constraints, children);
     }
 
     @NotNull
     public static <T> Match<List<T>> fromList(@NotNull List<Match<T>> matches) {
-        return from(rewrites -> CollectionUtils.map(matches, m -> m.rebuild(rewrites)), mergedConstraints(matches));
+        return fromList(Function.identity(), matches);
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <V> List<V> listOf(@NotNull Object[] values, int count) {
+        List<V> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            list.add((V) values[i]);
+        return list;
     }
 
     /**
      * Represents a successful match.
+     *
+     * Instead of a chain of closures, successful matches form a tree: {@link NodeMatch}es hold their
+     * child matches and a builder that constructs the value from the rebuilt children, and leaves
+     * either produce their value directly or through an opaque rebuilding function. The tree is
+     * rebuilt by a single loop with an explicit stack, so rebuilding deep matches doesn't recurse
+     * and retains nothing but the matches themselves.
      */
-    private static final class SuccessMatch<T> extends Match<T> {
+    private abstract static class SuccessMatch<T> extends Match<T> {
 
+        /**
+         * Marks a match that can't produce its value without rebuilding its children.
+         */
         @NotNull
-        private final Function<MatchRewrites, T> rebuilder;
+        static final Object PENDING = new Object();
+
+        /**
+         * The matched value or {@code null} if it's not known.
+         */
+        @Nullable
+        final T original;
 
         @NotNull
-        private final Constraints constraints;
+        final Constraints constraints;
 
-        private SuccessMatch(@NotNull Function<MatchRewrites, T> rebuilder, @NotNull Constraints constraints) {
+        SuccessMatch(@Nullable T original, @NotNull Constraints constraints) {
             assert constraints.isValid();
 
-            this.rebuilder = rebuilder;
+            this.original = original;
             this.constraints = constraints;
+
+            Instrumentation.matchCreated();
         }
 
+        /**
+         * Returns the rebuilt value if it can be produced without rebuilding children,
+         * otherwise returns {@link #PENDING}.
+         */
+        @Nullable
+        abstract Object rebuildDirectly(@NotNull MatchRewrites rewrites);
+
         @NotNull
         @Override
+        @SuppressWarnings("unchecked")
         public T rebuild(@NotNull MatchRewrites rewrites) {
-            return rebuilder.apply(rewrites);
+            Object value = rebuildDirectly(rewrites);
+            return (T) (value != PENDING ? value : rebuildChildren((NodeMatch<?>) this, rewrites));
+        }
+
+        @Nullable
+        private static Object rebuildChildren(@NotNull NodeMatch<?> root, @NotNull MatchRewrites rewrites) {
+            // Post-order traversal of the match tree: every frame has a node, the index of its
+            // next child and the array collecting the rebuilt children.
+            NodeMatch<?>[] nodes = new NodeMatch<?>[16];
+            int[] next = new int[16];
+            Object[][] args = new Object[16][];
+            int top = 0;
+
+            nodes[0] = root;
+            args[0] = new Object[root.children.length];
+
+            while (true) {
+                NodeMatch<?> node = nodes[top];
+                int index = next[top];
+
+                if (index < node.children.length) {
+                    next[top] = index + 1;
+
+                    Match<?> child = node.children[index];
+                    Object value = child instanceof SuccessMatch ? ((SuccessMatch<?>) child).rebuildDirectly(rewrites) : child.rebuild(rewrites);
+
+                    if (value != PENDING) {
+                        args[top][index] = value;
+                    } else {
+                        NodeMatch<?> childNode = (NodeMatch<?>) child;
+
+                        if (++top == nodes.length) {
+                            nodes = Arrays.copyOf(nodes, top * 2);
+                            next = Arrays.copyOf(next, top * 2);
+                            args = Arrays.copyOf(args, top * 2);
+                        }
+
+                        nodes[top] = childNode;
+                        next[top] = 0;
+                        args[top] = new Object[childNode.children.length];
+                    }
+                } else {
+                    Object value = node.build(args[top]);
+
+                    nodes[top] = null;
+                    args[top] = null;
+
+                    if (top == 0)
+                        return value;
+
+                    top--;
+                    args[top][next[top] - 1] = value;
+                }
+            }
         }
 
         @Override
@@ -178,7 +397,7 @@ public abstract class Match<T> {
 
         @NotNull
         @Override
-        protected Constraints getConstraints() {
+        public Constraints getConstraints() {
             return constraints;
         }
 
@@ -196,9 +415,110 @@ public abstract class Match<T> {
         @NotNull
         @Override
         public Optional<T> rewrite(@NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
-            MatchRewrites rewrites = new MatchRewrites();
-            rewriteGenerator.accept(this, rewrites);
-            return Optional.of(rebuild(rewrites));
+            MatchRewrites rewrites = MatchRewrites.acquire();
+            try {
+                rewriteGenerator.accept(this, rewrites);
+                return Optional.of(rebuild(rewrites));
+            } finally {
+                rewrites.release();
+            }
+        }
+    }
+
+    /**
+     * A match whose value is known up front, optionally bound to a capture that can replace it.
+     */
+    private static final class LeafMatch<T> extends SuccessMatch<T> {
+
+        @Nullable
+        private final Capture<T> capture;
+
+        LeafMatch(@Nullable T value, @Nullable Capture<T> capture, @NotNull Constraints constraints) {
+            super(value, constraints);
+            this.capture = capture;
+        }
+
+        @Nullable
+        @Override
+        Object rebuildDirectly(@NotNull MatchRewrites rewrites) {
+            if (capture != null) {
+                T replacement = rewrites.getReplacement(capture);
+                if (replacement != null)
+                    return replacement;
+            }
+
+            return original;
+        }
+    }
+
+    /**
+     * A match that is rebuilt by applying {@link #builder} to its rebuilt children. Matches without
+     * a builder have a single child whose value is used as it is, unless {@link #capture} replaces it.
+     */
+    private static final class NodeMatch<T> extends SuccessMatch<T> {
+
+        @Nullable
+        private final Function<Object[], T> builder;
+
+        @Nullable
+        private final Capture<T> capture;
+
+        @NotNull
+        private final Match<?>[] children;
+
+        NodeMatch(@Nullable T original, @Nullable Function<Object[], T> builder, @Nullable Capture<T> capture, @NotNull Match<?>[] children, @NotNull Constraints constraints) {
+            super(original, constraints);
+
+            assert builder != null || children.length == 1;
+
+            this.builder = builder;
+            this.capture = capture;
+            this.children = children;
+        }
+
+        @Nullable
+        @Override
+        Object rebuildDirectly(@NotNull MatchRewrites rewrites) {
+            if (capture != null) {
+                T replacement = rewrites.getReplacement(capture);
+                if (replacement != null)
+                    return replacement;
+            }
+
+            // Every capture that could replace a part of this match is bound in our constraints,
+            // so if none of them is replaced, rebuilding would just produce a copy of the original.
+            if (original != null && !rewrites.affects(constraints))
+                return original;
+
+            return PENDING;
+        }
+
+        @Nullable
+        Object build(@NotNull Object[] args) {
+            return builder != null ? builder.apply(args) : args[0];
+        }
+    }
+
+    /**
+     * A match that is rebuilt by a function that rebuilds its children on its own.
+     */
+    private static final class OpaqueMatch<T> extends SuccessMatch<T> {
+
+        @NotNull
+        private final Function<MatchRewrites, T> rebuilder;
+
+        OpaqueMatch(@Nullable T original, @NotNull Function<MatchRewrites, T> rebuilder, @NotNull Constraints constraints) {
+            super(original, constraints);
+            this.rebuilder = rebuilder;
+        }
+
+        @Nullable
+        @Override
+        Object rebuildDirectly(@NotNull MatchRewrites rewrites) {
+            if (original != null && !rewrites.affects(constraints))
+                return original;
+
+            return rebuilder.apply(rewrites);
         }
     }
 
@@ -221,7 +541,7 @@ public abstract class Match<T> {
 
         @NotNull
         @Override
-        protected Constraints getConstraints() {
+        public Constraints getConstraints() {
             return Constraints.invalid();
         }
 
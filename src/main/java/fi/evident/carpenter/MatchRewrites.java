@@ -1,23 +1,186 @@
 package fi.evident.carpenter;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.Optional;
 
+/**
+ * Replacements for captured values, collected by a rewrite generator and used when rebuilding a match.
+ *
+ * Replacements are stored in slots indexed by the dense ids of the captures, so looking them up
+ * doesn't hash or allocate. Since the instances are kept per thread and ids keep growing when
+ * captures are created dynamically, only ids below {@link #MAX_SLOTS} get slots and replacements
+ * of the rest are found by scanning the few replaced captures.
+ *
+ * {@link Matcher#rewrite} and {@link Matcher#rewriteAll} reuse a single instance per thread for
+ * all their rewrites, so the instance passed to a rewrite generator is valid only until the
+ * generator returns and the match has been rebuilt.
+ */
 public final class MatchRewrites {
 
+    /**
+     * Number of slots at most, which bounds the memory kept by every thread.
+     */
+    static final int MAX_SLOTS = 1024;
+
+    @NotNull
+    private static final Object[] EMPTY_SLOTS = new Object[0];
+
     @NotNull
-    private final IdentityHashMap<Capture<?>, Object> replaced = new IdentityHashMap<>();
+    private static final ThreadLocal<MatchRewrites> buffers = ThreadLocal.withInitial(MatchRewrites::new);
+
+    /**
+     * Replacement values indexed by {@link Capture#getId()}, {@code null} for captures that are not replaced.
+     */
+    @NotNull
+    private Object[] slots = EMPTY_SLOTS;
+
+    /**
+     * Replaced captures in the order they were first replaced, used to find the filled slots.
+     */
+    @NotNull
+    private Capture<?>[] replaced = new Capture<?>[4];
+
+    /**
+     * Replacements of the captures in {@link #replaced} whose ids don't have slots, {@code null} for the others.
+     */
+    @NotNull
+    private Object[] unslottedValues = new Object[4];
+
+    private int replacedCount;
+
+    /**
+     * Union of {@link Constraints#maskBit(Capture)} of all replaced captures.
+     */
+    private long mask;
+
+    private boolean inUse;
 
     public <V> void replaceValue(@NotNull Capture<V> capture, @NotNull V value) {
-        replaced.put(capture, value);
+        int id = capture.getId();
+        if (id < MAX_SLOTS) {
+            if (id >= slots.length)
+                slots = Arrays.copyOf(slots, Math.min(Math.max(id + 1, slots.length * 2), MAX_SLOTS));
+
+            if (slots[id] == null)
+                addReplaced(capture);
+
+            slots[id] = value;
+        } else {
+            int index = indexOfReplaced(capture);
+            if (index < 0)
+                index = addReplaced(capture);
+
+            unslottedValues[index] = value;
+        }
+
+        mask |= Constraints.maskBit(capture);
+    }
+
+    private int addReplaced(@NotNull Capture<?> capture) {
+        if (replacedCount == replaced.length) {
+            replaced = Arrays.copyOf(replaced, replacedCount * 2);
+            unslottedValues = Arrays.copyOf(unslottedValues, replacedCount * 2);
+        }
+
+        replaced[replacedCount] = capture;
+        return replacedCount++;
+    }
+
+    private int indexOfReplaced(@NotNull Capture<?> capture) {
+        for (int i = 0; i < replacedCount; i++)
+            if (replaced[i] == capture)
+                return i;
+        return -1;
+    }
+
+    public void replaceInt(@NotNull IntCapture capture, int value) {
+        replaceValue(capture.getCapture(), value);
+    }
+
+    public void replaceLong(@NotNull LongCapture capture, long value) {
+        replaceValue(capture.getCapture(), value);
+    }
+
+    public void replaceDouble(@NotNull DoubleCapture capture, double value) {
+        replaceValue(capture.getCapture(), value);
+    }
+
+    /**
+     * Returns true iff some capture bound in given constraints has been replaced.
+     */
+    boolean affects(@NotNull Constraints constraints) {
+        if ((mask & constraints.getMask()) == 0)
+            return false;
+
+        for (int i = 0; i < replacedCount; i++)
+            if (constraints.containsKey(replaced[i]))
+                return true;
+
+        return false;
     }
 
     @NotNull
     public <V> Optional<V> getReplacedValue(@NotNull Capture<V> capture) {
-        @SuppressWarnings("unchecked")
-        V value = (V) replaced.get(capture);
-        return Optional.ofNullable(value);
+        return Optional.ofNullable(getReplacement(capture));
+    }
+
+    /**
+     * Returns the replacement of given capture or {@code null} if it's not replaced.
+     * Unlike {@link #getReplacedValue(Capture)}, doesn't allocate.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <V> V getReplacement(@NotNull Capture<V> capture) {
+        if ((mask & Constraints.maskBit(capture)) == 0)
+            return null;
+
+        int id = capture.getId();
+        if (id < MAX_SLOTS)
+            return id < slots.length ? (V) slots[id] : null;
+
+        int index = indexOfReplaced(capture);
+        return index >= 0 ? (V) unslottedValues[index] : null;
+    }
+
+    /**
+     * Returns the rewrites of the current thread, cleared and ready for use. If they are in
+     * use already, because a rewrite generator rewrites something on its own, returns new rewrites.
+     * The rewrites must be returned with {@link #release()} after the rewrite.
+     */
+    @NotNull
+    static MatchRewrites acquire() {
+        MatchRewrites rewrites = buffers.get();
+        if (rewrites.inUse)
+            return new MatchRewrites();
+
+        rewrites.inUse = true;
+        return rewrites;
+    }
+
+    /**
+     * Clears these rewrites and makes them available for {@link #acquire()} again.
+     */
+    void release() {
+        clear();
+        inUse = false;
+    }
+
+    /**
+     * Removes all replacements, clearing only the slots that have been filled.
+     */
+    void clear() {
+        for (int i = 0; i < replacedCount; i++) {
+            int id = replaced[i].getId();
+            if (id < MAX_SLOTS)
+                slots[id] = null;
+            else
+                unslottedValues[i] = null;
+            replaced[i] = null;
+        }
+        replacedCount = 0;
+        mask = 0;
     }
 }
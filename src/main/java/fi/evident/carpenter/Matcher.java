@@ -1,28 +1,163 @@
 package fi.evident.carpenter;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
+import static fi.evident.carpenter.utils.CollectionUtils.map;
+
+/**
+ * Matches values, producing a {@link Match} that can be used to read captured values
+ * and to rewrite the value.
+ *
+ * Matchers built with {@link Matchers}, {@link Capture}s and matchables are immutable and hold no
+ * state between matches, so a matcher graph (along with {@link Rule}s, {@link RuleSet}s and
+ * {@link ConsecutiveRuleSet}s built from it) can be built once and shared by any number of threads.
+ * This holds as long as the functions given to the matchers, such as predicates and rewrite
+ * generators, are thread-safe as well.
+ */
 public abstract class Matcher<T> implements Function<T,Match<T>> {
 
     @Override
     @NotNull
     public abstract Match<T> apply(@NotNull T t);
 
+    /**
+     * Returns the {@link Shape} of values this matcher can match. The default implementation
+     * returns {@link Shape#any()}, which is always correct, but prevents indexing the matcher.
+     */
+    @NotNull
+    public Shape getShape() {
+        return Shape.any();
+    }
+
     @NotNull
     public static <T> Matcher<T> from(@NotNull Function<T, Match<T>> function) {
+        return from(function, Shape.any());
+    }
+
+    /**
+     * Creates a matcher from given function that only matches values of given shape.
+     */
+    @NotNull
+    public static <T> Matcher<T> from(@NotNull Function<T, Match<T>> function, @NotNull Shape shape) {
+        return new Matcher<T>() {
+            @NotNull
+            @Override
+            public Match<T> apply(@NotNull T t) {
+                return function.apply(t);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+        };
+    }
+
+    /**
+     * Creates a matcher from given functions that only matches values of given shape. The first function
+     * implements {@link #apply(Object)} and the second {@link #matchAll(Object)}.
+     */
+    @NotNull
+    public static <T> Matcher<T> from(@NotNull Function<T, Match<T>> function, @NotNull Function<T, Stream<Match<T>>> allMatches, @NotNull Shape shape) {
+        return new Matcher<T>() {
+            @NotNull
+            @Override
+            public Match<T> apply(@NotNull T t) {
+                return function.apply(t);
+            }
+
+            @NotNull
+            @Override
+            public Stream<Match<T>> matchAll(@NotNull T t) {
+                return allMatches.apply(t);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+        };
+    }
+
+    /**
+     * Creates a matcher for instances of {@code type} whose children, accessed through {@code getters}, are
+     * matched by corresponding {@code children}. The functions implement {@link #apply(Object)} and
+     * {@link #matchAll(Object)} and must be equivalent to matching the children from left to right and
+     * combining their matches with {@link Match#fromChildren(Object, Function, Constraints, Match[])} and
+     * {@code builder}. In addition to the {@link #getShape() shape} of the matcher, the structure is used
+     * by {@link #compile()}.
+     */
+    @NotNull
+    public static <T> Matcher<T> fromNode(@NotNull Class<?> type,
+                                          @NotNull List<? extends Function<?, ?>> getters,
+                                          @NotNull Function<Object[], T> builder,
+                                          @NotNull List<? extends Matcher<?>> children,
+                                          @NotNull Function<T, Match<T>> function,
+                                          @NotNull Function<T, Stream<Match<T>>> allMatches) {
+        Shape shape = Shape.node(type, getters, map(children, Matcher::getShape));
+
         return new Matcher<T>() {
             @NotNull
             @Override
             public Match<T> apply(@NotNull T t) {
                 return function.apply(t);
             }
+
+            @NotNull
+            @Override
+            public Stream<Match<T>> matchAll(@NotNull T t) {
+                return allMatches.apply(t);
+            }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+
+            @NotNull
+            @Override
+            Pattern toPattern() {
+                return Pattern.node(type, getters, builder, map(children, Pattern::of));
+            }
         };
     }
 
+    /**
+     * Returns all successful matches of this matcher against given value as a lazy stream.
+     *
+     * While {@link #apply(Object)} commits to the first match of every sub-matcher and fails if their
+     * constraints conflict, composite matchers backtrack here: they try the next alternatives of their
+     * sub-matchers until the constraints agree, and alternatives of {@link #or(Matcher)} or elements of
+     * {@link Matchers#contains(Matcher)} beyond the first are produced as well. Alternatives are computed
+     * only as the stream is consumed, so taking just the first match does only the work needed for it.
+     *
+     * The default implementation returns the result of {@link #apply(Object)} if it's successful.
+     */
+    @NotNull
+    public Stream<Match<T>> matchAll(@NotNull T value) {
+        Match<T> match = apply(value);
+        return match.isSuccess() ? Stream.of(match) : Stream.empty();
+    }
+
+    /**
+     * Returns a matcher that matches like this matcher, but returns the first match of
+     * {@link #matchAll(Object)} instead of failing when the first alternatives conflict.
+     */
+    @NotNull
+    public final Matcher<T> backtracking() {
+        return from(value -> matchAll(value).findFirst().orElse(Match.failure()), this::matchAll, getShape());
+    }
+
     /**
      * Rewrites matches until matcher does not provide new matches. If no matches
      * are produced at all, returns the original value.
@@ -31,13 +166,41 @@ public abstract class Matcher<T> implements Function<T,Match<T>> {
      */
     @NotNull
     public final T rewriteAll(@NotNull T value, @NotNull BiConsumer<Match<T>,MatchRewrites> rewriteGenerator) {
+        return rewriteToFixpoint(value, rewriteGenerator, Budget.unlimited());
+    }
+
+    /**
+     * Rewrites matches like {@link #rewriteAll(Object, BiConsumer)} until matcher does not
+     * provide new matches or given limits are reached.
+     */
+    @NotNull
+    public final RewriteResult<T> rewriteAll(@NotNull T value, @NotNull BiConsumer<Match<T>,MatchRewrites> rewriteGenerator, @NotNull RewriteLimits limits) {
+        Budget budget = limits.start();
+        return budget.result(rewriteToFixpoint(value, rewriteGenerator, budget));
+    }
+
+    /**
+     * Implementation of {@link #rewriteAll(Object, BiConsumer)}. Matchers that know which parts of
+     * the value their rewrites can change may override this to avoid matching the unchanged parts
+     * again, as long as the result stays identical to this implementation and the budget is
+     * consulted before every rewrite.
+     */
+    @NotNull
+    T rewriteToFixpoint(@NotNull T value, @NotNull BiConsumer<Match<T>,MatchRewrites> rewriteGenerator, @NotNull Budget budget) {
         T lastValue = value;
         while (true) {
+            if (!budget.allowsStep(lastValue)) {
+                if (apply(lastValue).isFailure())
+                    budget.reachedFixpoint();
+                return lastValue;
+            }
+
             T rewritten = rewrite(lastValue, rewriteGenerator).orElse(null);
-            if (rewritten != null)
-                lastValue = rewritten;
-            else
+            if (rewritten == null)
                 return lastValue;
+
+            budget.stepTaken();
+            lastValue = rewritten;
         }
     }
 
@@ -47,15 +210,77 @@ public abstract class Matcher<T> implements Function<T,Match<T>> {
      */
     @NotNull
     public final Optional<T> rewrite(@NotNull T value, @NotNull BiConsumer<Match<T>,MatchRewrites> rewriteGenerator) {
+        return rewriteOnce(value, rewriteGenerator);
+    }
+
+    /**
+     * Implementation of {@link #rewrite(Object, BiConsumer)}.
+     */
+    @NotNull
+    Optional<T> rewriteOnce(@NotNull T value, @NotNull BiConsumer<Match<T>,MatchRewrites> rewriteGenerator) {
         return apply(value).rewrite(rewriteGenerator);
     }
 
     /**
-     * Returns a matcher that calls {@code alternative} if the match fails.
+     * Returns a matcher that matches exactly like this matcher, but runs as a single {@link java.lang.invoke.MethodHandle}
+     * generated for the whole matcher tree instead of calling the matchers of the tree one by one. The handle
+     * consists of type tests, getter calls, equality checks and stores of captured values, so the JIT can inline
+     * it into straight-line code, and a successful match creates a single {@link Match} instead of one for every
+     * node of the tree.
+     *
+     * Matchers built with {@link Matchers#any()}, {@link Matchers#isEqual(Object)}, {@link Matchers#isInstance(Class)},
+     * {@link Capture}s, {@link Capture#save(Matcher)} and the matchables of {@link fi.evident.carpenter.matchables.Matchables}
+     * are compiled. Other matchers in the tree are called as they are. {@link #matchAll(Object)} of the returned
+     * matcher backtracks like this matcher.
+     */
+    @NotNull
+    public final Matcher<T> compile() {
+        return compiled();
+    }
+
+    /**
+     * Implementation of {@link #compile()}.
+     */
+    @NotNull
+    Matcher<T> compiled() {
+        Pattern pattern = toPattern();
+        return pattern != null ? new CompiledMatcher<>(this, pattern) : this;
+    }
+
+    /**
+     * Returns the structure of this matcher for {@link #compile()}, or {@code null} if the matcher
+     * can only be called as it is.
+     */
+    @Nullable
+    Pattern toPattern() {
+        return null;
+    }
+
+    /**
+     * Returns a description of this matcher that is stable across runs, used as the default
+     * label of {@link Rule}s. The default implementation describes the {@link #getShape() shape}.
+     */
+    @NotNull
+    String describe() {
+        return getShape().toString();
+    }
+
+    /**
+     * Returns a matcher that reports its match attempts and rewrites under given name
+     * to the {@link MatcherMetrics} installed with {@link Instrumentation#install(MatcherMetrics)}.
+     * While no metrics are installed, the returned matcher behaves exactly like this matcher.
+     */
+    @NotNull
+    public final Matcher<T> instrumented(@NotNull String name) {
+        return new InstrumentedMatcher<>(this, name);
+    }
+
+    /**
+     * Returns a matcher that calls {@code alternative} if the match fails. If merging the constraints
+     * of the match fails later, {@link #matchAll(Object)} can be used to get the alternative as well.
      */
     @NotNull
     public final Matcher<T> or(@NotNull Matcher<T> alternative) {
-        // TODO: merging constraints could fail later, perhaps we'll need to return both matches?
         return new Matcher<T>() {
             @NotNull
             @Override
@@ -63,6 +288,12 @@ public abstract class Matcher<T> implements Function<T,Match<T>> {
                 Match<T> match = Matcher.this.apply(value);
                 return match.isSuccess() ? match : alternative.apply(value);
             }
+
+            @NotNull
+            @Override
+            public Stream<Match<T>> matchAll(@NotNull T value) {
+                return Backtracking.concat(0, 2, i -> i == 0 ? Matcher.this.matchAll(value) : alternative.matchAll(value));
+            }
         };
     }
 }
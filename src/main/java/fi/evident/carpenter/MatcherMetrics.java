@@ -0,0 +1,122 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.RewriteResult.StopReason;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives measurements of {@link Matcher#instrumented(String) instrumented matchers}
+ * and of the rules of rule sets once installed with {@link Instrumentation#install(MatcherMetrics)}.
+ *
+ * Every kind of operation is measured in three steps. Before the operation, {@code measuresX()}
+ * tells whether it's measured at all. If it is, {@code xStarting} is called right before the
+ * operation and the object it returns is passed back to the method reporting the operation once
+ * it's done, so implementations can time the operation themselves. Otherwise the operation runs
+ * without any measuring.
+ *
+ * Implementations are called from the matching threads and must be thread-safe.
+ */
+public interface MatcherMetrics {
+
+    /**
+     * Returns true if match attempts of instrumented matchers are measured. Called before every
+     * attempt and every match created, so it must be cheap. The default implementation returns true.
+     */
+    default boolean measuresMatches() {
+        return true;
+    }
+
+    /**
+     * Called before an instrumented matcher is applied to a value. The default implementation returns this.
+     *
+     * @return object passed to {@link #matchAttempted}
+     */
+    @NotNull
+    default Object matchStarting(@NotNull String name) {
+        return this;
+    }
+
+    /**
+     * Called after an instrumented matcher has been applied to a value.
+     *
+     * @param started the object returned by {@link #matchStarting(String)}
+     * @param name name of the instrumented matcher
+     * @param success whether the match succeeded
+     * @param partialMatches number of successful sub-matches produced during the attempt,
+     *                       which tells how far the matching got before it failed
+     * @param conflicts number of constraint merges that failed because of conflicting bindings
+     * @param nanos time spent matching
+     */
+    void matchAttempted(@NotNull Object started, @NotNull String name, boolean success, int partialMatches, int conflicts, long nanos);
+
+    /**
+     * Returns true if rewrites of instrumented matchers are measured. The default implementation returns true.
+     */
+    default boolean measuresRewrites() {
+        return true;
+    }
+
+    /**
+     * Called before {@code rewrite} or {@code rewriteAll} of an instrumented matcher starts.
+     * The default implementation returns this.
+     *
+     * @return object passed to {@link #rewritten} or {@link #rewrittenAll}
+     */
+    @NotNull
+    default Object rewriteStarting(@NotNull String name) {
+        return this;
+    }
+
+    /**
+     * Called after {@link Matcher#rewrite(Object, java.util.function.BiConsumer)} of an
+     * instrumented matcher has finished.
+     *
+     * @param started the object returned by {@link #rewriteStarting(String)}
+     * @param name name of the instrumented matcher
+     * @param steps number of rewrites performed
+     * @param nanos time spent rewriting
+     */
+    void rewritten(@NotNull Object started, @NotNull String name, int steps, long nanos);
+
+    /**
+     * Called after {@link Matcher#rewriteAll(Object, java.util.function.BiConsumer)} of an
+     * instrumented matcher has finished, along with the reason it stopped. The default
+     * implementation calls {@link #rewritten(Object, String, int, long)}.
+     *
+     * @param stopReason {@link StopReason#FIXPOINT} unless the rewrite was given {@link RewriteLimits}
+     */
+    default void rewrittenAll(@NotNull Object started, @NotNull String name, int steps, long nanos, @NotNull StopReason stopReason) {
+        rewritten(started, name, steps, nanos);
+    }
+
+    /**
+     * Returns true if the rules of rule sets are measured. The default implementation returns true.
+     */
+    default boolean measuresRules() {
+        return true;
+    }
+
+    /**
+     * Called before a rule of a {@link RuleSet} is tried against a value, or before the rewrite
+     * generator of a rule of a {@link ConsecutiveRuleSet} is called. The default implementation returns this.
+     *
+     * @param rule {@link Rule#getLabel() label} of the rule
+     * @return object passed to {@link #ruleAttempted}
+     */
+    @NotNull
+    default Object ruleStarting(@NotNull String rule) {
+        return this;
+    }
+
+    /**
+     * Called after a rule of a {@link RuleSet} has been tried against a value, or after a rule of
+     * a {@link ConsecutiveRuleSet} has fired. The default implementation does nothing.
+     *
+     * @param started the object returned by {@link #ruleStarting(String)}
+     * @param rule {@link Rule#getLabel() label} of the rule
+     * @param fired whether the rule rewrote the value
+     * @param nanos time spent trying the rule, or for consecutive rules, time spent in the rewrite
+     *              generator, since the scanning is shared by all rules
+     */
+    default void ruleAttempted(@NotNull Object started, @NotNull String rule, boolean fired, long nanos) {
+    }
+}
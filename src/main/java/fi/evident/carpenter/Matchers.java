@@ -1,51 +1,86 @@
 package fi.evident.carpenter;
 
 import fi.evident.carpenter.utils.CollectionUtils;
+import fi.evident.carpenter.utils.PersistentVector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static fi.evident.carpenter.utils.CollectionUtils.copyWithReplacedSubList;
-import static fi.evident.carpenter.utils.CollectionUtils.copyWithReplacedValue;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 
 /**
  * Various general {@link Matcher} implementations.
  */
 public final class Matchers {
 
+    /**
+     * Lists smaller than this are searched sequentially even by the parallel matchers.
+     */
+    public static final int PARALLEL_THRESHOLD = 1024;
+
     private Matchers() {
     }
 
     @NotNull
     public static <T> Matcher<T> any() {
-        return predicate(a -> true);
+        return predicate(a -> true, Shape.any(), Pattern.any());
     }
 
     @NotNull
     public static <T> Matcher<T> isInstance(@NotNull Class<? extends T> cl) {
-        return predicate(cl::isInstance);
+        return predicate(cl::isInstance, Shape.instanceOf(cl), Pattern.instanceOf(cl));
     }
 
     @NotNull
     public static <T> Matcher<T> predicate(@NotNull Predicate<? super T> predicate) {
+        return predicate(predicate, Shape.any(), null);
+    }
+
+    /**
+     * Creates a matcher that matches values accepted by given predicate, which must match exactly the
+     * values matched by {@code pattern}, if it's given.
+     */
+    @NotNull
+    private static <T> Matcher<T> predicate(@NotNull Predicate<? super T> predicate, @NotNull Shape shape, @Nullable Pattern pattern) {
         return new Matcher<T>() {
             @NotNull
             @Override
             public Match<T> apply(@NotNull T value) {
                 return predicate.test(value) ? Match.constant(value) : Match.failure();
             }
+
+            @NotNull
+            @Override
+            public Shape getShape() {
+                return shape;
+            }
+
+            @Nullable
+            @Override
+            Pattern toPattern() {
+                return pattern;
+            }
         };
     }
 
     @NotNull
     public static <T> Matcher<T> isEqual(T value) {
-        return predicate(Predicate.isEqual(value));
+        return predicate(Predicate.isEqual(value), Shape.equalTo(value), Pattern.equalTo(value));
     }
 
     @NotNull
@@ -55,64 +90,215 @@ public final class Matchers {
             @Override
             public Match<Optional<T>> apply(@NotNull Optional<T> value) {
                 T v = value.orElse(null);
-                if (v != null)
-                    return Match.from(Optional::of, matcher.apply(v));
-                else
+                if (v == null)
                     return Match.failure();
+
+                Match<T> m = matcher.apply(v);
+                return Match.fromChildren(value, Matchers::presentFirst, m.getConstraints(), m);
+            }
+
+            @NotNull
+            @Override
+            public Stream<Match<Optional<T>>> matchAll(@NotNull Optional<T> value) {
+                T v = value.orElse(null);
+                if (v == null)
+                    return Stream.empty();
+
+                return matcher.matchAll(v).map(m -> Match.fromChildren(value, Matchers::presentFirst, m.getConstraints(), m));
             }
         };
     }
 
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <T> Optional<T> presentFirst(@NotNull Object[] args) {
+        return Optional.of((T) args[0]);
+    }
+
     @NotNull
     public static <T> Matcher<List<T>> contains(@NotNull Matcher<T> matcher) {
+        return new ContainsMatcher<>(matcher, false);
+    }
+
+    /**
+     * Returns a matcher that matches lists containing an element matched by {@code matcher}, just like
+     * {@link #contains(Matcher)}. The elements are matched in parallel in the common fork/join pool,
+     * but the match of the lowest matching index is still returned, so the results are identical
+     * to {@link #contains(Matcher)}. The matcher must therefore be safe to call from several threads.
+     *
+     * Lists shorter than {@link #PARALLEL_THRESHOLD} are searched sequentially, since splitting them
+     * costs more than matching their elements.
+     */
+    @NotNull
+    public static <T> Matcher<List<T>> containsParallel(@NotNull Matcher<T> matcher) {
+        return new ContainsMatcher<>(matcher, true);
+    }
+
+    /**
+     * Returns a matcher that matches lists containing an element matched by {@code matcher}. Like
+     * {@link #containsParallel(Matcher)}, the elements are matched in parallel, but the match of any
+     * matching element may be returned, so the search can stop as soon as any thread finds a match.
+     */
+    @NotNull
+    public static <T> Matcher<List<T>> containsAnyParallel(@NotNull Matcher<T> matcher) {
         return new Matcher<List<T>>() {
             @NotNull
             @Override
             public Match<List<T>> apply(@NotNull List<T> value) {
-                for (int i = 0, len = value.size(); i < len; i++) {
-                    Match<T> m = matcher.apply(value.get(i));
-                    int index = i;
-
-                    if (m.isSuccess())
-                        return Match.from(v -> copyWithReplacedValue(value, index, v), m);
-                }
-                return Match.failure();
+                List<T> values = randomAccess(value);
+                IntStream indices = IntStream.range(0, values.size());
+                if (values.size() >= PARALLEL_THRESHOLD)
+                    indices = indices.parallel();
+
+                return indices.mapToObj(i -> elementWindow(matcher, values, i))
+                        .filter(Objects::nonNull)
+                        .findAny()
+                        .map(window -> window.toMatch(value))
+                        .orElse(Match.failure());
+            }
+
+            @NotNull
+            @Override
+            public Stream<Match<List<T>>> matchAll(@NotNull List<T> value) {
+                return allElementMatches(matcher, value);
             }
         };
     }
 
+    /**
+     * Returns every element of {@code values} matched by {@code matcher} along with its index,
+     * ordered by the indices.
+     */
+    @NotNull
+    public static <T> List<IndexedMatch<T>> findAll(@NotNull Matcher<T> matcher, @NotNull List<T> values) {
+        return findAll(matcher, values, false);
+    }
+
+    /**
+     * Like {@link #findAll(Matcher, List)}, but matches the elements in parallel in the common fork/join
+     * pool. The results are identical to {@link #findAll(Matcher, List)}, but the matcher must be safe
+     * to call from several threads.
+     */
+    @NotNull
+    public static <T> List<IndexedMatch<T>> findAllParallel(@NotNull Matcher<T> matcher, @NotNull List<T> values) {
+        return findAll(matcher, values, true);
+    }
+
+    @NotNull
+    private static <T> List<IndexedMatch<T>> findAll(@NotNull Matcher<T> matcher, @NotNull List<T> values, boolean parallel) {
+        List<T> list = randomAccess(values);
+        IntStream indices = IntStream.range(0, list.size());
+        if (parallel && list.size() >= PARALLEL_THRESHOLD)
+            indices = indices.parallel();
+
+        return indices.mapToObj(i -> {
+            Match<T> m = matcher.apply(list.get(i));
+            return m.isSuccess() ? new IndexedMatch<>(i, m) : null;
+        }).filter(Objects::nonNull).collect(toList());
+    }
+
+    /**
+     * Matcher returned by {@link #contains(Matcher)} and {@link #containsParallel(Matcher)}.
+     */
+    private static final class ContainsMatcher<T> extends ScanningMatcher<T> {
+
+        @NotNull
+        private final Matcher<T> matcher;
+
+        private final boolean parallel;
+
+        ContainsMatcher(@NotNull Matcher<T> matcher, boolean parallel) {
+            super(1);
+            this.matcher = matcher;
+            this.parallel = parallel;
+        }
+
+        @Nullable
+        @Override
+        public Window<T> find(@NotNull List<T> values, int from) {
+            if (parallel && values.size() - from >= PARALLEL_THRESHOLD) {
+                List<T> list = randomAccess(values);
+
+                // findFirst of an ordered stream cancels the subtasks to the right of a match
+                return IntStream.range(from, list.size()).parallel()
+                        .mapToObj(i -> elementWindow(matcher, list, i))
+                        .filter(Objects::nonNull)
+                        .findFirst()
+                        .orElse(null);
+            }
+
+            for (int i = from, len = values.size(); i < len; i++) {
+                Match<T> m = matcher.apply(values.get(i));
+
+                if (m.isSuccess())
+                    return new Window<>(i, singletonList(m), m.getConstraints());
+            }
+            return null;
+        }
+
+        @NotNull
+        @Override
+        public Stream<Match<List<T>>> matchAll(@NotNull List<T> value) {
+            return allElementMatches(matcher, value);
+        }
+    }
+
+    @Nullable
+    private static <T> Window<T> elementWindow(@NotNull Matcher<T> matcher, @NotNull List<T> values, int index) {
+        Match<T> m = matcher.apply(values.get(index));
+        return m.isSuccess() ? new Window<>(index, singletonList(m), m.getConstraints()) : null;
+    }
+
+    @NotNull
+    private static <T> Stream<Match<List<T>>> allElementMatches(@NotNull Matcher<T> matcher, @NotNull List<T> value) {
+        return Backtracking.concat(0, value.size(), i ->
+                matcher.matchAll(value.get(i)).map(m -> new Window<>(i, singletonList(m), m.getConstraints()).toMatch(value)));
+    }
+
+    /**
+     * Returns {@code values} or its copy that can be accessed by index in constant time,
+     * so that it can be split by index for parallel searches.
+     */
+    @NotNull
+    private static <T> List<T> randomAccess(@NotNull List<T> values) {
+        return values instanceof RandomAccess ? values : new ArrayList<>(values);
+    }
+
     @NotNull
     public static <T> Matcher<List<T>> listWithPrefix(@NotNull List<Matcher<T>> prefixMatchers, @NotNull Matcher<List<T>> suffixMatcher) {
         return new Matcher<List<T>>() {
             @NotNull
             @Override
             public Match<List<T>> apply(@NotNull List<T> value) {
-                List<Match<T>> prefixMatches = prefixMatches(value);
-                if (prefixMatches == null) return Match.failure();
+                if (prefixMatchers.size() > value.size())
+                    return Match.failure();
+
+                List<Match<T>> prefixMatches = new ArrayList<>(prefixMatchers.size());
+                Constraints constraints = matchConsecutive(prefixMatchers, value, 0, prefixMatches);
+                if (constraints.isInvalid()) return Match.failure();
 
                 List<T> suffix = value.subList(prefixMatches.size(), value.size());
                 Match<List<T>> suffixMatch = suffixMatcher.apply(suffix);
 
-                return Match.fromList(CollectionUtils::concat, prefixMatches, suffixMatch);
+                return Match.fromList(value, CollectionUtils::concat, prefixMatches, constraints, suffixMatch);
             }
 
-            @Nullable
-            private List<Match<T>> prefixMatches(@NotNull List<T> list) {
-                if (prefixMatchers.size() > list.size())
-                    return null;
-
-                List<Match<T>> matches = new ArrayList<>(prefixMatchers.size());
-
-                int i = 0;
-                for (Matcher<T> matcher : prefixMatchers) {
-                    Match<T> m = matcher.apply(list.get(i++));
-                    if (m.isSuccess())
-                        matches.add(m);
-                    else
-                        return null;
-                }
-
-                return matches;
+            @NotNull
+            @Override
+            public Stream<Match<List<T>>> matchAll(@NotNull List<T> value) {
+                int prefixSize = prefixMatchers.size();
+                if (prefixSize > value.size())
+                    return Stream.empty();
+
+                // The suffix is matched as the last position, so its alternatives are tried first
+                List<T> suffix = value.subList(prefixSize, value.size());
+                return Backtracking.stream(Backtracking.combinations(prefixSize + 1, i -> i < prefixSize ? prefixMatchers.get(i).matchAll(value.get(i)) : suffixMatcher.matchAll(suffix)))
+                        .map(c -> {
+                            List<Match<T>> matches = c.matchList();
+                            @SuppressWarnings("unchecked")
+                            Match<List<T>> suffixMatch = (Match<List<T>>) c.matches[prefixSize];
+                            return Match.fromList(value, CollectionUtils::concat, matches.subList(0, prefixSize), c.constraints, suffixMatch);
+                        });
             }
         };
     }
@@ -123,38 +309,61 @@ public final class Matchers {
         return listWithConsecutive(asList(matchers));
     }
 
+    /**
+     * Returns a matcher that matches lists containing consecutive elements matched by {@code matchers},
+     * the first such window of elements being used.
+     *
+     * Every window stops at its first failing element or conflicting binding, so an element is matched
+     * against each matcher at most once. To scan a list for several such patterns at once instead of
+     * once per pattern, use {@link ConsecutiveRuleSet}.
+     */
     @NotNull
     public static <T> Matcher<List<T>> listWithConsecutive(@NotNull List<? extends Matcher<T>> matchers) {
-        return new Matcher<List<T>>() {
-            @NotNull
-            @Override
-            public Match<List<T>> apply(@NotNull List<T> value) {
-                // Pre-allocate a list for matches so that we don't have to create new for every attempt
-                List<Match<T>> matches = new ArrayList<>(matchers.size());
-                for (int i = 0, max = value.size() - matchers.size() + 1; i < max; i++) {
-                    if (matchesAt(value, i, matches)) {
-                        int index = i;
-                        return Match.fromList(vs -> copyWithReplacedSubList(value, index, vs), matches);
-                    }
-                }
-                return Match.failure();
-            }
+        return new ConsecutiveMatcher<>(matchers);
+    }
 
-            private boolean matchesAt(@NotNull List<T> values, int index, @NotNull List<Match<T>> matches) {
-                matches.clear();
+    /**
+     * Matcher returned by {@link #listWithConsecutive(List)}. Keeps its element matchers
+     * so that {@link ConsecutiveRuleSet} can scan for several patterns at once.
+     */
+    static final class ConsecutiveMatcher<T> extends ScanningMatcher<T> {
+
+        @NotNull
+        private final List<Matcher<T>> matchers;
 
-                int i = index;
-                for (Matcher<T> matcher : matchers) {
-                    Match<T> m = matcher.apply(values.get(i++));
-                    if (m.isSuccess())
-                        matches.add(m);
-                    else
-                        return false;
-                }
+        ConsecutiveMatcher(@NotNull List<? extends Matcher<T>> matchers) {
+            super(matchers.size());
+            this.matchers = new ArrayList<>(matchers);
+        }
 
-                return Match.mergedConstraints(matches).isValid();
+        @NotNull
+        List<Matcher<T>> getMatchers() {
+            return matchers;
+        }
+
+        @Nullable
+        @Override
+        public Window<T> find(@NotNull List<T> values, int from) {
+            // Pre-allocate a list for matches so that we don't have to create new for every attempt
+            List<Match<T>> matches = new ArrayList<>(matchers.size());
+            for (int i = from, max = values.size() - matchers.size() + 1; i < max; i++) {
+                matches.clear();
+
+                Constraints constraints = matchConsecutive(matchers, values, i, matches);
+                if (constraints.isValid())
+                    return new Window<>(i, matches, constraints);
             }
-        };
+            return null;
+        }
+
+        @NotNull
+        @Override
+        public Stream<Match<List<T>>> matchAll(@NotNull List<T> value) {
+            int size = matchers.size();
+            return Backtracking.concat(0, value.size() - size + 1, index ->
+                    Backtracking.stream(Backtracking.combinations(size, i -> matchers.get(i).matchAll(value.get(index + i))))
+                            .map(c -> new Window<T>(index, c.matchList(), c.constraints).toMatch(value)));
+        }
     }
 
     @SafeVarargs
@@ -172,20 +381,87 @@ public final class Matchers {
                 if (value.size() != matchers.size())
                     return Match.failure();
 
-                Iterator<T> valuesIterator = value.iterator();
-                Iterator<Matcher<T>> matchersIterator = matchers.iterator();
                 List<Match<T>> matches = new ArrayList<>(matchers.size());
+                Constraints constraints = matchConsecutive(matchers, value, 0, matches);
 
-                while (valuesIterator.hasNext()) {
-                    Match<T> m = matchersIterator.next().apply(valuesIterator.next());
-                    if (m.isSuccess())
-                        matches.add(m);
-                    else
-                        return Match.failure();
-                }
+                return Match.fromList(value, listBuilder(value), matches, constraints);
+            }
 
-                return Match.fromList(matches);
+            @NotNull
+            @Override
+            public Stream<Match<List<T>>> matchAll(@NotNull List<T> value) {
+                if (value.size() != matchers.size())
+                    return Stream.empty();
+
+                return Backtracking.stream(Backtracking.combinations(matchers.size(), i -> matchers.get(i).matchAll(value.get(i))))
+                        .map(c -> Match.fromList(value, listBuilder(value), c.<T>matchList(), c.constraints));
             }
         };
     }
+
+    /**
+     * Returns the function that builds a rebuilt list matched by {@link #list(List)}. Rebuilt
+     * {@link PersistentVector}s are updated from the original so that they share its structure.
+     */
+    @NotNull
+    private static <T> Function<List<T>, List<T>> listBuilder(@NotNull List<T> original) {
+        if (original instanceof PersistentVector)
+            return values -> copyWithReplacedSubList(original, 0, values);
+        else
+            return Function.identity();
+    }
+
+    /**
+     * Matches {@code matchers} against consecutive values of {@code values} starting at {@code index}
+     * and collects the matches to {@code matches}. Constraints are merged as the matching proceeds so
+     * that the first failing match or conflicting binding stops the matching.
+     *
+     * @return merged constraints of all matches or invalid constraints if matching failed
+     */
+    @NotNull
+    private static <T> Constraints matchConsecutive(@NotNull List<? extends Matcher<T>> matchers, @NotNull List<T> values, int index, @NotNull List<Match<T>> matches) {
+        Constraints constraints = Constraints.empty();
+
+        Iterator<T> valuesIterator = values.listIterator(index);
+        for (Matcher<T> matcher : matchers) {
+            Match<T> m = matcher.apply(valuesIterator.next());
+
+            constraints = constraints.merge(m.getConstraints());
+            if (constraints.isInvalid())
+                return constraints;
+
+            matches.add(m);
+        }
+
+        return constraints;
+    }
+
+    /**
+     * Base class for matchers that look for consecutive elements of a list that match.
+     *
+     * {@link #rewriteAll(Object, BiConsumer)} continues scanning from the first window that can
+     * overlap the previous rewrite instead of starting from the beginning, as described in
+     * {@link Window#rewriteAll(Window.Finder, int, List, IntFunction)}.
+     */
+    private abstract static class ScanningMatcher<T> extends Matcher<List<T>> implements Window.Finder<T> {
+
+        private final int windowSize;
+
+        ScanningMatcher(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        @NotNull
+        @Override
+        public Match<List<T>> apply(@NotNull List<T> value) {
+            Window<T> window = find(value, 0);
+            return window != null ? window.toMatch(value) : Match.failure();
+        }
+
+        @NotNull
+        @Override
+        List<T> rewriteToFixpoint(@NotNull List<T> value, @NotNull BiConsumer<Match<List<T>>, MatchRewrites> rewriteGenerator, @NotNull Budget budget) {
+            return Window.rewriteAll(this, windowSize, value, pattern -> rewriteGenerator, budget);
+        }
+    }
 }
@@ -0,0 +1,457 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Structure of a matcher built from the standard combinators, as seen by {@link Matcher#compile()}.
+ *
+ * A pattern is turned into a single {@link MethodHandle} of type {@code (Object, Object[])boolean}
+ * that tests a value against the whole pattern and stores the values bound to captures, and the
+ * matches of matchers that have no pattern of their own, into an array of slots. The handle is built
+ * from {@link MethodHandles} combinators around constant getters, types and values, so the JIT can
+ * inline the whole pattern into straight-line code. The slots are then enough to read the captured
+ * values and to rebuild the value, so no match is created for the parts of the pattern.
+ */
+abstract class Pattern {
+
+    @NotNull
+    private static final MethodHandle FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Object.class, Object[].class);
+
+    @NotNull
+    private static final MethodHandle TRUE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, Object.class, Object[].class);
+
+    @NotNull
+    private static final MethodHandle EQUALS;
+
+    @NotNull
+    private static final MethodHandle IS_INSTANCE;
+
+    @NotNull
+    private static final MethodHandle APPLY;
+
+    @NotNull
+    private static final MethodHandle STORE;
+
+    @NotNull
+    private static final MethodHandle AGREE;
+
+    @NotNull
+    private static final MethodHandle MATCH;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            EQUALS = lookup.findStatic(Objects.class, "equals", methodType(boolean.class, Object.class, Object.class));
+            IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance", methodType(boolean.class, Object.class));
+            APPLY = lookup.findVirtual(Function.class, "apply", methodType(Object.class, Object.class));
+            STORE = lookup.findStatic(Pattern.class, "store", methodType(boolean.class, int.class, Object.class, Object[].class));
+            AGREE = lookup.findStatic(Pattern.class, "agree", methodType(boolean.class, Capture.class, int.class, Object.class, Object[].class));
+            MATCH = lookup.findStatic(Pattern.class, "match", methodType(boolean.class, Matcher.class, int.class, Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @NotNull
+    private static final Pattern ANY = new AnyPattern();
+
+    private Pattern() { }
+
+    /**
+     * Returns the pattern of given matcher, or an opaque pattern that interprets the matcher if it has none.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    static Pattern of(@NotNull Matcher<?> matcher) {
+        Pattern pattern = matcher.toPattern();
+        return pattern != null ? pattern : new OpaquePattern((Matcher<Object>) matcher);
+    }
+
+    /**
+     * Returns a pattern that matches any value.
+     */
+    @NotNull
+    static Pattern any() {
+        return ANY;
+    }
+
+    /**
+     * Returns a pattern that matches values equal to given value.
+     */
+    @NotNull
+    static Pattern equalTo(@Nullable Object value) {
+        return new ConstantPattern(value);
+    }
+
+    /**
+     * Returns a pattern that matches instances of given type.
+     */
+    @NotNull
+    static Pattern instanceOf(@NotNull Class<?> type) {
+        return new TypePattern(type);
+    }
+
+    /**
+     * Returns a pattern that binds the matched value to given capture.
+     */
+    @NotNull
+    static Pattern capture(@NotNull Capture<?> capture) {
+        return new CapturePattern(capture, ANY);
+    }
+
+    /**
+     * Returns a pattern that binds the value matched by {@code pattern} to given capture.
+     */
+    @NotNull
+    static Pattern saved(@NotNull Capture<?> capture, @NotNull Pattern pattern) {
+        return new CapturePattern(capture, pattern);
+    }
+
+    /**
+     * Returns a pattern that matches instances of given type whose children, accessed through
+     * {@code getters}, match corresponding {@code children}. The value is rebuilt by applying
+     * {@code builder} to the rebuilt children.
+     */
+    @NotNull
+    static Pattern node(@NotNull Class<?> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull Function<Object[], ?> builder, @NotNull List<Pattern> children) {
+        return new NodePattern(type, getters, builder, children);
+    }
+
+    /**
+     * Registers the captures and opaque matchers of this pattern with given compilation.
+     */
+    abstract void collect(@NotNull Compilation compilation);
+
+    /**
+     * Returns a handle of type {@code (Object, Object[])boolean} that tests a value against this pattern, filling
+     * the slots assigned by given compilation as it goes.
+     */
+    @NotNull
+    abstract MethodHandle toHandle(@NotNull Compilation compilation);
+
+    /**
+     * Returns true iff rebuilding a value matched by this pattern with given rewrites could produce
+     * something else than the value itself.
+     */
+    abstract boolean isAffected(@NotNull Object[] slots, @NotNull MatchRewrites rewrites);
+
+    /**
+     * Rebuilds given value, matched by this pattern, with given rewrites.
+     */
+    @Nullable
+    abstract Object rebuild(@Nullable Object value, @NotNull Object[] slots, @NotNull MatchRewrites rewrites);
+
+    @NotNull
+    private static MethodHandle and(@NotNull MethodHandle first, @NotNull MethodHandle second) {
+        return MethodHandles.guardWithTest(first, second, FALSE);
+    }
+
+    @NotNull
+    private static MethodHandle typeTest(@NotNull Class<?> type) {
+        return MethodHandles.dropArguments(IS_INSTANCE.bindTo(type), 1, Object[].class);
+    }
+
+    private static boolean store(int slot, @Nullable Object value, @NotNull Object[] slots) {
+        slots[slot] = value;
+        return true;
+    }
+
+    private static boolean agree(@NotNull Capture<?> capture, int slot, @Nullable Object value, @NotNull Object[] slots) {
+        if (capture.agrees(slots[slot], value))
+            return true;
+
+        Instrumentation.constraintConflict();
+        return false;
+    }
+
+    private static boolean match(@NotNull Matcher<Object> matcher, int slot, @Nullable Object value, @NotNull Object[] slots) {
+        Match<Object> match = matcher.apply(value);
+        if (match.isFailure())
+            return false;
+
+        slots[slot] = match;
+        return true;
+    }
+
+    /**
+     * Assigns the slots of a pattern. Captures get the first slots in the order of their ids, so that
+     * the slots can be used as the values of {@link Constraints} as they are. The matches of opaque
+     * matchers are stored in the slots after them.
+     */
+    static final class Compilation {
+
+        @NotNull
+        private final List<Capture<?>> captures = new ArrayList<>();
+
+        @NotNull
+        private final List<OpaquePattern> opaques = new ArrayList<>();
+
+        @NotNull
+        private final Map<Capture<?>, Integer> slots = new IdentityHashMap<>();
+
+        /**
+         * Captures whose slot has been filled by the handles built so far.
+         */
+        @NotNull
+        private final Map<Capture<?>, Boolean> bound = new IdentityHashMap<>();
+
+        Compilation(@NotNull Pattern pattern) {
+            pattern.collect(this);
+
+            captures.sort(Comparator.comparingInt(Capture::getId));
+            for (int i = 0; i < captures.size(); i++)
+                slots.put(captures.get(i), i);
+            for (int i = 0; i < opaques.size(); i++)
+                opaques.get(i).slot = captures.size() + i;
+        }
+
+        /**
+         * Returns the captures of the pattern sorted by their ids.
+         */
+        @NotNull
+        Capture<?>[] getCaptures() {
+            return captures.toArray(new Capture<?>[0]);
+        }
+
+        int getSlotCount() {
+            return captures.size() + opaques.size();
+        }
+
+        private void addCapture(@NotNull Capture<?> capture) {
+            if (!captures.contains(capture))
+                captures.add(capture);
+        }
+    }
+
+    /**
+     * Pattern that binds nothing and whose values are always rebuilt as they are.
+     */
+    private abstract static class LeafPattern extends Pattern {
+
+        @Override
+        void collect(@NotNull Compilation compilation) {
+        }
+
+        @Override
+        boolean isAffected(@NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        Object rebuild(@Nullable Object value, @NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            return value;
+        }
+    }
+
+    private static final class AnyPattern extends LeafPattern {
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            return TRUE;
+        }
+    }
+
+    private static final class ConstantPattern extends LeafPattern {
+
+        @Nullable
+        private final Object constant;
+
+        ConstantPattern(@Nullable Object constant) {
+            this.constant = constant;
+        }
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            return MethodHandles.dropArguments(MethodHandles.insertArguments(EQUALS, 0, constant), 1, Object[].class);
+        }
+    }
+
+    private static final class TypePattern extends LeafPattern {
+
+        @NotNull
+        private final Class<?> type;
+
+        TypePattern(@NotNull Class<?> type) {
+            this.type = type;
+        }
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            return typeTest(type);
+        }
+    }
+
+    /**
+     * Binds the value matched by {@link #pattern} to {@link #capture}.
+     */
+    private static final class CapturePattern extends Pattern {
+
+        @NotNull
+        private final Capture<?> capture;
+
+        @NotNull
+        private final Pattern pattern;
+
+        CapturePattern(@NotNull Capture<?> capture, @NotNull Pattern pattern) {
+            this.capture = capture;
+            this.pattern = pattern;
+        }
+
+        @Override
+        void collect(@NotNull Compilation compilation) {
+            pattern.collect(compilation);
+            compilation.addCapture(capture);
+        }
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            MethodHandle inner = pattern != ANY ? pattern.toHandle(compilation) : null;
+
+            // The first occurrence of a capture stores the value and the rest check that they agree with it
+            int slot = compilation.slots.get(capture);
+            MethodHandle bind = compilation.bound.put(capture, true) == null
+                    ? MethodHandles.insertArguments(STORE, 0, slot)
+                    : MethodHandles.insertArguments(AGREE, 0, capture, slot);
+
+            return inner != null ? and(inner, bind) : bind;
+        }
+
+        @Override
+        boolean isAffected(@NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            return rewrites.getReplacement(capture) != null || pattern.isAffected(slots, rewrites);
+        }
+
+        @Nullable
+        @Override
+        Object rebuild(@Nullable Object value, @NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            Object replacement = rewrites.getReplacement(capture);
+            return replacement != null ? replacement : pattern.rebuild(value, slots, rewrites);
+        }
+    }
+
+    private static final class NodePattern extends Pattern {
+
+        @NotNull
+        private final Class<?> type;
+
+        @NotNull
+        private final Function<Object, Object>[] getters;
+
+        @NotNull
+        private final Function<Object[], ?> builder;
+
+        @NotNull
+        private final Pattern[] children;
+
+        @SuppressWarnings("unchecked")
+        NodePattern(@NotNull Class<?> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull Function<Object[], ?> builder, @NotNull List<Pattern> children) {
+            if (getters.size() != children.size())
+                throw new IllegalArgumentException("got " + getters.size() + " getters, but " + children.size() + " children");
+
+            this.type = type;
+            this.getters = (Function<Object, Object>[]) getters.toArray(new Function<?, ?>[0]);
+            this.builder = builder;
+            this.children = children.toArray(new Pattern[0]);
+        }
+
+        @Override
+        void collect(@NotNull Compilation compilation) {
+            for (Pattern child : children)
+                child.collect(compilation);
+        }
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            MethodHandle handle = typeTest(type);
+
+            // Getters are only applied after the type test has passed, and children from left to right
+            for (int i = 0; i < children.length; i++) {
+                MethodHandle getter = APPLY.bindTo(getters[i]);
+                handle = and(handle, MethodHandles.filterArguments(children[i].toHandle(compilation), 0, getter));
+            }
+
+            return handle;
+        }
+
+        @Override
+        boolean isAffected(@NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            for (Pattern child : children)
+                if (child.isAffected(slots, rewrites))
+                    return true;
+
+            return false;
+        }
+
+        @Nullable
+        @Override
+        Object rebuild(@Nullable Object value, @NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            if (!isAffected(slots, rewrites))
+                return value;
+
+            Object[] args = new Object[children.length];
+            for (int i = 0; i < children.length; i++)
+                args[i] = children[i].rebuild(getters[i].apply(value), slots, rewrites);
+
+            return builder.apply(args);
+        }
+    }
+
+    /**
+     * Interprets a matcher that has no pattern of its own and stores its match in a slot.
+     */
+    private static final class OpaquePattern extends Pattern {
+
+        @NotNull
+        private final Matcher<Object> matcher;
+
+        /**
+         * Slot of the match, assigned by {@link Compilation}.
+         */
+        private int slot = -1;
+
+        OpaquePattern(@NotNull Matcher<Object> matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        void collect(@NotNull Compilation compilation) {
+            compilation.opaques.add(this);
+        }
+
+        @NotNull
+        @Override
+        MethodHandle toHandle(@NotNull Compilation compilation) {
+            return MethodHandles.insertArguments(MATCH, 0, matcher, slot);
+        }
+
+        @Override
+        boolean isAffected(@NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            return rewrites.affects(((Match<?>) slots[slot]).getConstraints());
+        }
+
+        @Nullable
+        @Override
+        Object rebuild(@Nullable Object value, @NotNull Object[] slots, @NotNull MatchRewrites rewrites) {
+            return ((Match<?>) slots[slot]).rebuild(rewrites);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * State of a rewrite job that the loops of {@code rewriteAll} check between their iterations.
+ *
+ * The context of the current thread is installed with {@link #run(Supplier)}. Outside a context,
+ * {@link #checkpoint()} costs a single thread-local lookup.
+ */
+final class RewriteContext {
+
+    @NotNull
+    private static final ThreadLocal<RewriteContext> current = new ThreadLocal<>();
+
+    private volatile boolean cancelled;
+
+    /**
+     * Requests the rewrites running in this context to stop at their next checkpoint.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs given job with this context installed for the current thread.
+     */
+    <T> T run(@NotNull Supplier<T> job) {
+        RewriteContext previous = current.get();
+        current.set(this);
+        try {
+            return job.get();
+        } finally {
+            if (previous != null)
+                current.set(previous);
+            else
+                current.remove();
+        }
+    }
+
+    /**
+     * Called by {@code rewriteAll} between its iterations.
+     *
+     * @throws CancellationException if the context of the current thread has been cancelled
+     */
+    static void checkpoint() {
+        RewriteContext context = current.get();
+        if (context != null && context.cancelled)
+            throw new CancellationException("rewrite cancelled");
+    }
+}
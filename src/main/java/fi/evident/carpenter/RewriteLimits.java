@@ -0,0 +1,102 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits for {@code rewriteAll}, so that rule sets that never reach a fixpoint fail in bounded
+ * time instead of rewriting forever. The outcome is reported as a {@link RewriteResult}.
+ *
+ * Limits are immutable and can be shared; the step count and the deadline start over on every
+ * {@code rewriteAll}.
+ *
+ * @see Matcher#rewriteAll(Object, java.util.function.BiConsumer, RewriteLimits)
+ * @see RuleSet#rewriteAll(Object, RewriteLimits)
+ * @see ConsecutiveRuleSet#rewriteAll(java.util.List, RewriteLimits)
+ */
+public final class RewriteLimits {
+
+    @NotNull
+    private static final RewriteLimits NONE = new RewriteLimits(Long.MAX_VALUE, -1, 0);
+
+    private final long maxSteps;
+
+    /**
+     * Maximum time for a {@code rewriteAll} in nanoseconds, or -1 if there is no limit.
+     */
+    private final long timeoutNanos;
+
+    /**
+     * Number of recent states kept for detecting cycles, or 0 if cycles are not detected.
+     */
+    private final int cycleHistory;
+
+    private RewriteLimits(long maxSteps, long timeoutNanos, int cycleHistory) {
+        this.maxSteps = maxSteps;
+        this.timeoutNanos = timeoutNanos;
+        this.cycleHistory = cycleHistory;
+    }
+
+    /**
+     * Returns limits that don't limit anything.
+     */
+    @NotNull
+    public static RewriteLimits none() {
+        return NONE;
+    }
+
+    /**
+     * Returns limits that stop after {@code maxSteps} rewrites.
+     */
+    @NotNull
+    public RewriteLimits withMaxSteps(long maxSteps) {
+        if (maxSteps < 0)
+            throw new IllegalArgumentException("invalid maximum steps: " + maxSteps);
+
+        return new RewriteLimits(maxSteps, timeoutNanos, cycleHistory);
+    }
+
+    /**
+     * Returns limits that stop before the next rewrite once {@code timeout} has passed since the start.
+     */
+    @NotNull
+    public RewriteLimits withTimeout(long timeout, @NotNull TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("invalid timeout: " + timeout);
+
+        return new RewriteLimits(maxSteps, unit.toNanos(timeout), cycleHistory);
+    }
+
+    /**
+     * Returns limits that stop when the rewrites start to cycle with a period of at most
+     * {@code maxPeriod} steps.
+     *
+     * The last {@code maxPeriod} values are kept along with their hash codes, and a cycle is
+     * reported as soon as a value equals one of them. Values are compared with
+     * {@link Object#equals(Object)} only if their hash codes are equal, so two distinct values
+     * with the same hash code don't stop the rewriting. Since the value is hashed before every
+     * rewrite, values should have cheap (e.g. cached) hash codes.
+     */
+    @NotNull
+    public RewriteLimits withCycleDetection(int maxPeriod) {
+        if (maxPeriod < 1)
+            throw new IllegalArgumentException("invalid period: " + maxPeriod);
+
+        return new RewriteLimits(maxSteps, timeoutNanos, maxPeriod);
+    }
+
+    /**
+     * Returns a budget tracking these limits for a single {@code rewriteAll} starting now.
+     */
+    @NotNull
+    Budget start() {
+        long deadline = timeoutNanos >= 0 ? System.nanoTime() + timeoutNanos : 0;
+        return new Budget(maxSteps, timeoutNanos >= 0, deadline, cycleHistory);
+    }
+
+    @Override
+    public String toString() {
+        return "RewriteLimits[maxSteps=" + maxSteps + ", timeoutNanos=" + timeoutNanos + ", cycleHistory=" + cycleHistory + "]";
+    }
+}
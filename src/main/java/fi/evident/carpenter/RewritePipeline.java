@@ -0,0 +1,292 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Rewrites a stream of values lazily in batches of bounded size.
+ *
+ * Values are pulled from the source one batch at a time as the results are consumed, so memory use
+ * doesn't depend on the length of the source. Sequential pipelines rewrite a batch in the consuming
+ * thread. Pipelines returned by {@link #withParallelism(ForkJoinPool, boolean)} rewrite up to twice
+ * as many batches as the pool has threads at the same time and produce the results either in the order
+ * of the source or in the order the batches complete. The rewriter must then be safe to call from
+ * multiple threads, which holds for matchers and rule sets as long as the functions given to them are.
+ *
+ * Everything that doesn't depend on the value is set up once: rule sets index their rules when
+ * they are created, and every thread reuses its own {@link MatchRewrites} for all of its rewrites.
+ */
+public final class RewritePipeline<T> {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    @NotNull
+    private final UnaryOperator<T> rewriter;
+
+    private final int batchSize;
+
+    /**
+     * Pool for rewriting batches in parallel, or {@code null} for sequential rewriting.
+     */
+    @Nullable
+    private final ForkJoinPool pool;
+
+    private final boolean ordered;
+
+    /**
+     * Constructs a sequential pipeline that rewrites every value with given function.
+     */
+    public RewritePipeline(@NotNull UnaryOperator<T> rewriter) {
+        this(rewriter, DEFAULT_BATCH_SIZE, null, true);
+    }
+
+    private RewritePipeline(@NotNull UnaryOperator<T> rewriter, int batchSize, @Nullable ForkJoinPool pool, boolean ordered) {
+        this.rewriter = rewriter;
+        this.batchSize = batchSize;
+        this.pool = pool;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Returns a pipeline that rewrites every value with {@link Matcher#rewriteAll(Object, BiConsumer)}.
+     */
+    @NotNull
+    public static <T> RewritePipeline<T> of(@NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        return new RewritePipeline<>(value -> matcher.rewriteAll(value, rewriteGenerator));
+    }
+
+    /**
+     * Returns a pipeline that rewrites every value with {@link RuleSet#rewriteAll(Object)}.
+     */
+    @NotNull
+    public static <T> RewritePipeline<T> of(@NotNull RuleSet<T> rules) {
+        return new RewritePipeline<>(rules::rewriteAll);
+    }
+
+    /**
+     * Returns a pipeline that rewrites batches of at most {@code batchSize} values.
+     */
+    @NotNull
+    public RewritePipeline<T> withBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+
+        return new RewritePipeline<>(rewriter, batchSize, pool, ordered);
+    }
+
+    /**
+     * Returns a pipeline that rewrites batches in parallel using given pool. If {@code ordered} is
+     * false, the results of a batch are produced as soon as it's done, so a slow batch doesn't hold
+     * back the batches after it.
+     */
+    @NotNull
+    public RewritePipeline<T> withParallelism(@NotNull ForkJoinPool pool, boolean ordered) {
+        return new RewritePipeline<>(rewriter, batchSize, pool, ordered);
+    }
+
+    /**
+     * Returns a pipeline that rewrites batches in parallel using the common pool.
+     *
+     * @see #withParallelism(ForkJoinPool, boolean)
+     */
+    @NotNull
+    public RewritePipeline<T> withParallelism(boolean ordered) {
+        return withParallelism(ForkJoinPool.commonPool(), ordered);
+    }
+
+    /**
+     * Returns the rewritten values of given iterator. Values are pulled from the iterator only when
+     * the results are consumed. If rewriting a value throws, the exception is thrown by the returned iterator.
+     */
+    @NotNull
+    public Iterator<T> rewrite(@NotNull Iterator<? extends T> values) {
+        Iterator<List<T>> batches = rewriteBatches(values);
+
+        return new Iterator<T>() {
+            @NotNull
+            private Iterator<T> batch = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && batches.hasNext())
+                    batch = batches.next().iterator();
+                return batch.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return batch.next();
+            }
+        };
+    }
+
+    /**
+     * Returns a stream of the rewritten values of given stream. Closing the returned stream closes
+     * the original stream.
+     *
+     * @see #rewrite(Iterator)
+     */
+    @NotNull
+    public Stream<T> rewrite(@NotNull Stream<? extends T> values) {
+        int characteristics = ordered ? Spliterator.ORDERED : 0;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rewrite(values.iterator()), characteristics), false)
+                .onClose(values::close);
+    }
+
+    /**
+     * Returns the rewritten values of given iterator in batches of at most the batch size of this pipeline.
+     *
+     * @see #rewrite(Iterator)
+     */
+    @NotNull
+    public Iterator<List<T>> rewriteBatches(@NotNull Iterator<? extends T> values) {
+        return pool != null ? new ParallelBatches(values, pool) : new SequentialBatches(values);
+    }
+
+    @NotNull
+    private List<T> nextBatch(@NotNull Iterator<? extends T> values) {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && values.hasNext())
+            batch.add(values.next());
+        return batch;
+    }
+
+    @NotNull
+    private List<T> rewriteBatch(@NotNull List<T> batch) {
+        for (int i = 0; i < batch.size(); i++)
+            batch.set(i, rewriter.apply(batch.get(i)));
+        return batch;
+    }
+
+    private final class SequentialBatches implements Iterator<List<T>> {
+
+        @NotNull
+        private final Iterator<? extends T> values;
+
+        SequentialBatches(@NotNull Iterator<? extends T> values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return values.hasNext();
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return rewriteBatch(nextBatch(values));
+        }
+    }
+
+    private final class ParallelBatches implements Iterator<List<T>> {
+
+        @NotNull
+        private final Iterator<? extends T> values;
+
+        @NotNull
+        private final ForkJoinPool pool;
+
+        private final int maxInFlight;
+
+        /**
+         * Submitted batches in the order of the source.
+         */
+        @NotNull
+        private final ArrayDeque<BatchTask> submitted = new ArrayDeque<>();
+
+        /**
+         * Batches in the order they completed, or {@code null} if the pipeline is ordered.
+         */
+        @Nullable
+        private final BlockingQueue<BatchTask> completed;
+
+        private int inFlight;
+
+        ParallelBatches(@NotNull Iterator<? extends T> values, @NotNull ForkJoinPool pool) {
+            this.values = values;
+            this.pool = pool;
+            this.maxInFlight = 2 * pool.getParallelism();
+            this.completed = ordered ? null : new LinkedBlockingQueue<>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (inFlight < maxInFlight && values.hasNext()) {
+                BatchTask task = new BatchTask(nextBatch(values), completed);
+                if (completed == null)
+                    submitted.add(task);
+                pool.execute(task);
+                inFlight++;
+            }
+            return inFlight != 0;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            BatchTask task = completed != null ? takeCompleted(completed) : submitted.remove();
+            inFlight--;
+            return task.join();
+        }
+
+        @NotNull
+        private BatchTask takeCompleted(@NotNull BlockingQueue<BatchTask> completed) {
+            try {
+                return completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for rewrites");
+            }
+        }
+    }
+
+    private final class BatchTask extends RecursiveTask<List<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        private final List<T> batch;
+
+        @Nullable
+        private final BlockingQueue<BatchTask> completed;
+
+        BatchTask(@NotNull List<T> batch, @Nullable BlockingQueue<BatchTask> completed) {
+            this.batch = batch;
+            this.completed = completed;
+        }
+
+        @Override
+        protected List<T> compute() {
+            try {
+                return rewriteBatch(batch);
+            } finally {
+                if (completed != null)
+                    completed.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Result of a {@code rewriteAll} with {@link RewriteLimits}: the last value along with the
+ * reason why rewriting stopped.
+ */
+public final class RewriteResult<T> {
+
+    /**
+     * Reasons for a {@code rewriteAll} to stop.
+     */
+    public enum StopReason {
+
+        /**
+         * Nothing matches the value anymore.
+         */
+        FIXPOINT,
+
+        /**
+         * The maximum number of rewrites has been performed, but the value still matches.
+         */
+        STEP_LIMIT,
+
+        /**
+         * Time ran out before reaching a fixpoint.
+         */
+        DEADLINE,
+
+        /**
+         * The rewrites started to repeat earlier states.
+         */
+        CYCLE
+    }
+
+    @NotNull
+    private final T value;
+
+    @NotNull
+    private final StopReason stopReason;
+
+    private final long steps;
+
+    RewriteResult(@NotNull T value, @NotNull StopReason stopReason, long steps) {
+        this.value = value;
+        this.stopReason = stopReason;
+        this.steps = steps;
+    }
+
+    /**
+     * Returns the value after the last rewrite, or the original value if nothing was rewritten.
+     */
+    @NotNull
+    public T getValue() {
+        return value;
+    }
+
+    @NotNull
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * Returns true iff rewriting stopped because nothing matched anymore.
+     */
+    public boolean isFixpoint() {
+        return stopReason == StopReason.FIXPOINT;
+    }
+
+    /**
+     * Returns the number of rewrites performed.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public String toString() {
+        return "RewriteResult[value=" + value + ", stopReason=" + stopReason + ", steps=" + steps + "]";
+    }
+}
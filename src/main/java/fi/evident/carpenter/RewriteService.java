@@ -0,0 +1,209 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.utils.NameSequence;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs rewrite jobs on a limited number of threads, queueing at most a fixed number of jobs
+ * waiting for a thread.
+ *
+ * When the queue is full, new jobs are either rejected or their submitters block until there is
+ * room, depending on the {@link WhenFull} policy, so bursts of jobs can't pile up without bound.
+ * Results are returned as {@link CompletableFuture}s. Cancelling the future of a job removes it
+ * from the queue or, if it's running already, stops its {@code rewriteAll} between two rewrites.
+ *
+ * Threads are created with the given {@link ThreadFactory}. On Java 21 and later, passing
+ * {@code Thread.ofVirtual().factory()} runs the jobs on virtual threads.
+ */
+public final class RewriteService implements AutoCloseable {
+
+    /**
+     * What to do with jobs submitted while the queue is full.
+     */
+    public enum WhenFull {
+
+        /**
+         * Fail the job immediately with {@link RejectedExecutionException}.
+         */
+        REJECT,
+
+        /**
+         * Block the submitting thread until the job fits in the queue.
+         */
+        BLOCK
+    }
+
+    @NotNull
+    private static final NameSequence threadNames = new NameSequence("carpenter-rewrite-");
+
+    @NotNull
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Permits for jobs that are running or queued.
+     */
+    @NotNull
+    private final Semaphore permits;
+
+    @NotNull
+    private final WhenFull whenFull;
+
+    /**
+     * Constructs a service running at most {@code maxConcurrency} jobs at a time on daemon threads.
+     */
+    public RewriteService(int maxConcurrency, int queueCapacity, @NotNull WhenFull whenFull) {
+        this(maxConcurrency, queueCapacity, whenFull, runnable -> {
+            Thread thread = new Thread(runnable, threadNames.next());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Constructs a service running at most {@code maxConcurrency} jobs at a time on threads
+     * created by given factory.
+     */
+    public RewriteService(int maxConcurrency, int queueCapacity, @NotNull WhenFull whenFull, @NotNull ThreadFactory threadFactory) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("invalid concurrency: " + maxConcurrency);
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException("invalid queue capacity: " + queueCapacity);
+
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.permits = new Semaphore(maxConcurrency + queueCapacity);
+        this.whenFull = whenFull;
+    }
+
+    /**
+     * Submits a job that rewrites given value with {@link Matcher#rewriteAll(Object, BiConsumer)}.
+     */
+    @NotNull
+    public <T> CompletableFuture<T> rewriteAll(@NotNull T value, @NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        return submit(() -> matcher.rewriteAll(value, rewriteGenerator));
+    }
+
+    /**
+     * Submits a job that rewrites given value with {@link RuleSet#rewriteAll(Object)}.
+     */
+    @NotNull
+    public <T> CompletableFuture<T> rewriteAll(@NotNull T value, @NotNull RuleSet<T> rules) {
+        return submit(() -> rules.rewriteAll(value));
+    }
+
+    /**
+     * Submits a job that rewrites given list with {@link ConsecutiveRuleSet#rewriteAll(List)}.
+     */
+    @NotNull
+    public <T> CompletableFuture<List<T>> rewriteAll(@NotNull List<T> value, @NotNull ConsecutiveRuleSet<T> rules) {
+        return submit(() -> rules.rewriteAll(value));
+    }
+
+    /**
+     * Submits an arbitrary job. Calls to {@code rewriteAll} made by the job stop when the returned
+     * future is cancelled. If the job can't be queued, the returned future fails with
+     * {@link RejectedExecutionException}.
+     */
+    @NotNull
+    public <T> CompletableFuture<T> submit(@NotNull Supplier<T> job) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            if (whenFull == WhenFull.BLOCK)
+                permits.acquire();
+            else if (!permits.tryAcquire())
+                throw new RejectedExecutionException("rewrite queue is full");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new CancellationException("interrupted while waiting for room in queue"));
+            return future;
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        Job<T> task = new Job<>(job, future);
+        future.whenComplete((result, exception) -> {
+            if (future.isCancelled())
+                task.cancel();
+        });
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Stops accepting new jobs. Jobs submitted already are still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private final class Job<T> implements Runnable {
+
+        @NotNull
+        private final Supplier<T> job;
+
+        @NotNull
+        private final CompletableFuture<T> future;
+
+        @NotNull
+        private final RewriteContext context = new RewriteContext();
+
+        /**
+         * Set once the job has started or has been cancelled before starting, so that the permit
+         * of the job is released exactly once.
+         */
+        @NotNull
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Job(@NotNull Supplier<T> job, @NotNull CompletableFuture<T> future) {
+            this.job = job;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true))
+                return;
+
+            try {
+                future.complete(context.run(job));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                permits.release();
+            }
+        }
+
+        void cancel() {
+            context.cancel();
+
+            // If the job is still queued, take it out of the queue right away
+            if (started.compareAndSet(false, true)) {
+                executor.remove(this);
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A rewrite rule: a {@link Matcher} together with the rewrite generator that is
+ * used to rewrite its matches.
+ */
+public final class Rule<T> {
+
+    @NotNull
+    private final String label;
+
+    @NotNull
+    private final Matcher<T> matcher;
+
+    @NotNull
+    private final BiConsumer<Match<T>, MatchRewrites> rewriteGenerator;
+
+    public Rule(@NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        this(null, matcher, rewriteGenerator);
+    }
+
+    /**
+     * Constructs a rule with given label, which identifies the rule in {@link MatcherMetrics}.
+     * If the label is {@code null}, it's derived from the matcher.
+     */
+    public Rule(@Nullable String label, @NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        this.label = label != null ? label : matcher.describe();
+        this.matcher = matcher;
+        this.rewriteGenerator = rewriteGenerator;
+    }
+
+    /**
+     * Returns the label given to this rule. Rules constructed without a label are labelled by the
+     * names of their instrumented matchers and captures and the shapes of their matchers,
+     * e.g. {@code whole@Add[_, =0]}.
+     */
+    @NotNull
+    public String getLabel() {
+        return label;
+    }
+
+    @NotNull
+    public Matcher<T> getMatcher() {
+        return matcher;
+    }
+
+    @NotNull
+    public BiConsumer<Match<T>, MatchRewrites> getRewriteGenerator() {
+        return rewriteGenerator;
+    }
+
+    /**
+     * Tries to match this rule against given value and rewrites it if match is successful.
+     * If match fails, returns {@link Optional#empty()}.
+     */
+    @NotNull
+    public Optional<T> rewrite(@NotNull T value) {
+        return matcher.rewrite(value, rewriteGenerator);
+    }
+}
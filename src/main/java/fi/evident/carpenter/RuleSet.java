@@ -0,0 +1,118 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * An ordered collection of {@link Rule}s.
+ *
+ * Rewriting a value with a rule set is equivalent to trying the rules in order and applying
+ * the first one that matches, just like chaining the matchers with {@link Matcher#or(Matcher)}.
+ * However, the rules are indexed by the {@link Shape}s of their matchers, so only the rules
+ * that can structurally apply to a value are actually tried.
+ */
+public final class RuleSet<T> {
+
+    @NotNull
+    private final List<Rule<T>> rules;
+
+    @NotNull
+    private final DiscriminationNet<Rule<T>> net;
+
+    public RuleSet(@NotNull List<Rule<T>> rules) {
+        this.rules = unmodifiableList(new ArrayList<>(rules));
+        this.net = new DiscriminationNet<>(this.rules, rule -> rule.getMatcher().getShape());
+    }
+
+    @NotNull
+    public List<Rule<T>> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the rules that could match given value in their original order.
+     */
+    @NotNull
+    public List<Rule<T>> candidates(@NotNull T value) {
+        return net.candidates(value);
+    }
+
+    /**
+     * Rewrites given value using the first matching rule. If no rule matches,
+     * returns {@link Optional#empty()}.
+     */
+    @NotNull
+    public Optional<T> rewrite(@NotNull T value) {
+        MatcherMetrics metrics = Instrumentation.metrics();
+        if (metrics != null && !metrics.measuresRules())
+            metrics = null;
+
+        for (Rule<T> rule : net.candidates(value)) {
+            Optional<T> result;
+            if (metrics == null) {
+                result = rule.rewrite(value);
+            } else {
+                Object started = metrics.ruleStarting(rule.getLabel());
+                long start = System.nanoTime();
+                result = rule.rewrite(value);
+                metrics.ruleAttempted(started, rule.getLabel(), result.isPresent(), System.nanoTime() - start);
+            }
+
+            if (result.isPresent())
+                return result;
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Rewrites the value until no rule matches. If no rule matches at all,
+     * returns the original value.
+     *
+     * @see Matcher#rewriteAll(Object, java.util.function.BiConsumer)
+     */
+    @NotNull
+    public T rewriteAll(@NotNull T value) {
+        return rewriteAll(value, Budget.unlimited());
+    }
+
+    /**
+     * Rewrites the value like {@link #rewriteAll(Object)} until no rule matches or given limits are reached.
+     */
+    @NotNull
+    public RewriteResult<T> rewriteAll(@NotNull T value, @NotNull RewriteLimits limits) {
+        Budget budget = limits.start();
+        return budget.result(rewriteAll(value, budget));
+    }
+
+    @NotNull
+    private T rewriteAll(@NotNull T value, @NotNull Budget budget) {
+        T lastValue = value;
+        while (true) {
+            if (!budget.allowsStep(lastValue)) {
+                if (!matches(lastValue))
+                    budget.reachedFixpoint();
+                return lastValue;
+            }
+
+            T rewritten = rewrite(lastValue).orElse(null);
+            if (rewritten == null)
+                return lastValue;
+
+            budget.stepTaken();
+            lastValue = rewritten;
+        }
+    }
+
+    private boolean matches(@NotNull T value) {
+        for (Rule<T> rule : net.candidates(value))
+            if (rule.getMatcher().apply(value).isSuccess())
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,167 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Describes the structure that a {@link Matcher} requires from the values it matches.
+ *
+ * Shapes are conservative: a matcher may reject values that conform to its shape, but it
+ * must never accept a value that does not conform to it. This allows {@link RuleSet} to
+ * skip rules that can't possibly match without running them.
+ */
+public abstract class Shape {
+
+    @NotNull
+    private static final Shape ANY = new AnyShape();
+
+    private Shape() { }
+
+    /**
+     * Returns a shape that matches any value.
+     */
+    @NotNull
+    public static Shape any() {
+        return ANY;
+    }
+
+    /**
+     * Returns a shape that matches instances of given type.
+     */
+    @NotNull
+    public static Shape instanceOf(@NotNull Class<?> type) {
+        return new NodeShape(type, new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * Returns a shape that matches values equal to given value.
+     */
+    @NotNull
+    public static Shape equalTo(@Nullable Object value) {
+        return new ConstantShape(value);
+    }
+
+    /**
+     * Returns a shape that matches instances of given type whose children, accessed through
+     * {@code getters}, match corresponding {@code children}.
+     */
+    @NotNull
+    public static Shape node(@NotNull Class<?> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull List<Shape> children) {
+        if (getters.size() != children.size())
+            throw new IllegalArgumentException("got " + getters.size() + " getters, but " + children.size() + " children");
+
+        return new NodeShape(type, getters, children);
+    }
+
+    /**
+     * Adds conditions implied by this shape for value at given path to {@code conditions}.
+     */
+    abstract void collectConditions(@NotNull List<Function<Object, Object>> path, @NotNull List<Condition> conditions);
+
+    /**
+     * A test that a value found by applying getters of {@code path} to the root value must pass.
+     * Condition either tests that the value is an instance of {@link #type} or that it equals {@link #constant}.
+     */
+    static final class Condition {
+
+        @NotNull
+        final List<Function<Object, Object>> path;
+
+        @Nullable
+        final Class<?> type;
+
+        @Nullable
+        final Object constant;
+
+        private Condition(@NotNull List<Function<Object, Object>> path, @Nullable Class<?> type, @Nullable Object constant) {
+            this.path = unmodifiableList(path);
+            this.type = type;
+            this.constant = constant;
+        }
+
+        boolean isConstant() {
+            return type == null;
+        }
+
+        boolean test(@Nullable Object value) {
+            return type != null ? type.isInstance(value) : Objects.equals(constant, value);
+        }
+    }
+
+    private static final class AnyShape extends Shape {
+
+        @Override
+        void collectConditions(@NotNull List<Function<Object, Object>> path, @NotNull List<Condition> conditions) {
+        }
+
+        @Override
+        public String toString() {
+            return "_";
+        }
+    }
+
+    private static final class ConstantShape extends Shape {
+
+        @Nullable
+        private final Object value;
+
+        ConstantShape(@Nullable Object value) {
+            this.value = value;
+        }
+
+        @Override
+        void collectConditions(@NotNull List<Function<Object, Object>> path, @NotNull List<Condition> conditions) {
+            conditions.add(new Condition(path, null, value));
+        }
+
+        @Override
+        public String toString() {
+            return "=" + value;
+        }
+    }
+
+    private static final class NodeShape extends Shape {
+
+        @NotNull
+        private final Class<?> type;
+
+        @NotNull
+        private final List<? extends Function<?, ?>> getters;
+
+        @NotNull
+        private final List<Shape> children;
+
+        NodeShape(@NotNull Class<?> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull List<Shape> children) {
+            this.type = type;
+            this.getters = getters;
+            this.children = children;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void collectConditions(@NotNull List<Function<Object, Object>> path, @NotNull List<Condition> conditions) {
+            conditions.add(new Condition(path, type, null));
+
+            for (int i = 0; i < children.size(); i++) {
+                // Getters are only applied after the type test above has passed
+                List<Function<Object, Object>> childPath = new ArrayList<>(path.size() + 1);
+                childPath.addAll(path);
+                childPath.add((Function<Object, Object>) getters.get(i));
+
+                children.get(i).collectConditions(childPath, conditions);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return type.getSimpleName() + children;
+        }
+    }
+}
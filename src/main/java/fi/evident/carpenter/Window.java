@@ -0,0 +1,119 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.utils.PersistentVector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import static fi.evident.carpenter.utils.CollectionUtils.copyWithReplacedSubList;
+
+/**
+ * Matches of consecutive elements of a list starting at {@link #index}, found by
+ * the pattern with index {@link #pattern}.
+ */
+final class Window<T> {
+
+    final int index;
+
+    final int pattern;
+
+    @NotNull
+    final List<Match<T>> matches;
+
+    @NotNull
+    final Constraints constraints;
+
+    Window(int index, @NotNull List<Match<T>> matches, @NotNull Constraints constraints) {
+        this(index, 0, matches, constraints);
+    }
+
+    Window(int index, int pattern, @NotNull List<Match<T>> matches, @NotNull Constraints constraints) {
+        this.index = index;
+        this.pattern = pattern;
+        this.matches = matches;
+        this.constraints = constraints;
+    }
+
+    @NotNull
+    Match<List<T>> toMatch(@NotNull List<T> values) {
+        return Match.fromList(values, vs -> copyWithReplacedSubList(values, index, vs), matches, constraints);
+    }
+
+    /**
+     * Finds matching windows of a list.
+     */
+    interface Finder<T> {
+
+        /**
+         * Returns the first matching window starting at {@code from} or after it,
+         * or {@code null} if there is no such window.
+         */
+        @Nullable
+        Window<T> find(@NotNull List<T> values, int from);
+    }
+
+    /**
+     * Rewrites the first window found by {@code finder} until no window matches.
+     *
+     * Rebuilding a match only changes the matched elements, so the windows starting before
+     * the match stay unchanged and therefore still fail to match after the rewrite. Hence
+     * the scanning can continue from the first window that can overlap the rewritten elements
+     * instead of starting from the beginning, and the rewrites can be applied to a single working
+     * copy instead of copying the list for every rewrite. {@link PersistentVector}s are updated
+     * persistently instead, so the result is a vector sharing structure with the original. The result
+     * is identical to rewriting the list from the beginning after every rewrite. A single
+     * {@link MatchRewrites} is reused for all the rewrites. Since the working copy changes in place,
+     * the budget is given a snapshot of it when it keeps the states for detecting cycles.
+     *
+     * @param maxWindowSize size of the largest window {@code finder} can return
+     * @param rewriteGenerators returns the rewrite generator for windows of given pattern
+     * @param budget consulted before every rewrite
+     */
+    @NotNull
+    static <T> List<T> rewriteAll(@NotNull Finder<T> finder, int maxWindowSize, @NotNull List<T> value,
+                                  @NotNull IntFunction<? extends BiConsumer<Match<List<T>>, MatchRewrites>> rewriteGenerators,
+                                  @NotNull Budget budget) {
+        List<T> current = value;
+        List<T> working = null;
+        int from = 0;
+
+        MatchRewrites rewrites = MatchRewrites.acquire();
+        try {
+            while (true) {
+                Window<T> window = finder.find(current, from);
+                if (window == null || !budget.allowsStep(current == working && budget.keepsStates() ? new ArrayList<>(working) : current))
+                    return current;
+
+                rewrites.clear();
+                rewriteGenerators.apply(window.pattern).accept(window.toMatch(current), rewrites);
+
+                if (current instanceof PersistentVector) {
+                    // Persistent vectors are updated in place of a working copy, so that the result shares their structure
+                    PersistentVector<T> vector = (PersistentVector<T>) current;
+                    int i = window.index;
+                    for (Match<T> m : window.matches)
+                        vector = vector.with(i++, m.rebuild(rewrites));
+                    current = vector;
+                } else {
+                    if (working == null) {
+                        working = new ArrayList<>(value);
+                        current = working;
+                    }
+
+                    int i = window.index;
+                    for (Match<T> m : window.matches)
+                        working.set(i++, m.rebuild(rewrites));
+                }
+
+                budget.stepTaken();
+                from = Math.max(0, window.index - Math.max(maxWindowSize - 1, 0));
+            }
+        } finally {
+            rewrites.release();
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package fi.evident.carpenter.functions;
+
+@FunctionalInterface
+public interface ObjIntFunction<V1, T> {
+    T apply(V1 v1, int v2);
+}
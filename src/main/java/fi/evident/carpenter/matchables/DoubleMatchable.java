@@ -0,0 +1,26 @@
+package fi.evident.carpenter.matchables;
+
+import fi.evident.carpenter.DoubleMatcher;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Matchable for values with a single primitive {@code double} child.
+ *
+ * @see Matchables#matchableDouble
+ */
+@FunctionalInterface
+public interface DoubleMatchable<T> extends Matchable<T> {
+
+    @NotNull
+    Match<T> match(@NotNull T value, @NotNull DoubleMatcher matcher);
+
+    /**
+     * Returns a matcher that matches values using given matcher for the child.
+     */
+    @NotNull
+    default Matcher<T> matcher(@NotNull DoubleMatcher matcher) {
+        return Matcher.from(value -> match(value, matcher));
+    }
+}
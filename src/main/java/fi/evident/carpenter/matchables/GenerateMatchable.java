@@ -0,0 +1,32 @@
+package fi.evident.carpenter.matchables;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Requests the annotation processor of the {@code processor} module to generate a matchable
+ * for the annotated class or record.
+ *
+ * For class {@code Foo}, the processor generates class {@code FooMatchable} (or {@code Outer_FooMatchable}
+ * for nested classes) in the same package. It has a singleton {@code INSTANCE} with {@code match} and
+ * {@code matcher} methods taking a matcher for every instance field in declaration order, or every record
+ * component. Unlike {@link Matchables#matchable(Class, java.util.function.Function, java.util.function.Function)},
+ * there's no limit on the number of children and the generated code accesses fields and calls the
+ * constructor directly. Fields of type {@code int}, {@code long} and {@code double} are matched with
+ * {@link fi.evident.carpenter.IntMatcher} and friends. Classes with one to four children that are all
+ * references also implement the corresponding {@code MatchableX} interface.
+ *
+ * The class must have a non-private constructor that takes the fields in declaration order. Private
+ * fields are read through accessors named {@code field()}, {@code getField()} or {@code isField()}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateMatchable {
+
+    /**
+     * The base type of values matched by the generated matchable. Defaults to the annotated class.
+     */
+    Class<?> base() default void.class;
+}
@@ -0,0 +1,26 @@
+package fi.evident.carpenter.matchables;
+
+import fi.evident.carpenter.IntMatcher;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Matchable for values with a single primitive {@code int} child.
+ *
+ * @see Matchables#matchableInt
+ */
+@FunctionalInterface
+public interface IntMatchable<T> extends Matchable<T> {
+
+    @NotNull
+    Match<T> match(@NotNull T value, @NotNull IntMatcher matcher);
+
+    /**
+     * Returns a matcher that matches values using given matcher for the child.
+     */
+    @NotNull
+    default Matcher<T> matcher(@NotNull IntMatcher matcher) {
+        return Matcher.from(value -> match(value, matcher));
+    }
+}
@@ -0,0 +1,19 @@
+package fi.evident.carpenter.matchables;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Common super-interface of {@code MatchableX} interfaces.
+ */
+public interface Matchable<T> {
+
+    /**
+     * Returns the {@link NodeType} describing the children of the values matched by this matchable.
+     *
+     * @throws UnsupportedOperationException if this matchable was not created by {@link Matchables}
+     */
+    @NotNull
+    default NodeType<T> getNodeType() {
+        throw new UnsupportedOperationException("node type is not known for " + this);
+    }
+}
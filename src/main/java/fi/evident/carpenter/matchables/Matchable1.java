@@ -5,8 +5,16 @@ import fi.evident.carpenter.Matcher;
 import org.jetbrains.annotations.NotNull;
 
 @FunctionalInterface
-public interface Matchable1<T,V1> {
+public interface Matchable1<T,V1> extends Matchable<T> {
 
     @NotNull
     Match<T> match(@NotNull T value, @NotNull Matcher<V1> matcher);
+
+    /**
+     * Returns a matcher that matches values using given matchers for the children.
+     */
+    @NotNull
+    default Matcher<T> matcher(@NotNull Matcher<V1> matcher) {
+        return Matcher.from(value -> match(value, matcher));
+    }
 }
@@ -5,8 +5,16 @@ import fi.evident.carpenter.Matcher;
 import org.jetbrains.annotations.NotNull;
 
 @FunctionalInterface
-public interface Matchable4<T,V1,V2,V3,V4> {
+public interface Matchable4<T,V1,V2,V3,V4> extends Matchable<T> {
 
     @NotNull
     Match<T> match(@NotNull T value, @NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3, @NotNull Matcher<V4> matcher4);
+
+    /**
+     * Returns a matcher that matches values using given matchers for the children.
+     */
+    @NotNull
+    default Matcher<T> matcher(@NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3, @NotNull Matcher<V4> matcher4) {
+        return Matcher.from(value -> match(value, matcher1, matcher2, matcher3, matcher4));
+    }
 }
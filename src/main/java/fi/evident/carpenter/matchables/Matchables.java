@@ -1,15 +1,53 @@
 package fi.evident.carpenter.matchables;
 
+import fi.evident.carpenter.Constraints;
+import fi.evident.carpenter.DoubleMatcher;
+import fi.evident.carpenter.IntMatcher;
+import fi.evident.carpenter.LongMatcher;
 import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.Shape;
 import fi.evident.carpenter.functions.Function3;
 import fi.evident.carpenter.functions.Function4;
+import fi.evident.carpenter.functions.ObjIntFunction;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.function.BiFunction;
+import java.util.function.DoubleFunction;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 
 /**
  * Constructs {@code MatchableX} instances from accessor and constructor references.
+ *
+ * Children are matched from left to right and their constraints are merged as the
+ * matching proceeds, so the remaining children are not matched at all once a child
+ * fails or binds a capture inconsistently.
+ *
+ * Rebuilding a match returns the original value if no capture inside it has been replaced,
+ * so only the nodes on the path to actual replacements are constructed again. The matches
+ * share a single constructor function per matchable instead of capturing their children
+ * in closures of their own.
+ *
+ * The {@code matchableInt}, {@code matchableLong} and {@code matchableDouble} variants take
+ * primitive getters and match the primitive children with {@link IntMatcher}s and friends,
+ * so that matching them never boxes. (They can't be overloads of {@code matchable}, since
+ * constructor references of primitive-taking constructors would make calls ambiguous.)
+ *
+ * When the matchers of the children have several alternatives, {@link Matcher#matchAll(Object)} of
+ * the matchers returned by the {@code matcher} methods backtracks over their combinations lazily.
+ *
+ * Matchers returned by the {@code matcher} methods of the constructed instances describe
+ * their structure through {@link Matcher#getShape()}, so they can be indexed by
+ * {@link fi.evident.carpenter.RuleSet}, and can be compiled with {@link Matcher#compile()}.
  */
 public final class Matchables {
 
@@ -17,36 +55,142 @@ public final class Matchables {
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <S, T extends S, V>
     Matchable1<S, V> matchable(@NotNull Class<T> type,
                                @NotNull Function<V, S> ctor,
                                @NotNull Function<? super T, ? extends V> getter) {
-        return (value, matcher) ->
-                withType(type, value, (T v) -> Match.from(ctor, matcher.apply(getter.apply(v))));
+        Function<Object[], S> construct = args -> ctor.apply((V) args[0]);
+        NodeType<S> nodeType = new NodeType<>(type, singletonList(getter), construct);
+
+        return new Matchable1<S, V>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull Matcher<V> matcher) {
+                return withType(type, value, (T v) -> {
+                    Match<V> m = matcher.apply(getter.apply(v));
+                    return Match.fromChildren(value, construct, m.getConstraints(), m);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull Matcher<V> matcher) {
+                return Matcher.fromNode(type, nodeType.getGetters(), construct, singletonList(matcher),
+                                        value -> match(value, matcher),
+                                        value -> allWithType(type, value, (T v) ->
+                                                Match.allFromChildren(value, construct, 1, i -> matcher.matchAll(getter.apply(v)))));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <S, T extends S, V1, V2>
     Matchable2<S, V1, V2> matchable(@NotNull Class<T> type,
                                     @NotNull BiFunction<V1, V2, S> ctor,
                                     @NotNull Function<? super T, ? extends V1> getter1,
                                     @NotNull Function<? super T, ? extends V2> getter2) {
-        return (value, matcher1, matcher2) ->
-                withType(type, value, (T v) -> Match.from(ctor, matcher1.apply(getter1.apply(v)), matcher2.apply(getter2.apply(v))));
+        Function<Object[], S> construct = args -> ctor.apply((V1) args[0], (V2) args[1]);
+        NodeType<S> nodeType = new NodeType<>(type, asList(getter1, getter2), construct);
+
+        return new Matchable2<S, V1, V2>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2) {
+                return withType(type, value, (T v) -> {
+                    Match<V1> m1 = matcher1.apply(getter1.apply(v));
+                    Constraints constraints = m1.getConstraints();
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V2> m2 = matcher2.apply(getter2.apply(v));
+                    constraints = constraints.merge(m2.getConstraints());
+
+                    return Match.fromChildren(value, construct, constraints, m1, m2);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2) {
+                return Matcher.fromNode(type, nodeType.getGetters(), construct, asList(matcher1, matcher2),
+                                        value -> match(value, matcher1, matcher2),
+                                        value -> allWithType(type, value, (T v) ->
+                                                Match.allFromChildren(value, construct, 2, i -> i == 0
+                                                        ? matcher1.matchAll(getter1.apply(v))
+                                                        : matcher2.matchAll(getter2.apply(v)))));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <S, T extends S, V1, V2, V3>
     Matchable3<S, V1, V2, V3> matchable(@NotNull Class<T> type,
                                         @NotNull Function3<V1, V2, V3, S> ctor,
                                         @NotNull Function<? super T, ? extends V1> getter1,
                                         @NotNull Function<? super T, ? extends V2> getter2,
                                         @NotNull Function<? super T, ? extends V3> getter3) {
-        return (value, matcher1, matcher2, matcher3) ->
-                withType(type, value, (T v) -> Match.from(ctor, matcher1.apply(getter1.apply(v)), matcher2.apply(getter2.apply(v)), matcher3.apply(getter3.apply(v))));
+        Function<Object[], S> construct = args -> ctor.apply((V1) args[0], (V2) args[1], (V3) args[2]);
+        NodeType<S> nodeType = new NodeType<>(type, asList(getter1, getter2, getter3), construct);
+
+        return new Matchable3<S, V1, V2, V3>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3) {
+                return withType(type, value, (T v) -> {
+                    Match<V1> m1 = matcher1.apply(getter1.apply(v));
+                    Constraints constraints = m1.getConstraints();
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V2> m2 = matcher2.apply(getter2.apply(v));
+                    constraints = constraints.merge(m2.getConstraints());
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V3> m3 = matcher3.apply(getter3.apply(v));
+                    constraints = constraints.merge(m3.getConstraints());
+
+                    return Match.fromChildren(value, construct, constraints, m1, m2, m3);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3) {
+                return Matcher.fromNode(type, nodeType.getGetters(), construct, asList(matcher1, matcher2, matcher3),
+                                        value -> match(value, matcher1, matcher2, matcher3),
+                                        value -> allWithType(type, value, (T v) ->
+                                                Match.allFromChildren(value, construct, 3, i -> {
+                                                    switch (i) {
+                                                        case 0:  return matcher1.matchAll(getter1.apply(v));
+                                                        case 1:  return matcher2.matchAll(getter2.apply(v));
+                                                        default: return matcher3.matchAll(getter3.apply(v));
+                                                    }
+                                                })));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
     }
 
     @NotNull
+    @SuppressWarnings("unchecked")
     public static <S, T extends S, V1, V2, V3, V4>
     Matchable4<S, V1, V2, V3, V4> matchable(@NotNull Class<T> type,
                                             @NotNull Function4<V1, V2, V3, V4, S> ctor,
@@ -54,8 +198,235 @@ public final class Matchables {
                                             @NotNull Function<? super T, ? extends V2> getter2,
                                             @NotNull Function<? super T, ? extends V3> getter3,
                                             @NotNull Function<? super T, ? extends V4> getter4) {
-        return (value, matcher1, matcher2, matcher3, matcher4) ->
-                withType(type, value, (T v) -> Match.from(ctor, matcher1.apply(getter1.apply(v)), matcher2.apply(getter2.apply(v)), matcher3.apply(getter3.apply(v)), matcher4.apply(getter4.apply(v))));
+        Function<Object[], S> construct = args -> ctor.apply((V1) args[0], (V2) args[1], (V3) args[2], (V4) args[3]);
+        NodeType<S> nodeType = new NodeType<>(type, asList(getter1, getter2, getter3, getter4), construct);
+
+        return new Matchable4<S, V1, V2, V3, V4>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3, @NotNull Matcher<V4> matcher4) {
+                return withType(type, value, (T v) -> {
+                    Match<V1> m1 = matcher1.apply(getter1.apply(v));
+                    Constraints constraints = m1.getConstraints();
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V2> m2 = matcher2.apply(getter2.apply(v));
+                    constraints = constraints.merge(m2.getConstraints());
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V3> m3 = matcher3.apply(getter3.apply(v));
+                    constraints = constraints.merge(m3.getConstraints());
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    Match<V4> m4 = matcher4.apply(getter4.apply(v));
+                    constraints = constraints.merge(m4.getConstraints());
+
+                    return Match.fromChildren(value, construct, constraints, m1, m2, m3, m4);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull Matcher<V1> matcher1, @NotNull Matcher<V2> matcher2, @NotNull Matcher<V3> matcher3, @NotNull Matcher<V4> matcher4) {
+                return Matcher.fromNode(type, nodeType.getGetters(), construct, asList(matcher1, matcher2, matcher3, matcher4),
+                                        value -> match(value, matcher1, matcher2, matcher3, matcher4),
+                                        value -> allWithType(type, value, (T v) ->
+                                                Match.allFromChildren(value, construct, 4, i -> {
+                                                    switch (i) {
+                                                        case 0:  return matcher1.matchAll(getter1.apply(v));
+                                                        case 1:  return matcher2.matchAll(getter2.apply(v));
+                                                        case 2:  return matcher3.matchAll(getter3.apply(v));
+                                                        default: return matcher4.matchAll(getter4.apply(v));
+                                                    }
+                                                })));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
+    }
+
+    /**
+     * Variant of {@link #matchable(Class, Function, Function)} for values with a single primitive
+     * {@code int} child. The child is matched with {@link IntMatcher}s without boxing it.
+     */
+    @NotNull
+    public static <S, T extends S>
+    IntMatchable<S> matchableInt(@NotNull Class<T> type,
+                                   @NotNull IntFunction<S> ctor,
+                                   @NotNull ToIntFunction<? super T> getter) {
+        Function<T, Integer> boxedGetter = getter::applyAsInt;
+        NodeType<S> nodeType = new NodeType<>(type, singletonList(boxedGetter), args -> ctor.apply((Integer) args[0]));
+
+        return new IntMatchable<S>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull IntMatcher matcher) {
+                return withType(type, value, (T v) -> {
+                    int child = getter.applyAsInt(v);
+                    Constraints constraints = matcher.match(child);
+
+                    // Without captures nothing can be replaced, so there's no need for a rebuilder
+                    if (constraints.isEmpty())
+                        return Match.constant(value);
+
+                    return Match.from(value, rewrites -> ctor.apply(matcher.rebuild(child, rewrites)), constraints);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull IntMatcher matcher) {
+                return Matcher.from(value -> match(value, matcher), Shape.node(nodeType.getType(), nodeType.getGetters(), singletonList(matcher.getShape())));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
+    }
+
+    /**
+     * Variant of {@link #matchable(Class, Function, Function)} for values with a single primitive
+     * {@code long} child. The child is matched with {@link LongMatcher}s without boxing it.
+     */
+    @NotNull
+    public static <S, T extends S>
+    LongMatchable<S> matchableLong(@NotNull Class<T> type,
+                                   @NotNull LongFunction<S> ctor,
+                                   @NotNull ToLongFunction<? super T> getter) {
+        Function<T, Long> boxedGetter = getter::applyAsLong;
+        NodeType<S> nodeType = new NodeType<>(type, singletonList(boxedGetter), args -> ctor.apply((Long) args[0]));
+
+        return new LongMatchable<S>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull LongMatcher matcher) {
+                return withType(type, value, (T v) -> {
+                    long child = getter.applyAsLong(v);
+                    Constraints constraints = matcher.match(child);
+
+                    // Without captures nothing can be replaced, so there's no need for a rebuilder
+                    if (constraints.isEmpty())
+                        return Match.constant(value);
+
+                    return Match.from(value, rewrites -> ctor.apply(matcher.rebuild(child, rewrites)), constraints);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull LongMatcher matcher) {
+                return Matcher.from(value -> match(value, matcher), Shape.node(nodeType.getType(), nodeType.getGetters(), singletonList(matcher.getShape())));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
+    }
+
+    /**
+     * Variant of {@link #matchable(Class, Function, Function)} for values with a single primitive
+     * {@code double} child. The child is matched with {@link DoubleMatcher}s without boxing it.
+     */
+    @NotNull
+    public static <S, T extends S>
+    DoubleMatchable<S> matchableDouble(@NotNull Class<T> type,
+                                   @NotNull DoubleFunction<S> ctor,
+                                   @NotNull ToDoubleFunction<? super T> getter) {
+        Function<T, Double> boxedGetter = getter::applyAsDouble;
+        NodeType<S> nodeType = new NodeType<>(type, singletonList(boxedGetter), args -> ctor.apply((Double) args[0]));
+
+        return new DoubleMatchable<S>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull DoubleMatcher matcher) {
+                return withType(type, value, (T v) -> {
+                    double child = getter.applyAsDouble(v);
+                    Constraints constraints = matcher.match(child);
+
+                    // Without captures nothing can be replaced, so there's no need for a rebuilder
+                    if (constraints.isEmpty())
+                        return Match.constant(value);
+
+                    return Match.from(value, rewrites -> ctor.apply(matcher.rebuild(child, rewrites)), constraints);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull DoubleMatcher matcher) {
+                return Matcher.from(value -> match(value, matcher), Shape.node(nodeType.getType(), nodeType.getGetters(), singletonList(matcher.getShape())));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
+    }
+
+    /**
+     * Variant of {@link #matchable(Class, BiFunction, Function, Function)} for values whose second child
+     * is a primitive {@code int}. The second child is matched with {@link IntMatcher}s without boxing it.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public static <S, T extends S, V>
+    ObjIntMatchable<S, V> matchableInt(@NotNull Class<T> type,
+                                       @NotNull ObjIntFunction<V, S> ctor,
+                                       @NotNull Function<? super T, ? extends V> getter1,
+                                       @NotNull ToIntFunction<? super T> getter2) {
+        Function<T, Integer> boxedGetter2 = getter2::applyAsInt;
+        NodeType<S> nodeType = new NodeType<>(type, asList(getter1, boxedGetter2), args -> ctor.apply((V) args[0], (Integer) args[1]));
+
+        return new ObjIntMatchable<S, V>() {
+            @NotNull
+            @Override
+            public Match<S> match(@NotNull S value, @NotNull Matcher<V> matcher1, @NotNull IntMatcher matcher2) {
+                return withType(type, value, (T v) -> {
+                    Match<V> m1 = matcher1.apply(getter1.apply(v));
+                    Constraints constraints = m1.getConstraints();
+                    if (constraints.isInvalid()) return Match.failure();
+
+                    int child2 = getter2.applyAsInt(v);
+                    constraints = constraints.merge(matcher2.match(child2));
+
+                    return Match.from(value, rewrites -> ctor.apply(m1.rebuild(rewrites), matcher2.rebuild(child2, rewrites)), constraints);
+                });
+            }
+
+            @NotNull
+            @Override
+            public Matcher<S> matcher(@NotNull Matcher<V> matcher1, @NotNull IntMatcher matcher2) {
+                return Matcher.from(value -> match(value, matcher1, matcher2),
+                                    value -> allWithType(type, value, (T v) -> {
+                                        int child2 = getter2.applyAsInt(v);
+                                        Constraints constraints2 = matcher2.match(child2);
+                                        if (constraints2.isInvalid()) return Stream.empty();
+
+                                        return matcher1.matchAll(getter1.apply(v))
+                                                .map(m1 -> Match.from(value, rewrites -> ctor.apply(m1.rebuild(rewrites), matcher2.rebuild(child2, rewrites)), m1.getConstraints().merge(constraints2)))
+                                                .filter(Match::isSuccess);
+                                    }),
+                                    Shape.node(nodeType.getType(), nodeType.getGetters(), asList(matcher1.getShape(), matcher2.getShape())));
+            }
+
+            @NotNull
+            @Override
+            public NodeType<S> getNodeType() {
+                return nodeType;
+            }
+        };
     }
 
     @NotNull
@@ -65,4 +436,12 @@ public final class Matchables {
         else
             return Match.failure();
     }
+
+    @NotNull
+    private static <S, T extends S> Stream<Match<S>> allWithType(@NotNull Class<T> type, @NotNull Object value, @NotNull Function<? super T, Stream<Match<S>>> callback) {
+        if (type.isInstance(value))
+            return callback.apply(type.cast(value));
+        else
+            return Stream.empty();
+    }
 }
@@ -0,0 +1,105 @@
+package fi.evident.carpenter.matchables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Generic access to the children of values of a single type, as declared to
+ * {@link Matchables#matchable(Class, Function, Function)} and its overloads.
+ *
+ * @param <S> the base type of the nodes
+ */
+public final class NodeType<S> {
+
+    @NotNull
+    private final Class<? extends S> type;
+
+    @NotNull
+    private final List<Function<?, ?>> getters;
+
+    @NotNull
+    private final Function<Object[], S> ctor;
+
+    NodeType(@NotNull Class<? extends S> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull Function<Object[], S> ctor) {
+        this.type = type;
+        this.getters = unmodifiableList(new ArrayList<>(getters));
+        this.ctor = ctor;
+    }
+
+    /**
+     * Creates a node type for matchables that are not created by {@link Matchables}, such as the
+     * ones generated for classes annotated with {@link GenerateMatchable}.
+     *
+     * @param getters getters of the children, each accepting an instance of {@code type}
+     * @param ctor constructs a new node from an array of children in the order of {@code getters}
+     */
+    @NotNull
+    public static <S> NodeType<S> of(@NotNull Class<? extends S> type, @NotNull List<? extends Function<?, ?>> getters, @NotNull Function<Object[], S> ctor) {
+        return new NodeType<>(type, getters, ctor);
+    }
+
+    /**
+     * Returns the type of nodes described by this node type.
+     */
+    @NotNull
+    public Class<? extends S> getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of children the nodes have.
+     */
+    public int getArity() {
+        return getters.size();
+    }
+
+    @NotNull
+    List<Function<?, ?>> getGetters() {
+        return getters;
+    }
+
+    /**
+     * Returns the child at given index of given node.
+     *
+     * @throws ClassCastException if the node is not an instance of {@link #getType()}
+     */
+    @SuppressWarnings("unchecked")
+    public Object getChild(@NotNull S node, int index) {
+        Function<Object, Object> getter = (Function<Object, Object>) getters.get(index);
+        return getter.apply(type.cast(node));
+    }
+
+    /**
+     * Returns all children of given node.
+     */
+    @NotNull
+    public Object[] getChildren(@NotNull S node) {
+        Object[] children = new Object[getters.size()];
+        for (int i = 0; i < children.length; i++)
+            children[i] = getChild(node, i);
+        return children;
+    }
+
+    /**
+     * Constructs a new node from given children.
+     *
+     * @throws ClassCastException if some child is not of the type expected by the constructor
+     */
+    @NotNull
+    public S construct(@NotNull Object[] children) {
+        if (children.length != getters.size())
+            throw new IllegalArgumentException("expected " + getters.size() + " children, but got " + children.length);
+
+        return ctor.apply(children);
+    }
+
+    @Override
+    public String toString() {
+        return "NodeType[" + type.getName() + "]";
+    }
+}
@@ -0,0 +1,27 @@
+package fi.evident.carpenter.matchables;
+
+import fi.evident.carpenter.IntMatcher;
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.Matcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Matchable for values with a reference child and a primitive {@code int} child,
+ * such as an address made of a base and an offset.
+ *
+ * @see Matchables#matchableInt(Class, fi.evident.carpenter.functions.ObjIntFunction, java.util.function.Function, java.util.function.ToIntFunction)
+ */
+@FunctionalInterface
+public interface ObjIntMatchable<T,V1> extends Matchable<T> {
+
+    @NotNull
+    Match<T> match(@NotNull T value, @NotNull Matcher<V1> matcher1, @NotNull IntMatcher matcher2);
+
+    /**
+     * Returns a matcher that matches values using given matchers for the children.
+     */
+    @NotNull
+    default Matcher<T> matcher(@NotNull Matcher<V1> matcher1, @NotNull IntMatcher matcher2) {
+        return Matcher.from(value -> match(value, matcher1, matcher2));
+    }
+}
@@ -0,0 +1,239 @@
+package fi.evident.carpenter.metrics;
+
+import fi.evident.carpenter.MatcherMetrics;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * {@link MatcherMetrics} that accumulates counters for every instrumented matcher and can
+ * export them over JMX.
+ *
+ * <pre>
+ * MatcherStatistics statistics = new MatcherStatistics();
+ * statistics.registerMBeans();
+ * Instrumentation.install(statistics);
+ * </pre>
+ */
+public final class MatcherStatistics implements MatcherMetrics {
+
+    /**
+     * JMX domain of the registered MBeans.
+     */
+    @NotNull
+    public static final String DOMAIN = "fi.evident.carpenter";
+
+    static final int DEPTH_BUCKETS = 8;
+
+    @NotNull
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final List<MBeanServer> servers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void matchAttempted(@NotNull Object started, @NotNull String name, boolean success, int partialMatches, int conflicts, long nanos) {
+        Entry entry = entry(name);
+        entry.attempts.increment();
+        if (success)
+            entry.successes.increment();
+        else
+            entry.failuresByDepth[depthBucket(partialMatches)].increment();
+        if (conflicts != 0)
+            entry.conflicts.add(conflicts);
+        entry.matchNanos.add(nanos);
+    }
+
+    @Override
+    public void rewritten(@NotNull Object started, @NotNull String name, int steps, long nanos) {
+        Entry entry = entry(name);
+        entry.rewrites.increment();
+        entry.rewriteSteps.add(steps);
+        entry.rewriteNanos.add(nanos);
+    }
+
+    /**
+     * Returns the statistics of matcher with given name or {@code null} if it hasn't reported anything.
+     */
+    @Nullable
+    public MatcherStatisticsMXBean get(@NotNull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the statistics of all matchers that have reported something.
+     */
+    @NotNull
+    public Collection<? extends MatcherStatisticsMXBean> getAll() {
+        return unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void reset() {
+        for (Entry entry : entries.values())
+            entry.reset();
+    }
+
+    /**
+     * Registers MBeans to the platform MBean server.
+     *
+     * @see #registerMBeans(MBeanServer)
+     */
+    public void registerMBeans() {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Registers an MBean for every matcher to given server under {@link #DOMAIN}. Matchers
+     * reporting for the first time after this call are registered when they are first seen.
+     */
+    public void registerMBeans(@NotNull MBeanServer server) {
+        servers.add(server);
+
+        for (Entry entry : new ArrayList<>(entries.values()))
+            register(server, entry);
+    }
+
+    @NotNull
+    private Entry entry(@NotNull String name) {
+        Entry entry = entries.get(name);
+        if (entry != null)
+            return entry;
+
+        Entry newEntry = new Entry(name);
+        entry = entries.putIfAbsent(name, newEntry);
+        if (entry != null)
+            return entry;
+
+        for (MBeanServer server : servers)
+            register(server, newEntry);
+
+        return newEntry;
+    }
+
+    private static void register(@NotNull MBeanServer server, @NotNull Entry entry) {
+        try {
+            server.registerMBean(entry, new ObjectName(DOMAIN + ":type=Matcher,name=" + ObjectName.quote(entry.name)));
+        } catch (InstanceAlreadyExistsException e) {
+            // registerMBeans was called while the entry was being created, so it's already there
+        } catch (JMException e) {
+            throw new IllegalStateException("failed to register MBean for " + entry.name, e);
+        }
+    }
+
+    static int depthBucket(int partialMatches) {
+        return Math.min(DEPTH_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(partialMatches));
+    }
+
+    private static final class Entry implements MatcherStatisticsMXBean {
+
+        @NotNull
+        private final String name;
+
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder[] failuresByDepth = new LongAdder[DEPTH_BUCKETS];
+        private final LongAdder conflicts = new LongAdder();
+        private final LongAdder matchNanos = new LongAdder();
+        private final LongAdder rewrites = new LongAdder();
+        private final LongAdder rewriteSteps = new LongAdder();
+        private final LongAdder rewriteNanos = new LongAdder();
+
+        Entry(@NotNull String name) {
+            this.name = name;
+
+            for (int i = 0; i < failuresByDepth.length; i++)
+                failuresByDepth[i] = new LongAdder();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getAttempts() {
+            return attempts.sum();
+        }
+
+        @Override
+        public long getSuccesses() {
+            return successes.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            long sum = 0;
+            for (LongAdder failures : failuresByDepth)
+                sum += failures.sum();
+            return sum;
+        }
+
+        @Override
+        public long[] getFailuresByDepth() {
+            long[] result = new long[failuresByDepth.length];
+            for (int i = 0; i < result.length; i++)
+                result[i] = failuresByDepth[i].sum();
+            return result;
+        }
+
+        @Override
+        public long getConstraintConflicts() {
+            return conflicts.sum();
+        }
+
+        @Override
+        public long getMatchTimeNanos() {
+            return matchNanos.sum();
+        }
+
+        @Override
+        public long getRewrites() {
+            return rewrites.sum();
+        }
+
+        @Override
+        public long getRewriteSteps() {
+            return rewriteSteps.sum();
+        }
+
+        @Override
+        public long getRewriteTimeNanos() {
+            return rewriteNanos.sum();
+        }
+
+        @Override
+        public void reset() {
+            attempts.reset();
+            successes.reset();
+            for (LongAdder failures : failuresByDepth)
+                failures.reset();
+            conflicts.reset();
+            matchNanos.reset();
+            rewrites.reset();
+            rewriteSteps.reset();
+            rewriteNanos.reset();
+        }
+
+        @Override
+        public String toString() {
+            return name + "[attempts=" + getAttempts() + ", successes=" + getSuccesses() + ", conflicts=" + getConstraintConflicts() + "]";
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package fi.evident.carpenter.metrics;
+
+/**
+ * JMX view of the statistics of a single instrumented matcher.
+ *
+ * @see MatcherStatistics#registerMBeans(javax.management.MBeanServer)
+ */
+public interface MatcherStatisticsMXBean {
+
+    String getName();
+
+    long getAttempts();
+
+    long getSuccesses();
+
+    long getFailures();
+
+    /**
+     * Returns failures bucketed by the number of partial matches produced before the failure:
+     * bucket 0 counts failures without partial matches, bucket {@code k} failures with
+     * 2<sup>k-1</sup> to 2<sup>k</sup>-1 partial matches, and the last bucket everything beyond.
+     * Failures in the high buckets are those that did a lot of work before failing.
+     */
+    long[] getFailuresByDepth();
+
+    long getConstraintConflicts();
+
+    long getMatchTimeNanos();
+
+    long getRewrites();
+
+    long getRewriteSteps();
+
+    long getRewriteTimeNanos();
+
+    void reset();
+}
@@ -0,0 +1,30 @@
+package fi.evident.carpenter.strategies;
+
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.MatchRewrites;
+import fi.evident.carpenter.Matcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A rewrite step that either rewrites a value or fails by returning {@link Optional#empty()}.
+ *
+ * {@link fi.evident.carpenter.Rule#rewrite(Object)} and {@link fi.evident.carpenter.RuleSet#rewrite(Object)}
+ * can be used as strategies through method references.
+ */
+@FunctionalInterface
+public interface Strategy<T> {
+
+    @NotNull
+    Optional<T> apply(@NotNull T value);
+
+    /**
+     * Returns a strategy that rewrites values matched by {@code matcher} using {@code rewriteGenerator}.
+     */
+    @NotNull
+    static <T> Strategy<T> of(@NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        return value -> matcher.rewrite(value, rewriteGenerator);
+    }
+}
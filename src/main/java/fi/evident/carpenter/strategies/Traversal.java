@@ -0,0 +1,630 @@
+package fi.evident.carpenter.strategies;
+
+import fi.evident.carpenter.Match;
+import fi.evident.carpenter.MatchRewrites;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.matchables.Matchable;
+import fi.evident.carpenter.matchables.NodeType;
+import fi.evident.carpenter.utils.CollectionUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Applies {@link Strategy strategies} throughout trees whose nodes are described by
+ * {@link Matchable}s created with {@link fi.evident.carpenter.matchables.Matchables}.
+ *
+ * Children of a node that are instances of the base type of the traversal are visited,
+ * other children (e.g. primitive values) are left as they are. Nodes whose children did
+ * not change are returned as they are, so only the spines leading to actual rewrites are
+ * rebuilt.
+ *
+ * By default {@link #topdown(Object, Strategy)} and {@link #bottomup(Object, Strategy)} traverse
+ * every occurrence of a shared subtree separately. Traversals returned by {@link #withSharing()}
+ * and {@link #withSharing(Function)} remember the result for every distinct node they have
+ * traversed, so a subtree shared by many parents is rewritten only once and the parents share
+ * the rewritten subtree in the result. Normalising traversals always remember the results of
+ * node instances they have seen. All of this assumes that the strategy is a pure function of
+ * the node it is applied to.
+ *
+ * Traversals returned by {@link #withParallelism(ForkJoinPool, int)} traverse the children of
+ * large nodes in parallel and rebuild the parent once all children are done. The strategy must
+ * then be safe to call from multiple threads. Remembered results are confined to the task that
+ * produced them, except that a parent remembers the results of its children.
+ */
+public final class Traversal<T> {
+
+    @NotNull
+    private final Class<T> baseType;
+
+    @NotNull
+    private final List<NodeType<T>> nodeTypes;
+
+    private final boolean sharing;
+
+    /**
+     * Function that maps nodes to keys that identify distinct nodes, or {@code null} to
+     * identify nodes by their identity.
+     */
+    @Nullable
+    private final Function<? super T, ?> sharingKey;
+
+    /**
+     * Pool for traversing children in parallel, or {@code null} for sequential traversal.
+     */
+    @Nullable
+    private final ForkJoinPool pool;
+
+    /**
+     * Nodes with at most this many descendants have their children traversed sequentially.
+     */
+    private final int sequentialThreshold;
+
+    /**
+     * Sequential version of this traversal, used for subtrees that are too small to be
+     * traversed in parallel.
+     */
+    @NotNull
+    private final Traversal<T> sequential;
+
+    @NotNull
+    private final ClassValue<NodeType<T>> nodeTypeCache = new ClassValue<NodeType<T>>() {
+        @Override
+        @Nullable
+        protected NodeType<T> computeValue(@NotNull Class<?> type) {
+            for (NodeType<T> nodeType : nodeTypes)
+                if (nodeType.getType().isAssignableFrom(type))
+                    return nodeType;
+            return null;
+        }
+    };
+
+    /**
+     * Constructs a traversal over nodes of given base type.
+     *
+     * @throws UnsupportedOperationException if some matchable does not know its node type
+     */
+    public Traversal(@NotNull Class<T> baseType, @NotNull List<? extends Matchable<T>> matchables) {
+        this(baseType, CollectionUtils.map(matchables, Matchable::getNodeType), false, null, null, 0);
+    }
+
+    private Traversal(@NotNull Class<T> baseType, @NotNull List<NodeType<T>> nodeTypes, boolean sharing, @Nullable Function<? super T, ?> sharingKey,
+                      @Nullable ForkJoinPool pool, int sequentialThreshold) {
+        this.baseType = baseType;
+        this.nodeTypes = nodeTypes;
+        this.sharing = sharing;
+        this.sharingKey = sharingKey;
+        this.pool = pool;
+        this.sequentialThreshold = sequentialThreshold;
+        this.sequential = pool != null ? new Traversal<>(baseType, nodeTypes, sharing, sharingKey, null, 0) : this;
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    @NotNull
+    public static <T> Traversal<T> of(@NotNull Class<T> baseType, @NotNull Matchable<T>... matchables) {
+        return new Traversal<>(baseType, asList(matchables));
+    }
+
+    /**
+     * Returns a traversal that rewrites every distinct node instance only once.
+     */
+    @NotNull
+    public Traversal<T> withSharing() {
+        return new Traversal<>(baseType, nodeTypes, true, null, pool, sequentialThreshold);
+    }
+
+    /**
+     * Returns a traversal that rewrites nodes with equal keys only once, so that the
+     * results of structurally equal nodes are also shared. Since the key is computed
+     * for every visited node, computing it should be cheap: for example the node itself
+     * if its {@link Object#hashCode()} is cached.
+     */
+    @NotNull
+    public Traversal<T> withSharing(@NotNull Function<? super T, ?> key) {
+        return new Traversal<>(baseType, nodeTypes, true, key, pool, sequentialThreshold);
+    }
+
+    /**
+     * Returns a traversal that traverses the children of nodes with more than
+     * {@code sequentialThreshold} descendants in parallel using given pool.
+     */
+    @NotNull
+    public Traversal<T> withParallelism(@NotNull ForkJoinPool pool, int sequentialThreshold) {
+        if (sequentialThreshold < 1)
+            throw new IllegalArgumentException("invalid threshold: " + sequentialThreshold);
+
+        return new Traversal<>(baseType, nodeTypes, sharing, sharingKey, pool, sequentialThreshold);
+    }
+
+    /**
+     * Returns a traversal that traverses the children of nodes with more than
+     * {@code sequentialThreshold} descendants in parallel using the common pool.
+     */
+    @NotNull
+    public Traversal<T> withParallelism(int sequentialThreshold) {
+        return withParallelism(ForkJoinPool.commonPool(), sequentialThreshold);
+    }
+
+    /**
+     * Applies {@code strategy} once to every node, parents before children. Children of
+     * the rewritten node are visited, but the rewritten node itself is not revisited.
+     */
+    @NotNull
+    public T topdown(@NotNull T value, @NotNull Strategy<T> strategy) {
+        return run(() -> topdown(value, strategy, sharing ? newMemo() : null));
+    }
+
+    @NotNull
+    private T topdown(@NotNull T value, @NotNull Strategy<T> strategy, @Nullable Memo<T> memo) {
+        T cached = memo != null ? memo.get(value) : null;
+        if (cached != null)
+            return cached;
+
+        T rewritten = strategy.apply(value).orElse(value);
+        T result = mapChildren(rewritten, memo, (traversal, child, m) -> traversal.topdown(child, strategy, m));
+
+        if (memo != null)
+            memo.put(value, result);
+        return result;
+    }
+
+    /**
+     * Applies {@code strategy} once to every node, children before parents.
+     */
+    @NotNull
+    public T bottomup(@NotNull T value, @NotNull Strategy<T> strategy) {
+        return run(() -> bottomup(value, strategy, sharing ? newMemo() : null));
+    }
+
+    @NotNull
+    private T bottomup(@NotNull T value, @NotNull Strategy<T> strategy, @Nullable Memo<T> memo) {
+        T cached = memo != null ? memo.get(value) : null;
+        if (cached != null)
+            return cached;
+
+        T rewritten = mapChildren(value, memo, (traversal, child, m) -> traversal.bottomup(child, strategy, m));
+        T result = strategy.apply(rewritten).orElse(rewritten);
+
+        if (memo != null)
+            memo.put(value, result);
+        return result;
+    }
+
+    /**
+     * Rewrites the tree to a normal form where {@code strategy} does not apply to any node,
+     * normalising children before their parents.
+     *
+     * Nodes that have been normalised are remembered during the traversal, so subtrees that
+     * a rewrite carries over to its result are not traversed again.
+     */
+    @NotNull
+    public T innermost(@NotNull T value, @NotNull Strategy<T> strategy) {
+        return run(() -> innermost(value, strategy, newMemo()));
+    }
+
+    @NotNull
+    private T innermost(@NotNull T value, @NotNull Strategy<T> strategy, @NotNull Memo<T> memo) {
+        T result = memo.get(value);
+        T current = value;
+
+        while (result == null) {
+            T withNormalChildren = mapChildren(current, memo, (traversal, child, m) -> traversal.innermost(child, strategy, m));
+
+            Optional<T> rewritten = strategy.apply(withNormalChildren);
+            if (rewritten.isPresent()) {
+                current = rewritten.get();
+                result = memo.get(current);
+            } else {
+                result = withNormalChildren;
+            }
+        }
+
+        memo.putNormal(value, result);
+        return result;
+    }
+
+    /**
+     * Rewrites the tree to a normal form where {@code strategy} does not apply to any node,
+     * rewriting parents before their children.
+     *
+     * Whenever normalising the children changes a node, the node itself is tried again,
+     * so the result is a normal form even if rewriting children creates new redexes in
+     * their parents. Like in {@link #innermost(Object, Strategy)}, normalised nodes are
+     * remembered during the traversal.
+     */
+    @NotNull
+    public T outermost(@NotNull T value, @NotNull Strategy<T> strategy) {
+        return run(() -> outermost(value, strategy, newMemo()));
+    }
+
+    @NotNull
+    private T outermost(@NotNull T value, @NotNull Strategy<T> strategy, @NotNull Memo<T> memo) {
+        T result = memo.get(value);
+        T current = value;
+
+        while (result == null) {
+            Optional<T> rewritten = strategy.apply(current);
+            if (rewritten.isPresent()) {
+                current = rewritten.get();
+                result = memo.get(current);
+                continue;
+            }
+
+            T withNormalChildren = mapChildren(current, memo, (traversal, child, m) -> traversal.outermost(child, strategy, m));
+            if (withNormalChildren == current)
+                result = current;
+            else
+                current = withNormalChildren;
+        }
+
+        memo.putNormal(value, result);
+        return result;
+    }
+
+    /**
+     * Returns a matcher that matches the first node of a tree, in pre-order, that {@code matcher} matches.
+     * Rebuilding the match rebuilds the nodes on the path to the matched node. Every match searches the
+     * tree from the root, so {@link Matcher#rewriteAll(Object, BiConsumer)} of the returned matcher
+     * matches the whole tree again after every rewrite. {@link #rewriteAll(Object, Matcher, BiConsumer)}
+     * produces the same result without doing so.
+     */
+    @NotNull
+    public Matcher<T> anywhere(@NotNull Matcher<T> matcher) {
+        return Matcher.from(value -> matchAnywhere(value, matcher));
+    }
+
+    @NotNull
+    private Match<T> matchAnywhere(@NotNull T node, @NotNull Matcher<T> matcher) {
+        Match<T> match = matcher.apply(node);
+        if (match.isSuccess())
+            return match;
+
+        NodeType<T> nodeType = nodeTypeCache.get(node.getClass());
+        if (nodeType == null)
+            return Match.failure();
+
+        for (int i = 0, arity = nodeType.getArity(); i < arity; i++) {
+            Object child = nodeType.getChild(node, i);
+            if (!baseType.isInstance(child))
+                continue;
+
+            Match<T> childMatch = matchAnywhere(baseType.cast(child), matcher);
+            if (childMatch.isSuccess()) {
+                int index = i;
+                return Match.from(node, rewrites -> {
+                    T rebuilt = childMatch.rebuild(rewrites);
+                    if (rebuilt == child)
+                        return node;
+
+                    Object[] children = nodeType.getChildren(node);
+                    children[index] = rebuilt;
+                    return nodeType.construct(children);
+                }, childMatch.getConstraints());
+            }
+        }
+
+        return Match.failure();
+    }
+
+    /**
+     * Rewrites the first node of the tree, in pre-order, that {@code matcher} matches until no node
+     * matches. The result is identical to {@code anywhere(matcher).rewriteAll(value, rewriteGenerator)},
+     * as long as {@code matcher} only looks at the node it is applied to and its descendants.
+     *
+     * Instead of searching the tree from the root after every rewrite, the search keeps the path to the
+     * rewritten node as a worklist. The nodes that precede the rewritten node in pre-order and are not its
+     * ancestors are unchanged, so they still fail to match. Hence only the rebuilt ancestors are tried
+     * again, from the root down, and then the search resumes at the rewritten node. A rewrite costs time
+     * proportional to the depth of the node instead of the size of the tree. Parallelism and sharing of
+     * this traversal are not used.
+     */
+    @NotNull
+    public T rewriteAll(@NotNull T value, @NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        // Path from the root to the node being examined. Frames are reused when the path grows again.
+        List<Frame<T>> path = new ArrayList<>();
+        int depth = 0;
+        enter(path, depth, value);
+
+        while (true) {
+            Frame<T> frame = path.get(depth);
+
+            if (!frame.examined) {
+                Optional<T> rewritten = matcher.rewrite(frame.node, rewriteGenerator);
+                if (rewritten.isPresent()) {
+                    depth = replace(path, depth, rewritten.get(), matcher, rewriteGenerator);
+                    continue;
+                }
+                frame.examined = true;
+            }
+
+            T child = frame.nextChild(baseType);
+            if (child != null)
+                enter(path, ++depth, child);
+            else if (depth == 0)
+                return frame.node;
+            else
+                depth--;
+        }
+    }
+
+    /**
+     * Makes {@code node} the node at given depth of the path, to be examined next.
+     */
+    private void enter(@NotNull List<Frame<T>> path, int depth, @NotNull T node) {
+        NodeType<T> nodeType = nodeTypeCache.get(node.getClass());
+        if (depth < path.size())
+            path.get(depth).reset(node, nodeType);
+        else
+            path.add(new Frame<>(node, nodeType));
+    }
+
+    /**
+     * Replaces the node at given depth of the path with {@code node} and rebuilds its ancestors. If the
+     * node changed, the rebuilt ancestors are tried again from the root down, and the first one that
+     * matches is replaced in turn, dropping the rest of the path. Returns the depth of the last replaced
+     * node, which is examined next.
+     */
+    private int replace(@NotNull List<Frame<T>> path, int depth, @NotNull T node,
+                        @NotNull Matcher<T> matcher, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        while (true) {
+            boolean changed = node != path.get(depth).node;
+            enter(path, depth, node);
+            if (!changed)
+                return depth;
+
+            for (int i = depth - 1; i >= 0; i--)
+                path.get(i).replaceCurrentChild(path.get(i + 1).node);
+
+            int ancestor = 0;
+            Optional<T> rewritten = Optional.empty();
+            while (ancestor < depth && !rewritten.isPresent())
+                rewritten = matcher.rewrite(path.get(ancestor++).node, rewriteGenerator);
+
+            if (!rewritten.isPresent())
+                return depth;
+
+            depth = ancestor - 1;
+            node = rewritten.get();
+        }
+    }
+
+    /**
+     * Node on the path of {@link #rewriteAll(Object, Matcher, BiConsumer)} along with the progress of
+     * the search in its children.
+     */
+    private static final class Frame<T> {
+
+        @NotNull
+        T node;
+
+        @Nullable
+        private NodeType<T> nodeType;
+
+        /**
+         * Index of the next child to visit.
+         */
+        private int next;
+
+        /**
+         * True if the node itself has been tried.
+         */
+        boolean examined;
+
+        Frame(@NotNull T node, @Nullable NodeType<T> nodeType) {
+            reset(node, nodeType);
+        }
+
+        void reset(@NotNull T node, @Nullable NodeType<T> nodeType) {
+            this.node = node;
+            this.nodeType = nodeType;
+            this.next = 0;
+            this.examined = false;
+        }
+
+        /**
+         * Returns the next child that is an instance of {@code baseType}, or {@code null} if there are no more.
+         */
+        @Nullable
+        T nextChild(@NotNull Class<T> baseType) {
+            if (nodeType == null)
+                return null;
+
+            for (int arity = nodeType.getArity(); next < arity; ) {
+                Object child = nodeType.getChild(node, next++);
+                if (baseType.isInstance(child))
+                    return baseType.cast(child);
+            }
+
+            return null;
+        }
+
+        /**
+         * Replaces the child returned by the latest {@link #nextChild(Class)} and rebuilds the node.
+         */
+        void replaceCurrentChild(@NotNull T child) {
+            assert nodeType != null;
+
+            Object[] children = nodeType.getChildren(node);
+            children[next - 1] = child;
+            node = nodeType.construct(children);
+        }
+    }
+
+    /**
+     * Applies {@code mapper} to the children of given node and returns a node with the results
+     * as children. If {@code mapper} returns all children unchanged, returns the original node.
+     */
+    @NotNull
+    public T mapChildren(@NotNull T node, @NotNull UnaryOperator<T> mapper) {
+        NodeType<T> nodeType = nodeTypeCache.get(node.getClass());
+        if (nodeType == null)
+            return node;
+
+        Object[] children = null;
+
+        for (int i = 0, arity = nodeType.getArity(); i < arity; i++) {
+            Object child = nodeType.getChild(node, i);
+
+            if (baseType.isInstance(child)) {
+                T rewritten = mapper.apply(baseType.cast(child));
+
+                if (rewritten != child) {
+                    if (children == null)
+                        children = nodeType.getChildren(node);
+                    children[i] = rewritten;
+                }
+            }
+        }
+
+        return children != null ? nodeType.construct(children) : node;
+    }
+
+    /**
+     * Traverses the children of given node with {@code childTraversal}. Large nodes have their
+     * children traversed in parallel if this traversal has a pool, while the children of small
+     * nodes are traversed with the {@link #sequential} traversal. Each parallel task gets a memo
+     * of its own (if {@code memo} is not {@code null}), since memos are not thread-safe. After the
+     * tasks are done, the results of the children are stored in {@code memo}.
+     */
+    @NotNull
+    private T mapChildren(@NotNull T node, @Nullable Memo<T> memo, @NotNull ChildTraversal<T> childTraversal) {
+        if (pool == null || !hasMoreDescendantsThan(node, sequentialThreshold))
+            return mapChildren(node, child -> childTraversal.apply(sequential, child, memo));
+
+        NodeType<T> nodeType = nodeTypeCache.get(node.getClass());
+        assert nodeType != null;
+
+        Object[] children = nodeType.getChildren(node);
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(children.length);
+        List<Integer> indices = new ArrayList<>(children.length);
+
+        for (int i = 0; i < children.length; i++) {
+            if (baseType.isInstance(children[i])) {
+                T child = baseType.cast(children[i]);
+                Callable<T> task = () -> childTraversal.apply(this, child, memo != null ? newMemo() : null);
+
+                tasks.add(ForkJoinTask.adapt(task));
+                indices.add(i);
+            }
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+
+        boolean changed = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            int index = indices.get(i);
+            T child = baseType.cast(children[index]);
+            T rewritten = tasks.get(i).join();
+
+            if (memo != null)
+                memo.put(child, rewritten);
+
+            if (rewritten != child) {
+                children[index] = rewritten;
+                changed = true;
+            }
+        }
+
+        return changed ? nodeType.construct(children) : node;
+    }
+
+    /**
+     * Returns true if given node has more than {@code count} descendants. Stops counting
+     * once {@code count} is exceeded, so this takes at most {@code O(count)} time.
+     */
+    private boolean hasMoreDescendantsThan(@NotNull T node, int count) {
+        return countDescendants(node, count + 1) > count;
+    }
+
+    private int countDescendants(@NotNull Object node, int limit) {
+        NodeType<T> nodeType = nodeTypeCache.get(node.getClass());
+        if (nodeType == null)
+            return 0;
+
+        int count = 0;
+        for (int i = 0, arity = nodeType.getArity(); i < arity && count < limit; i++) {
+            Object child = nodeType.getChild(baseType.cast(node), i);
+            if (baseType.isInstance(child))
+                count += 1 + countDescendants(child, limit - count - 1);
+        }
+        return count;
+    }
+
+    /**
+     * Runs given traversal in the pool of this traversal, or in the current thread if
+     * the traversal is sequential or we are already running in a pool.
+     */
+    private T run(@NotNull Supplier<T> traversal) {
+        if (pool == null || ForkJoinTask.inForkJoinPool())
+            return traversal.get();
+        else
+            return pool.invoke(ForkJoinTask.adapt((Callable<T>) traversal::get));
+    }
+
+    @NotNull
+    private Memo<T> newMemo() {
+        return sharingKey != null ? new Memo<>(new HashMap<>(), sharingKey) : new Memo<>(new IdentityHashMap<>(), null);
+    }
+
+    @FunctionalInterface
+    private interface ChildTraversal<T> {
+        @NotNull
+        T apply(@NotNull Traversal<T> traversal, @NotNull T child, @Nullable Memo<T> memo);
+    }
+
+    /**
+     * Results of traversing nodes during a single traversal.
+     */
+    private static final class Memo<T> {
+
+        @NotNull
+        private final Map<Object, T> results;
+
+        @Nullable
+        private final Function<? super T, ?> key;
+
+        Memo(@NotNull Map<Object, T> results, @Nullable Function<? super T, ?> key) {
+            this.results = results;
+            this.key = key;
+        }
+
+        @Nullable
+        T get(@NotNull T node) {
+            return results.get(key(node));
+        }
+
+        void put(@NotNull T node, @NotNull T result) {
+            results.put(key(node), result);
+        }
+
+        /**
+         * Stores the normal form of a node. The normal form is its own normal form as well.
+         */
+        void putNormal(@NotNull T node, @NotNull T normalForm) {
+            put(node, normalForm);
+            if (normalForm != node)
+                put(normalForm, normalForm);
+        }
+
+        @NotNull
+        private Object key(@NotNull T node) {
+            return key != null ? key.apply(node) : node;
+        }
+    }
+}
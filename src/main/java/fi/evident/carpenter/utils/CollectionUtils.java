@@ -19,9 +19,13 @@ public final class CollectionUtils {
 
     /**
      * Returns a list which concatenates {@code xs} and {@code ys} in their iteration order.
+     * If {@code xs} is a {@link PersistentVector}, so is the result.
      */
     @NotNull
     public static <T> List<T> concat(@NotNull Collection<T> xs, @NotNull Collection<T> ys) {
+        if (xs instanceof PersistentVector)
+            return ((PersistentVector<T>) xs).plusAll(ys);
+
         List<T> concatenation = new ArrayList<>(xs.size() + ys.size());
 
         concatenation.addAll(xs);
@@ -40,10 +44,14 @@ public final class CollectionUtils {
 
     /**
      * Returns copy of {@code xs} which is identical to the original list, except that value
-     * at {@code index} has been replaced with {@code x}.
+     * at {@code index} has been replaced with {@code x}. If {@code xs} is a {@link PersistentVector},
+     * the copy shares its structure and takes logarithmic time to create.
      */
     @NotNull
     public static <T> List<T> copyWithReplacedValue(@NotNull List<T> xs, int index, T x) {
+        if (xs instanceof PersistentVector)
+            return ((PersistentVector<T>) xs).with(index, x);
+
         List<T> copy = new ArrayList<>(xs);
         copy.set(index, x);
         return copy;
@@ -51,10 +59,14 @@ public final class CollectionUtils {
 
     /**
      * Returns copy of {@code xs} which is identical to the original list, except that values
-     * {@code index..(index+ys.size()) have been replaced by values of {@code ys}.
+     * {@code index..(index+ys.size()) have been replaced by values of {@code ys}. If {@code xs}
+     * is a {@link PersistentVector}, the copy shares its structure with the original.
      */
     @NotNull
     public static <T> List<T> copyWithReplacedSubList(@NotNull List<T> xs, int index, @NotNull List<T> ys) {
+        if (xs instanceof PersistentVector)
+            return ((PersistentVector<T>) xs).withAll(index, ys);
+
         List<T> copy = new ArrayList<>(xs);
 
         int i = index;
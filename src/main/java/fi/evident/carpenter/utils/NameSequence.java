@@ -2,12 +2,18 @@ package fi.evident.carpenter.utils;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates unique names by appending consecutive numbers to a prefix. Safe to use from multiple threads.
+ */
 public final class NameSequence {
 
     @NotNull
     private final String prefix;
 
-    private int counter = 1;
+    @NotNull
+    private final AtomicInteger counter = new AtomicInteger(1);
 
     public NameSequence(@NotNull String prefix) {
         this.prefix = prefix;
@@ -15,6 +21,6 @@ public final class NameSequence {
 
     @NotNull
     public String next() {
-        return prefix + counter++;
+        return prefix + counter.getAndIncrement();
     }
 }
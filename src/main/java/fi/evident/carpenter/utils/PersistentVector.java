@@ -0,0 +1,285 @@
+package fi.evident.carpenter.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list that can be updated in logarithmic time by creating new versions
+ * that share structure with the old ones.
+ *
+ * The elements are stored in a trie of 32-element arrays indexed by the bits of the element
+ * indices, along with a separate tail array for the last elements. Replacing an element copies
+ * only the arrays on the path to it, so {@link #with(int, Object)} allocates {@code O(log32 n)}
+ * arrays and the rest of the trie is shared by both versions. Appending to the tail is amortized
+ * constant time. Concatenating vectors is linear in the length of the appended elements.
+ *
+ * Rewriting a {@code PersistentVector} with the list matchers of {@link fi.evident.carpenter.Matchers}
+ * produces a {@code PersistentVector}, so repeated rewrites of large lists don't copy the whole list.
+ *
+ * Like other immutable lists, the vector throws {@link UnsupportedOperationException} from the
+ * mutating methods of {@link List}.
+ */
+public final class PersistentVector<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    @NotNull
+    private static final Object[] EMPTY_ARRAY = new Object[0];
+
+    @NotNull
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH], EMPTY_ARRAY);
+
+    private final int size;
+
+    /**
+     * Number of index bits consumed above the leaves of {@link #root}.
+     */
+    private final int shift;
+
+    /**
+     * Root of the trie. Inner nodes contain child nodes and leaves contain elements.
+     */
+    @NotNull
+    private final Object[] root;
+
+    /**
+     * Elements from {@link #tailOffset()} to the end, not yet stored in the trie.
+     */
+    @NotNull
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, @NotNull Object[] root, @NotNull Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    /**
+     * Returns a vector containing the elements of given collection in their iteration order.
+     * If the collection is a vector already, it's returned as it is.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentVector<T> copyOf(@NotNull Collection<? extends T> xs) {
+        if (xs instanceof PersistentVector)
+            return (PersistentVector<T>) xs;
+
+        return PersistentVector.<T>empty().plusAll(xs);
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    @NotNull
+    public static <T> PersistentVector<T> of(@NotNull T... xs) {
+        return copyOf(Arrays.asList(xs));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+
+        return (T) arrayFor(index)[index & MASK];
+    }
+
+    /**
+     * Returns a vector where the element at {@code index} has been replaced by {@code value}.
+     * If the element is {@code value} already, returns this vector.
+     */
+    @NotNull
+    public PersistentVector<T> with(int index, T value) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+
+        if (arrayFor(index)[index & MASK] == value)
+            return this;
+
+        if (index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = value;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+
+        return new PersistentVector<>(size, shift, with(shift, root, index, value), tail);
+    }
+
+    @NotNull
+    private static Object[] with(int level, @NotNull Object[] node, int index, Object value) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = value;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = with(level - BITS, (Object[]) node[child], index, value);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a vector where the elements starting at {@code index} have been replaced by the
+     * elements of {@code values}.
+     */
+    @NotNull
+    public PersistentVector<T> withAll(int index, @NotNull List<? extends T> values) {
+        if (index < 0 || index + values.size() > size)
+            throw new IndexOutOfBoundsException("index " + index + ", " + values.size() + " values, size " + size);
+
+        PersistentVector<T> result = this;
+        int i = index;
+        for (T value : values)
+            result = result.with(i++, value);
+        return result;
+    }
+
+    /**
+     * Returns a vector with {@code value} appended to the end of this vector.
+     */
+    @NotNull
+    public PersistentVector<T> plus(T value) {
+        int tailSize = size - tailOffset();
+        if (tailSize < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tailSize + 1);
+            newTail[tailSize] = value;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+
+        return pushTail(new Object[] { value });
+    }
+
+    /**
+     * Returns a vector with the elements of {@code values} appended to the end of this vector.
+     */
+    @NotNull
+    public PersistentVector<T> plusAll(@NotNull Collection<? extends T> values) {
+        Iterator<? extends T> iterator = values.iterator();
+        PersistentVector<T> result = this;
+
+        // Fill the tail first, then build full tails of 32 elements without copying them for every element
+        while (iterator.hasNext() && result.size - result.tailOffset() < WIDTH)
+            result = result.plus(iterator.next());
+
+        while (iterator.hasNext()) {
+            Object[] chunk = new Object[WIDTH];
+            int n = 0;
+            while (n < WIDTH && iterator.hasNext())
+                chunk[n++] = iterator.next();
+
+            result = result.pushTail(n == WIDTH ? chunk : Arrays.copyOf(chunk, n));
+        }
+
+        return result;
+    }
+
+    /**
+     * Moves the full tail of this vector to the trie and uses {@code newTail} as the tail.
+     */
+    @NotNull
+    private PersistentVector<T> pushTail(@NotNull Object[] newTail) {
+        assert size - tailOffset() == WIDTH;
+
+        Object[] newRoot;
+        int newShift = shift;
+
+        if ((size >>> BITS) > (1 << shift)) {
+            // The trie is full, so add a level above the root
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+
+        return new PersistentVector<>(size + newTail.length, newShift, newRoot, newTail);
+    }
+
+    @NotNull
+    private Object[] pushTail(int level, @NotNull Object[] parent, @NotNull Object[] tailNode) {
+        int child = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+
+        if (level == BITS) {
+            copy[child] = tailNode;
+        } else {
+            Object[] node = (Object[]) parent[child];
+            copy[child] = node != null ? pushTail(level - BITS, node, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return copy;
+    }
+
+    @NotNull
+    private static Object[] newPath(int level, @NotNull Object[] node) {
+        if (level == 0)
+            return node;
+
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    @NotNull
+    private Object[] arrayFor(int index) {
+        if (index >= tailOffset())
+            return tail;
+
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS)
+            node = (Object[]) node[(index >>> level) & MASK];
+        return node;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+
+            @NotNull
+            private Object[] array = size != 0 ? arrayFor(0) : EMPTY_ARRAY;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size)
+                    throw new NoSuchElementException();
+
+                // Look up the next leaf only when crossing its boundary
+                if (index != 0 && (index & MASK) == 0)
+                    array = arrayFor(index);
+
+                return (T) array[index++ & MASK];
+            }
+        };
+    }
+}
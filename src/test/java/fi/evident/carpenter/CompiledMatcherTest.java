@@ -0,0 +1,122 @@
+package fi.evident.carpenter;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.any;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static fi.evident.carpenter.Matchers.isInstance;
+import static fi.evident.carpenter.Matchers.predicate;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class CompiledMatcherTest {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> y = new Capture<>("y");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    private final Matcher<Expr> pattern = ADD.matcher(MUL.matcher(x, isEqual(num(1))), NEG.matcher(y));
+
+    @Test
+    public void compiledMatcherMatchesLikeOriginal() {
+        Matcher<Expr> compiled = pattern.compile();
+        assertThat(compiled, is(not(sameInstance(pattern))));
+
+        Expr value = add(mul(num(2), num(1)), neg(num(3)));
+        Match<Expr> match = compiled.apply(value);
+        assertThat(match.isSuccess(), is(true));
+        assertThat(match.getValue(x), is(num(2)));
+        assertThat(match.getValue(y), is(num(3)));
+
+        assertThat(compiled.apply(add(mul(num(2), num(1)), num(3))).isSuccess(), is(false));
+        assertThat(compiled.apply(add(mul(num(2), num(2)), neg(num(3)))).isSuccess(), is(false));
+        assertThat(compiled.apply(num(1)).isSuccess(), is(false));
+        assertThat(compiled.matchAll(num(1)).count(), is(0L));
+    }
+
+    @Test
+    public void repeatedCapturesMustAgree() {
+        Matcher<Expr> compiled = ADD.matcher(x, MUL.matcher(x, isInstance(Num.class))).compile();
+
+        Match<Expr> match = compiled.apply(add(neg(num(1)), mul(neg(num(1)), num(2))));
+        assertThat(match.isSuccess(), is(true));
+        assertThat(match.getValue(x), is(neg(num(1))));
+
+        assertThat(compiled.apply(add(neg(num(1)), mul(neg(num(2)), num(2)))).isSuccess(), is(false));
+        assertThat(compiled.apply(add(neg(num(1)), mul(neg(num(1)), neg(num(2))))).isSuccess(), is(false));
+    }
+
+    @Test
+    public void matchersWithoutPatternsAreCalledAsTheyAre() {
+        Matcher<Expr> isNum = predicate(e -> e instanceof Num);
+        Matcher<Expr> compiled = ADD.matcher(x, whole.save(isNum.or(NEG.matcher(x)))).compile();
+
+        Match<Expr> match = compiled.apply(add(num(1), num(1)));
+        assertThat(match.isSuccess(), is(true));
+        assertThat(match.getValue(whole), is(num(1)));
+
+        // Captures bound by the interpreted matcher must agree with the compiled ones as well
+        assertThat(compiled.apply(add(num(1), neg(num(1)))).isSuccess(), is(true));
+        assertThat(compiled.apply(add(num(1), neg(num(2)))).isSuccess(), is(false));
+        assertThat(compiled.apply(add(num(1), mul(num(1), num(1)))).isSuccess(), is(false));
+    }
+
+    @Test
+    public void rebuildingReturnsOriginalValuesThatAreNotReplaced() {
+        Matcher<Expr> compiled = ADD.matcher(NEG.matcher(x), MUL.matcher(y, any())).compile();
+        Expr left = neg(num(1));
+        Expr right = mul(num(2), num(3));
+
+        Expr rewritten = compiled.rewrite(add(left, right), (m, rewrites) -> rewrites.replaceValue(y, num(4))).orElse(null);
+
+        assertThat(rewritten, is(add(neg(num(1)), mul(num(4), num(3)))));
+        assertThat(((Add) rewritten).getLeft(), is(sameInstance(left)));
+
+        Expr value = add(left, right);
+        assertThat(compiled.rewrite(value, (m, rewrites) -> { }).orElse(null), is(sameInstance(value)));
+    }
+
+    @Test
+    public void compiledMatcherRewritesLikeOriginal() {
+        Matcher<Expr> doubleNeg = whole.save(NEG.matcher(NEG.matcher(x)));
+        Expr value = neg(neg(neg(neg(num(1)))));
+
+        Expr expected = doubleNeg.rewriteAll(value, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+        Matcher<Expr> compiled = doubleNeg.compile();
+
+        assertThat(expected, is(num(1)));
+        assertThat(compiled.rewriteAll(value, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))), is(expected));
+        assertThat(compiled.rewrite(num(1), (m, rewrites) -> { }), is(Optional.empty()));
+    }
+
+    @Test
+    public void compiledMatchersCanBeNested() {
+        Matcher<Expr> compiled = NEG.matcher(pattern.compile()).compile();
+
+        Match<Expr> match = compiled.apply(neg(add(mul(num(2), num(1)), neg(num(3)))));
+        assertThat(match.isSuccess(), is(true));
+        assertThat(match.getValue(y), is(num(3)));
+    }
+
+    @Test
+    public void matchersWithoutPatternAreNotWrapped() {
+        Matcher<Expr> anything = predicate(e -> true);
+        assertThat(anything.compile(), is(sameInstance(anything)));
+
+        Matcher<Expr> compiled = pattern.compile();
+        assertThat(compiled.compile(), is(sameInstance(compiled)));
+    }
+
+    @Test
+    public void compilingInstrumentedMatcherKeepsInstrumentation() {
+        Matcher<Expr> compiled = pattern.instrumented("pattern").compile();
+
+        assertThat(compiled instanceof InstrumentedMatcher, is(true));
+        assertThat(compiled.toString(), is("pattern"));
+    }
+}
@@ -0,0 +1,213 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.utils.NameSequence;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.*;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Shares matchers, rule sets and matches between many threads and checks that every
+ * thread gets the same results as a single thread does.
+ */
+public class ConcurrencyTest {
+
+    private static final int THREADS = 64;
+    private static final int ITERATIONS = 200;
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+    private final Capture<Integer> a = new Capture<>("a");
+    private final Capture<Integer> b = new Capture<>("b");
+
+    @Test
+    public void sharedRuleSetsRewriteLikeSingleThread() throws Exception {
+        RuleSet<Expr> rules = new RuleSet<>(asList(
+                replaceWithX(ADD.matcher(x, isEqual(num(0)))),
+                replaceWithX(MUL.matcher(x, isEqual(num(1)))),
+                replaceWithX(NEG.matcher(NEG.matcher(x))),
+                new Rule<>(whole.save(ADD.matcher(x, x)), (m, rewrites) -> rewrites.replaceValue(whole, mul(num(2), m.getValue(x))))));
+
+        Random random = new Random(42);
+        List<Expr> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            values.add(randomExpr(random));
+
+        List<Expr> expected = new ArrayList<>();
+        for (Expr value : values)
+            expected.add(rules.rewriteAll(value));
+
+        runConcurrently(thread -> {
+            for (int n = 0; n < ITERATIONS; n++) {
+                int i = (thread + n) % values.size();
+                assertThat(rules.rewriteAll(values.get(i)), is(expected.get(i)));
+            }
+        });
+    }
+
+    @Test
+    public void sharedListMatchersRewriteLikeSingleThread() throws Exception {
+        ConsecutiveRuleSet<Integer> peephole = new ConsecutiveRuleSet<>(asList(
+                new Rule<>(listWithConsecutive(a.save(predicate(v -> v != 0)), b.save(isEqual(0))), (m, rewrites) -> {
+                    rewrites.replaceValue(a, m.getValue(b));
+                    rewrites.replaceValue(b, m.getValue(a));
+                }),
+                new Rule<>(listWithConsecutive(a.save(predicate(v -> v > 1)), a), (m, rewrites) -> rewrites.replaceValue(a, m.getValue(a) - 1))));
+        Matcher<List<Integer>> odd = containsParallel(a.save(predicate(v -> v % 2 != 0)));
+        Matcher<List<Integer>> pair = list(a, b).backtracking();
+
+        Random random = new Random(42);
+        List<List<Integer>> values = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            List<Integer> value = new ArrayList<>();
+            for (int j = 0; j < 20; j++)
+                value.add(random.nextInt(5));
+            values.add(value);
+        }
+
+        List<List<Integer>> expectedPeephole = new ArrayList<>();
+        List<List<Integer>> expectedOdd = new ArrayList<>();
+        for (List<Integer> value : values) {
+            expectedPeephole.add(peephole.rewriteAll(value));
+            expectedOdd.add(odd.rewriteAll(value, (m, rewrites) -> rewrites.replaceValue(a, m.getValue(a) - 1)));
+        }
+
+        runConcurrently(thread -> {
+            for (int n = 0; n < ITERATIONS / 4; n++) {
+                int i = (thread + n) % values.size();
+                assertThat(peephole.rewriteAll(values.get(i)), is(expectedPeephole.get(i)));
+                assertThat(odd.rewriteAll(values.get(i), (m, rewrites) -> rewrites.replaceValue(a, m.getValue(a) - 1)), is(expectedOdd.get(i)));
+                assertThat(pair.rewrite(asList(thread, n), (m, rewrites) -> rewrites.replaceValue(a, m.getValue(b))).get(), is(asList(n, n)));
+            }
+        });
+    }
+
+    @Test
+    public void sharedMatchesCanBeReadAndRebuilt() throws Exception {
+        Match<Expr> match = whole.save(ADD.matcher(x, isEqual(num(0)))).apply(add(neg(num(1)), num(0)));
+        Constraints constraints = match.getConstraints();
+
+        runConcurrently(thread -> {
+            for (int n = 0; n < ITERATIONS; n++) {
+                assertThat(match.getValue(x), is(neg(num(1))));
+                assertThat(constraints.merge(Constraints.forValue(x, neg(num(1)))).isValid(), is(true));
+                assertThat(constraints.merge(Constraints.forValue(x, num(n))).isValid(), is(false));
+                assertThat(match.rewrite((m, rewrites) -> rewrites.replaceValue(x, num(thread))).get(), is(add(num(thread), num(0))));
+            }
+        });
+    }
+
+    @Test
+    public void capturesCreatedConcurrentlyGetDistinctDenseIds() throws Exception {
+        List<List<Capture<Object>>> captures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            captures.add(new ArrayList<>());
+
+        runConcurrently(thread -> {
+            for (int n = 0; n < ITERATIONS; n++)
+                captures.get(thread).add(new Capture<>());
+        });
+
+        Set<Integer> ids = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (List<Capture<Object>> list : captures) {
+            for (Capture<Object> capture : list) {
+                ids.add(capture.getId());
+                names.add(capture.toString());
+                min = Math.min(min, capture.getId());
+                max = Math.max(max, capture.getId());
+            }
+        }
+
+        assertThat(ids.size(), is(THREADS * ITERATIONS));
+        assertThat(names.size(), is(THREADS * ITERATIONS));
+        // Other tests may create captures at the same time, so the ids don't need to be contiguous
+        assertThat(max - min + 1 >= THREADS * ITERATIONS, is(true));
+    }
+
+    @Test
+    public void nameSequenceIsUniqueAcrossThreads() throws Exception {
+        NameSequence sequence = new NameSequence("n");
+        List<Set<String>> names = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            names.add(new HashSet<>());
+
+        runConcurrently(thread -> {
+            for (int n = 0; n < ITERATIONS; n++)
+                names.get(thread).add(sequence.next());
+        });
+
+        Set<String> all = new HashSet<>();
+        for (Set<String> set : names)
+            all.addAll(set);
+
+        assertThat(all.size(), is(THREADS * ITERATIONS));
+        assertThat(all.contains("n1"), is(true));
+        assertThat(all.contains("n" + THREADS * ITERATIONS), is(true));
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs given task in {@link #THREADS} threads started at the same time and rethrows the first failure.
+     */
+    private static void runConcurrently(@NotNull Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @NotNull
+    private Rule<Expr> replaceWithX(@NotNull Matcher<Expr> matcher) {
+        return new Rule<>(whole.save(matcher), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+    }
+
+    @NotNull
+    private static Expr randomExpr(@NotNull Random random) {
+        Expr expr = num(random.nextInt(3));
+        for (int depth = random.nextInt(8); depth > 0; depth--) {
+            switch (random.nextInt(4)) {
+                case 0: expr = neg(neg(expr)); break;
+                case 1: expr = add(expr, num(0)); break;
+                case 2: expr = mul(expr, num(random.nextInt(2))); break;
+                default: expr = add(expr, expr); break;
+            }
+        }
+        return expr;
+    }
+}
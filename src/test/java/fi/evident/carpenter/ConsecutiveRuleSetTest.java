@@ -0,0 +1,153 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.Matchers.ConsecutiveMatcher;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static fi.evident.carpenter.Matchers.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ConsecutiveRuleSetTest {
+
+    private final Capture<Integer> x = new Capture<>("x");
+    private final Capture<Integer> y = new Capture<>("y");
+
+    @Test
+    public void firstWindowOfAnyRuleIsRewritten() {
+        Rule<List<Integer>> threeFour = replaceX(listWithConsecutive(x.save(isEqual(3)), isEqual(4)), 0);
+        Rule<List<Integer>> oneAny = replaceX(listWithConsecutive(x.save(isEqual(1)), any()), 9);
+        ConsecutiveRuleSet<Integer> rules = new ConsecutiveRuleSet<>(asList(threeFour, oneAny));
+
+        assertThat(rules.rewrite(asList(5, 1, 2, 3, 4)), is(Optional.of(asList(5, 9, 2, 3, 4))));
+        assertThat(rules.rewrite(asList(3, 4, 1, 2)), is(Optional.of(asList(0, 4, 1, 2))));
+        assertThat(rules.rewrite(asList(1, 5)), is(Optional.of(asList(9, 5))));
+        assertThat(rules.rewrite(asList(5, 3, 1)), is(Optional.empty()));
+    }
+
+    @Test
+    public void rulesMatchingAtSameIndexAreAppliedInOrder() {
+        Rule<List<Integer>> shorter = replaceX(listWithConsecutive(x.save(isEqual(1)), isEqual(2)), 7);
+        Rule<List<Integer>> longer = replaceX(listWithConsecutive(x.save(isEqual(1)), isEqual(2), isEqual(3)), 8);
+        List<Integer> value = asList(1, 2, 3);
+
+        assertThat(new ConsecutiveRuleSet<>(asList(shorter, longer)).rewrite(value), is(Optional.of(asList(7, 2, 3))));
+        assertThat(new ConsecutiveRuleSet<>(asList(longer, shorter)).rewrite(value), is(Optional.of(asList(8, 2, 3))));
+    }
+
+    @Test
+    public void conflictingWindowsAreSkipped() {
+        Rule<List<Integer>> same = replaceX(listWithConsecutive(x, x), 0);
+        ConsecutiveRuleSet<Integer> rules = new ConsecutiveRuleSet<>(singletonList(same));
+
+        assertThat(rules.rewrite(asList(1, 2, 3, 3)), is(Optional.of(asList(1, 2, 0, 0))));
+    }
+
+    @Test
+    public void sharedElementMatchersAreAppliedOncePerElement() {
+        AtomicInteger attempts = new AtomicInteger();
+        Matcher<Integer> counting = predicate(v -> {
+            attempts.incrementAndGet();
+            return true;
+        });
+        ConsecutiveRuleSet<Integer> rules = new ConsecutiveRuleSet<>(asList(
+                replaceX(listWithConsecutive(counting, x.save(isEqual(-1))), 0),
+                replaceX(listWithConsecutive(counting, x.save(isEqual(-2))), 0)));
+
+        assertThat(rules.rewrite(asList(1, 2, 3)), is(Optional.empty()));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    public void rewriteAllWithoutMatchesReturnsOriginal() {
+        ConsecutiveRuleSet<Integer> rules = new ConsecutiveRuleSet<>(singletonList(replaceX(listWithConsecutive(x, x), 0)));
+        List<Integer> value = asList(1, 2, 3);
+
+        assertThat(rules.rewriteAll(value), is(sameInstance(value)));
+    }
+
+    @Test
+    public void scanningIsEquivalentToTryingEveryIndex() {
+        List<Rule<List<Integer>>> ruleList = asList(
+                // Move zeros to the front
+                new Rule<>(listWithConsecutive(x.save(predicate(v -> v != 0)), y.save(isEqual(0))), (m, rewrites) -> {
+                    rewrites.replaceValue(x, m.getValue(y));
+                    rewrites.replaceValue(y, m.getValue(x));
+                }),
+                // Decrement pairs of equal values
+                new Rule<>(listWithConsecutive(x.save(predicate(v -> v > 1)), x), (m, rewrites) -> rewrites.replaceValue(x, m.getValue(x) - 1)),
+                // Decrement fours surrounding anything
+                new Rule<>(listWithConsecutive(x.save(isEqual(4)), any(), y.save(isEqual(4))), (m, rewrites) -> {
+                    rewrites.replaceValue(x, 3);
+                    rewrites.replaceValue(y, 3);
+                }));
+        ConsecutiveRuleSet<Integer> rules = new ConsecutiveRuleSet<>(ruleList);
+
+        Random random = new Random(42);
+        for (int n = 0; n < 50; n++) {
+            List<Integer> value = randomList(random, 30);
+
+            assertThat(rules.rewrite(value), is(rewriteByTryingEveryIndex(ruleList, value)));
+            assertThat(rules.rewriteAll(value), is(rewriteAllByRestarting(ruleList, value)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rulesMustUseConsecutiveMatchers() {
+        new ConsecutiveRuleSet<>(singletonList(replaceX(contains(x), 0)));
+    }
+
+    @NotNull
+    private Rule<List<Integer>> replaceX(@NotNull Matcher<List<Integer>> matcher, int value) {
+        return new Rule<>(matcher, (m, rewrites) -> rewrites.replaceValue(x, value));
+    }
+
+    @NotNull
+    private static Optional<List<Integer>> rewriteByTryingEveryIndex(@NotNull List<Rule<List<Integer>>> rules, @NotNull List<Integer> value) {
+        for (int i = 0; i < value.size(); i++) {
+            for (Rule<List<Integer>> rule : rules) {
+                List<Matcher<Integer>> matchers = ((ConsecutiveMatcher<Integer>) rule.getMatcher()).getMatchers();
+                if (i + matchers.size() > value.size())
+                    continue;
+
+                Optional<List<Integer>> window = list(matchers).rewrite(value.subList(i, i + matchers.size()), rule.getRewriteGenerator());
+                if (window.isPresent()) {
+                    List<Integer> result = new ArrayList<>(value);
+                    for (int j = 0; j < matchers.size(); j++)
+                        result.set(i + j, window.get().get(j));
+                    return Optional.of(result);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @NotNull
+    private static List<Integer> rewriteAllByRestarting(@NotNull List<Rule<List<Integer>>> rules, @NotNull List<Integer> value) {
+        List<Integer> current = value;
+        while (true) {
+            Optional<List<Integer>> rewritten = rewriteByTryingEveryIndex(rules, current);
+            if (rewritten.isPresent())
+                current = rewritten.get();
+            else
+                return current;
+        }
+    }
+
+    @NotNull
+    private static List<Integer> randomList(@NotNull Random random, int size) {
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(random.nextInt(5));
+        return list;
+    }
+}
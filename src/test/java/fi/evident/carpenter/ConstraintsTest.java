@@ -5,6 +5,8 @@ import org.hamcrest.Matcher;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static fi.evident.carpenter.Constraints.empty;
 import static fi.evident.carpenter.Constraints.invalid;
 import static java.util.Arrays.asList;
@@ -133,6 +135,41 @@ public class ConstraintsTest {
         assertThat(result.getValue(var3), is("baz"));
     }
 
+    @Test
+    public void mergeInterleavedConstraints() {
+        Capture<String> var1 = new Capture<>("var1");
+        Capture<String> var2 = new Capture<>("var2");
+        Capture<String> var3 = new Capture<>("var3");
+        Capture<String> var4 = new Capture<>("var4");
+
+        Constraints lhs = Constraints.forValue(var1, "foo").merge(Constraints.forValue(var3, "baz"));
+        Constraints rhs = Constraints.forValue(var4, "quux").merge(Constraints.forValue(var2, "bar")).merge(Constraints.forValue(var3, "baz"));
+        Constraints result = lhs.merge(rhs);
+
+        assertThat(result, isValid());
+        assertThat(result.getValue(var1), is("foo"));
+        assertThat(result.getValue(var2), is("bar"));
+        assertThat(result.getValue(var3), is("baz"));
+        assertThat(result.getValue(var4), is("quux"));
+        assertThat(lhs.merge(rhs.merge(Constraints.forValue(var1, "xyzzy"))), isInvalid());
+    }
+
+    @Test
+    public void mergingDisjointInterleavedConstraintsComparesNoValues() {
+        Equality<String> failing = (a, b) -> { throw new AssertionError("compared " + a + " and " + b); };
+        Capture<String> var1 = new Capture<>("var1", failing);
+        Capture<String> var2 = new Capture<>("var2", failing);
+        Capture<String> var3 = new Capture<>("var3", failing);
+
+        Constraints lhs = Constraints.forValue(var1, "foo").merge(Constraints.forValue(var3, "baz"));
+        Constraints result = lhs.merge(Constraints.forValue(var2, "bar"));
+
+        assertThat(result, isValid());
+        assertThat(result.getValue(var1), is("foo"));
+        assertThat(result.getValue(var2), is("bar"));
+        assertThat(result.getValue(var3), is("baz"));
+    }
+
     @Test
     public void mergeAllEmpty() {
         Constraints result = Constraints.mergeAll(emptyList());
@@ -141,6 +178,59 @@ public class ConstraintsTest {
         assertThat(result, isEmpty());
     }
 
+    @Test
+    public void capturesCompareValuesWithTheirEquality() {
+        String a = "value";
+        String b = new String("value");
+        Capture<String> deep = new Capture<>("deep");
+        Capture<String> identity = new Capture<>("identity", Equality.identity());
+        Capture<String> hashGuarded = new Capture<>("hashGuarded", Equality.hashGuarded());
+
+        assertThat(Constraints.forValue(deep, a).merge(Constraints.forValue(deep, b)), isValid());
+        assertThat(Constraints.forValue(identity, a).merge(Constraints.forValue(identity, b)), isInvalid());
+        assertThat(Constraints.forValue(identity, a).merge(Constraints.forValue(identity, a)), isValid());
+        assertThat(Constraints.forValue(hashGuarded, a).merge(Constraints.forValue(hashGuarded, b)), isValid());
+        assertThat(Constraints.forValue(hashGuarded, a).merge(Constraints.forValue(hashGuarded, "other")), isInvalid());
+        assertThat(Constraints.forValue(identity, null).merge(Constraints.forValue(identity, null)), isValid());
+        assertThat(Constraints.forValue(identity, null).merge(Constraints.forValue(identity, a)), isInvalid());
+    }
+
+    @Test
+    public void hashGuardedEqualityComparesHashesFirst() {
+        AtomicInteger comparisons = new AtomicInteger();
+        Capture<Counted> var = new Capture<>("var", Equality.hashGuarded(c -> c.hash));
+
+        assertThat(Constraints.forValue(var, new Counted(1, comparisons)).merge(Constraints.forValue(var, new Counted(2, comparisons))), isInvalid());
+        assertThat(comparisons.get(), is(0));
+
+        assertThat(Constraints.forValue(var, new Counted(1, comparisons)).merge(Constraints.forValue(var, new Counted(1, comparisons))), isValid());
+        assertThat(comparisons.get(), is(1));
+    }
+
+    private static final class Counted {
+
+        private final int hash;
+
+        @NotNull
+        private final AtomicInteger comparisons;
+
+        Counted(int hash, @NotNull AtomicInteger comparisons) {
+            this.hash = hash;
+            this.comparisons = comparisons;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            comparisons.incrementAndGet();
+            return o instanceof Counted && ((Counted) o).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     @NotNull
     private static Matcher<Constraints> isInvalid() {
         return not(isValid());
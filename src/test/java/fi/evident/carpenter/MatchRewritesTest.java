@@ -0,0 +1,101 @@
+package fi.evident.carpenter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static fi.evident.carpenter.Matchers.*;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MatchRewritesTest {
+
+    private final Capture<Integer> x = new Capture<>("x");
+    private final Capture<Integer> y = new Capture<>("y");
+
+    @Test
+    public void replacementsAreLookedUpBySlot() {
+        MatchRewrites rewrites = new MatchRewrites();
+        rewrites.replaceValue(x, 1);
+        rewrites.replaceValue(x, 2);
+
+        assertThat(rewrites.getReplacement(x), is(2));
+        assertThat(rewrites.getReplacement(y), is(nullValue()));
+        assertThat(rewrites.getReplacedValue(x), is(Optional.of(2)));
+        assertThat(rewrites.getReplacedValue(y), is(Optional.empty()));
+    }
+
+    @Test
+    public void clearingRemovesReplacements() {
+        MatchRewrites rewrites = new MatchRewrites();
+        rewrites.replaceValue(x, 1);
+        rewrites.replaceValue(y, 2);
+        rewrites.clear();
+
+        assertThat(rewrites.getReplacement(x), is(nullValue()));
+        assertThat(rewrites.affects(Constraints.forValue(y, 2)), is(false));
+
+        rewrites.replaceValue(y, 3);
+        assertThat(rewrites.getReplacement(y), is(3));
+        assertThat(rewrites.affects(Constraints.forValue(y, 2)), is(true));
+    }
+
+    @Test
+    public void capturesWithoutSlotsAreReplacedToo() {
+        Capture<Integer> large = new Capture<>("large");
+        while (large.getId() < MatchRewrites.MAX_SLOTS)
+            large = new Capture<>("large");
+
+        MatchRewrites rewrites = new MatchRewrites();
+        rewrites.replaceValue(x, 1);
+        rewrites.replaceValue(large, 2);
+        rewrites.replaceValue(large, 3);
+
+        assertThat(rewrites.getReplacement(x), is(1));
+        assertThat(rewrites.getReplacement(large), is(3));
+        assertThat(rewrites.affects(Constraints.forValue(large, 2)), is(true));
+
+        rewrites.clear();
+        assertThat(rewrites.getReplacement(large), is(nullValue()));
+    }
+
+    @Test
+    public void rewritesOfThreadAreReused() {
+        List<MatchRewrites> seen = new ArrayList<>();
+        Matcher<List<Integer>> matcher = contains(x.save(isEqual(1)));
+
+        List<Integer> result = matcher.rewriteAll(asList(1, 2, 1, 1), (m, rewrites) -> {
+            seen.add(rewrites);
+            assertThat(rewrites.getReplacement(x), is(nullValue()));
+            rewrites.replaceValue(x, 0);
+        });
+
+        assertThat(result, is(asList(0, 2, 0, 0)));
+        assertThat(seen.size(), is(3));
+        assertThat(seen.get(1), is(sameInstance(seen.get(0))));
+        assertThat(seen.get(2), is(sameInstance(seen.get(0))));
+    }
+
+    @Test
+    public void nestedRewritesUseSeparateRewrites() {
+        Matcher<List<Integer>> inner = contains(y.save(isEqual(2)));
+        Matcher<List<Integer>> outer = list(x, any());
+
+        Optional<List<Integer>> result = outer.rewrite(asList(1, 2), (m, rewrites) -> {
+            rewrites.replaceValue(x, 5);
+            inner.rewrite(asList(2, 2), (n, innerRewrites) -> {
+                assertThat(innerRewrites, is(not(sameInstance(rewrites))));
+                innerRewrites.replaceValue(y, 3);
+            });
+            assertThat(rewrites.getReplacement(y), is(nullValue()));
+        });
+
+        assertThat(result, is(Optional.of(asList(5, 2))));
+    }
+}
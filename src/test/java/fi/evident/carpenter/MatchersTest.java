@@ -0,0 +1,181 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.utils.PersistentVector;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static fi.evident.carpenter.Matchers.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MatchersTest {
+
+    private final Capture<Integer> x = new Capture<>("x");
+    private final Capture<Integer> y = new Capture<>("y");
+
+    @Test
+    public void listWithConsecutiveFindsFirstMatchingWindow() {
+        Matcher<List<Integer>> matcher = listWithConsecutive(x, x);
+
+        assertThat(matcher.rewrite(asList(1, 2, 2, 3, 3), (m, rewrites) -> rewrites.replaceValue(x, 0)), is(Optional.of(asList(1, 0, 0, 3, 3))));
+        assertThat(matcher.apply(asList(1, 2, 3)).isSuccess(), is(false));
+    }
+
+    @Test
+    public void rewriteAllWithoutMatchesReturnsOriginal() {
+        List<Integer> value = asList(1, 2, 3);
+
+        assertThat(listWithConsecutive(x, x).rewriteAll(value, (m, rewrites) -> rewrites.replaceValue(x, 0)), is(sameInstance(value)));
+    }
+
+    @Test
+    public void incrementalRewriteAllIsEquivalentToRestarting() {
+        // Move zeros to the front of the list, which creates new matches before the rewritten window
+        Matcher<List<Integer>> nonZeroBeforeZero = listWithConsecutive(x.save(predicate(v -> v != 0)), y.save(isEqual(0)));
+        BiConsumer<Match<List<Integer>>, MatchRewrites> swap = (m, rewrites) -> {
+            rewrites.replaceValue(x, m.getValue(y));
+            rewrites.replaceValue(y, m.getValue(x));
+        };
+        Matcher<List<Integer>> odd = contains(x.save(predicate(v -> v % 2 != 0)));
+        BiConsumer<Match<List<Integer>>, MatchRewrites> decrement = (m, rewrites) -> rewrites.replaceValue(x, m.getValue(x) - 1);
+
+        Random random = new Random(42);
+        for (int n = 0; n < 20; n++) {
+            List<Integer> value = randomList(random, 30);
+
+            assertThat(nonZeroBeforeZero.rewriteAll(value, swap), is(rewriteAllByRestarting(nonZeroBeforeZero, value, swap)));
+            assertThat(odd.rewriteAll(value, decrement), is(rewriteAllByRestarting(odd, value, decrement)));
+        }
+    }
+
+    @Test
+    public void matchAllBacktracksToLaterCandidates() {
+        Matcher<List<Integer>> matcher = listWithPrefix(singletonList(x), contains(x));
+        List<Integer> value = asList(3, 1, 3);
+
+        assertThat(matcher.apply(value).isSuccess(), is(false));
+        assertThat(matcher.backtracking().rewrite(value, (m, rewrites) -> rewrites.replaceValue(x, 0)), is(Optional.of(asList(0, 1, 0))));
+    }
+
+    @Test
+    public void matchAllTriesAlternativesOfOr() {
+        Matcher<List<Integer>> matcher = list(x, x.or(y));
+        List<Integer> value = asList(1, 2);
+
+        assertThat(matcher.apply(value).isSuccess(), is(false));
+        assertThat(matcher.matchAll(value).map(m -> m.getValue(y)).collect(toList()), is(singletonList(2)));
+    }
+
+    @Test
+    public void matchAllEnumeratesEveryMatch() {
+        assertThat(contains(x).matchAll(asList(1, 2, 3)).map(m -> m.getValue(x)).collect(toList()), is(asList(1, 2, 3)));
+        assertThat(listWithConsecutive(x, y).matchAll(asList(1, 2, 3)).map(m -> m.getValue(y)).collect(toList()), is(asList(2, 3)));
+    }
+
+    @Test
+    public void matchAllIsLazy() {
+        AtomicInteger attempts = new AtomicInteger();
+        Matcher<List<Integer>> matcher = contains(predicate(v -> {
+            attempts.incrementAndGet();
+            return v == 2;
+        }));
+
+        assertThat(matcher.matchAll(asList(1, 2, 2, 2)).findFirst().isPresent(), is(true));
+        assertThat(attempts.get(), is(2));
+    }
+
+    @Test
+    public void containsParallelFindsLowestMatchingIndex() {
+        List<Integer> value = range(5000);
+        Matcher<Integer> element = x.save(predicate(v -> v % 997 == 3));
+
+        assertThat(containsParallel(element).apply(value).getValue(x), is(3));
+        assertThat(containsParallel(element).apply(range(100)).getValue(x), is(3));
+        assertThat(containsParallel(isEqual(-1)).apply(value).isSuccess(), is(false));
+    }
+
+    @Test
+    public void containsParallelRewritesLikeContains() {
+        Random random = new Random(42);
+        List<Integer> value = randomList(random, 5000);
+        BiConsumer<Match<List<Integer>>, MatchRewrites> decrement = (m, rewrites) -> rewrites.replaceValue(x, m.getValue(x) - 1);
+        Matcher<Integer> odd = x.save(predicate(v -> v % 2 != 0));
+
+        assertThat(containsParallel(odd).rewriteAll(value, decrement), is(contains(odd).rewriteAll(value, decrement)));
+    }
+
+    @Test
+    public void containsAnyParallelFindsSomeMatch() {
+        Match<List<Integer>> match = containsAnyParallel(x.save(predicate(v -> v % 997 == 3))).apply(range(5000));
+
+        assertThat(match.getValue(x) % 997, is(3));
+        assertThat(containsAnyParallel(isEqual(-1)).apply(range(5000)).isSuccess(), is(false));
+    }
+
+    @Test
+    public void findAllReturnsMatchesInIndexOrder() {
+        List<Integer> value = range(5000);
+        Matcher<Integer> element = x.save(predicate(v -> v % 997 == 3));
+
+        List<IndexedMatch<Integer>> matches = findAllParallel(element, value);
+
+        assertThat(matches.stream().map(IndexedMatch::getIndex).collect(toList()), is(asList(3, 1000, 1997, 2994, 3991, 4988)));
+        assertThat(matches.get(1).getMatch().getValue(x), is(1000));
+        assertThat(findAll(element, value).stream().map(IndexedMatch::getIndex).collect(toList()), is(asList(3, 1000, 1997, 2994, 3991, 4988)));
+    }
+
+    @Test
+    public void rewritingPersistentVectorsProducesVectors() {
+        Random random = new Random(42);
+        List<Integer> value = randomList(random, 3000);
+        Matcher<List<Integer>> odd = contains(x.save(predicate(v -> v % 2 != 0)));
+        BiConsumer<Match<List<Integer>>, MatchRewrites> decrement = (m, rewrites) -> rewrites.replaceValue(x, m.getValue(x) - 1);
+
+        List<Integer> result = odd.rewriteAll(PersistentVector.copyOf(value), decrement);
+
+        assertThat(result, is(instanceOf(PersistentVector.class)));
+        assertThat(result, is(odd.rewriteAll(value, decrement)));
+        assertThat(odd.rewrite(PersistentVector.of(2, 3), decrement).get(), is(instanceOf(PersistentVector.class)));
+        assertThat(list(x, y).rewrite(PersistentVector.of(1, 2), (m, rewrites) -> rewrites.replaceValue(y, 0)).get(), is(instanceOf(PersistentVector.class)));
+    }
+
+    @NotNull
+    private static List<Integer> range(int size) {
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(i);
+        return list;
+    }
+
+    @NotNull
+    private static <T> T rewriteAllByRestarting(@NotNull Matcher<T> matcher, @NotNull T value, @NotNull BiConsumer<Match<T>, MatchRewrites> rewriteGenerator) {
+        T current = value;
+        while (true) {
+            Optional<T> rewritten = matcher.rewrite(current, rewriteGenerator);
+            if (rewritten.isPresent())
+                current = rewritten.get();
+            else
+                return current;
+        }
+    }
+
+    @NotNull
+    private static List<Integer> randomList(@NotNull Random random, int size) {
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(random.nextInt(10));
+        return list;
+    }
+}
@@ -0,0 +1,129 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.RewriteResult.StopReason;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RewriteLimitsTest {
+
+    private final Capture<Integer> n = new Capture<>("n");
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> y = new Capture<>("y");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    @Test
+    public void stepLimitStopsEndlessRewrites() {
+        RewriteResult<Integer> result = n.rewriteAll(0, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) + 1), RewriteLimits.none().withMaxSteps(100));
+
+        assertThat(result.getStopReason(), is(StopReason.STEP_LIMIT));
+        assertThat(result.getSteps(), is(100L));
+        assertThat(result.getValue(), is(100));
+    }
+
+    @Test
+    public void fixpointReachedAtStepLimitIsReportedAsFixpoint() {
+        Matcher<Integer> belowTen = n.save(predicate(v -> v < 10));
+        RewriteResult<Integer> result = belowTen.rewriteAll(0, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) + 1), RewriteLimits.none().withMaxSteps(10));
+
+        assertThat(result.isFixpoint(), is(true));
+        assertThat(result.getSteps(), is(10L));
+        assertThat(result.getValue(), is(10));
+    }
+
+    @Test
+    public void deadlineStopsEndlessRewrites() {
+        RewriteResult<Integer> result = n.rewriteAll(0, (m, rewrites) -> rewrites.replaceValue(n, m.getValue(n) + 1), RewriteLimits.none().withTimeout(10, TimeUnit.MILLISECONDS));
+
+        assertThat(result.getStopReason(), is(StopReason.DEADLINE));
+        assertThat(result.getValue(), is((int) result.getSteps()));
+    }
+
+    @Test
+    public void oscillatingRulesAreDetectedAsCycles() {
+        // Commuting additions flips the operands forever
+        RuleSet<Expr> rules = new RuleSet<>(singletonList(new Rule<>(whole.save(ADD.matcher(x, y)), (m, rewrites) -> rewrites.replaceValue(whole, add(m.getValue(y), m.getValue(x))))));
+        RewriteResult<Expr> result = rules.rewriteAll(add(num(1), num(2)), RewriteLimits.none().withCycleDetection(4).withMaxSteps(1000));
+
+        assertThat(result.getStopReason(), is(StopReason.CYCLE));
+        assertThat(result.getSteps() < 10, is(true));
+    }
+
+    @Test
+    public void longerCyclesAreDetected() {
+        Matcher<Integer> any = n.save(any());
+        RewriteResult<Integer> result = any.rewriteAll(0, (m, rewrites) -> rewrites.replaceValue(n, (m.getValue(n) + 1) % 5), RewriteLimits.none().withCycleDetection(5));
+
+        // Detected once 0 is seen again after the states 0, 1, 2, 3, 4
+        assertThat(result.getStopReason(), is(StopReason.CYCLE));
+        assertThat(result.getSteps(), is(5L));
+
+        RewriteResult<Integer> tooLong = any.rewriteAll(0, (m, rewrites) -> rewrites.replaceValue(n, (m.getValue(n) + 1) % 5), RewriteLimits.none().withCycleDetection(4).withMaxSteps(100));
+        assertThat(tooLong.getStopReason(), is(StopReason.STEP_LIMIT));
+    }
+
+    @Test
+    public void collidingHashesAreNotCycles() {
+        // "Aa" and "BB" have the same hash code, but the rewrites still reach a fixpoint
+        Capture<String> s = new Capture<>("s");
+        Matcher<String> notDone = s.save(predicate(v -> !v.equals("done")));
+        RewriteResult<String> result = notDone.rewriteAll("Aa", (m, rewrites) -> rewrites.replaceValue(s, m.getValue(s).equals("Aa") ? "BB" : "done"), RewriteLimits.none().withCycleDetection(1));
+
+        assertThat(result.getStopReason(), is(StopReason.FIXPOINT));
+        assertThat(result.getValue(), is("done"));
+        assertThat(result.getSteps(), is(2L));
+    }
+
+    @Test
+    public void collidingHashesAreNotCyclesInListRewrites() {
+        // "AaAa", "BBBB" and "AaBB" have the same hash code, and the list is rewritten in a single working copy
+        Capture<String> s = new Capture<>("s");
+        Matcher<List<String>> notDone = contains(s.save(predicate(v -> !v.equals("done"))));
+        RewriteResult<List<String>> result = notDone.rewriteAll(singletonList("AaAa"), (m, rewrites) -> {
+            String value = m.getValue(s);
+            rewrites.replaceValue(s, value.equals("AaAa") ? "BBBB" : value.equals("BBBB") ? "AaBB" : "done");
+        }, RewriteLimits.none().withCycleDetection(2));
+
+        assertThat(result.getStopReason(), is(StopReason.FIXPOINT));
+        assertThat(result.getValue(), is(singletonList("done")));
+        assertThat(result.getSteps(), is(3L));
+    }
+
+    @Test
+    public void listRewritesHonorLimits() {
+        Capture<Integer> a = new Capture<>("a");
+        Capture<Integer> b = new Capture<>("b");
+        Rule<List<Integer>> swap = new Rule<>(listWithConsecutive(a, b), (m, rewrites) -> {
+            rewrites.replaceValue(a, m.getValue(b));
+            rewrites.replaceValue(b, m.getValue(a));
+        });
+        RewriteLimits limits = RewriteLimits.none().withMaxSteps(7);
+
+        RewriteResult<List<Integer>> scanned = swap.getMatcher().rewriteAll(asList(1, 2, 3), swap.getRewriteGenerator(), limits);
+        assertThat(scanned.getStopReason(), is(StopReason.STEP_LIMIT));
+        assertThat(scanned.getSteps(), is(7L));
+
+        RewriteResult<List<Integer>> ruleSet = new ConsecutiveRuleSet<>(singletonList(swap)).rewriteAll(asList(1, 2, 3), limits);
+        assertThat(ruleSet.getStopReason(), is(StopReason.STEP_LIMIT));
+        assertThat(ruleSet.getValue(), is(scanned.getValue()));
+    }
+
+    @Test
+    public void unlimitedRewriteIsSameAsRewriteAll() {
+        RuleSet<Expr> rules = new RuleSet<>(singletonList(new Rule<>(whole.save(NEG.matcher(NEG.matcher(x))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)))));
+        Expr value = neg(neg(neg(neg(num(1)))));
+
+        RewriteResult<Expr> result = rules.rewriteAll(value, RewriteLimits.none());
+        assertThat(result.isFixpoint(), is(true));
+        assertThat(result.getValue(), is(rules.rewriteAll(value)));
+        assertThat(result.getSteps(), is(2L));
+    }
+}
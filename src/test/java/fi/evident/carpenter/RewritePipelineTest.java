@@ -0,0 +1,112 @@
+package fi.evident.carpenter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RewritePipelineTest {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    private final RuleSet<Expr> rules = new RuleSet<>(asList(
+            new Rule<>(whole.save(ADD.matcher(x, isEqual(num(0)))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))),
+            new Rule<>(whole.save(NEG.matcher(NEG.matcher(x))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)))));
+
+    @Test
+    public void rewritesEveryValue() {
+        List<Expr> values = exprs(1000);
+        List<Expr> expected = values.stream().map(rules::rewriteAll).collect(toList());
+
+        assertThat(RewritePipeline.of(rules).withBatchSize(7).rewrite(values.stream()).collect(toList()), is(expected));
+        assertThat(RewritePipeline.of(rules).withParallelism(true).withBatchSize(7).rewrite(values.stream()).collect(toList()), is(expected));
+
+        List<Expr> unordered = RewritePipeline.of(rules).withParallelism(false).withBatchSize(7).rewrite(values.stream()).collect(toList());
+        assertThat(sorted(unordered), is(sorted(expected)));
+    }
+
+    @Test
+    public void matcherPipelineRewritesAll() {
+        RewritePipeline<Expr> pipeline = RewritePipeline.of(whole.save(NEG.matcher(NEG.matcher(x))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+
+        assertThat(pipeline.rewrite(Stream.of(neg(neg(neg(neg(num(1))))), neg(num(2)))).collect(toList()), is(asList(num(1), neg(num(2)))));
+    }
+
+    @Test
+    public void batchesHaveBoundedSize() {
+        Iterator<List<Integer>> batches = new RewritePipeline<Integer>(v -> v + 1).withBatchSize(4).rewriteBatches(IntStream.range(0, 10).boxed().iterator());
+
+        List<List<Integer>> result = new ArrayList<>();
+        batches.forEachRemaining(result::add);
+
+        assertThat(result, is(asList(asList(1, 2, 3, 4), asList(5, 6, 7, 8), asList(9, 10))));
+    }
+
+    @Test
+    public void sourceIsConsumedLazily() {
+        AtomicInteger pulled = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (RewritePipeline<Integer> pipeline : asList(new RewritePipeline<Integer>(v -> v * 2).withBatchSize(10),
+                                                            new RewritePipeline<Integer>(v -> v * 2).withBatchSize(10).withParallelism(pool, true))) {
+                pulled.set(0);
+                Stream<Integer> infinite = Stream.iterate(0, v -> v + 1).peek(v -> pulled.incrementAndGet());
+
+                assertThat(pipeline.rewrite(infinite).limit(15).collect(toList()), is(IntStream.range(0, 15).map(v -> v * 2).boxed().collect(toList())));
+                // At most two batches per thread are pulled ahead of the consumer
+                assertThat(pulled.get() <= 2 * 2 * 10 + 10, is(true));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void failuresArePropagatedToConsumer() {
+        for (RewritePipeline<Integer> pipeline : asList(new RewritePipeline<Integer>(RewritePipelineTest::failOnFive),
+                                                        new RewritePipeline<Integer>(RewritePipelineTest::failOnFive).withBatchSize(2).withParallelism(false))) {
+            try {
+                pipeline.rewrite(IntStream.range(0, 10).boxed()).forEach(v -> { });
+                throw new AssertionError("expected failure");
+            } catch (IllegalStateException e) {
+                // Exceptions thrown in pool threads are rethrown as copies wrapping the original
+                assertThat(e.getMessage(), containsString("five"));
+            }
+        }
+    }
+
+    private static int failOnFive(int value) {
+        if (value == 5)
+            throw new IllegalStateException("five");
+        return value;
+    }
+
+    private static List<Expr> exprs(int count) {
+        List<Expr> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Expr expr = num(i);
+            for (int j = 0; j < i % 5; j++)
+                expr = j % 2 == 0 ? neg(neg(expr)) : add(expr, num(0));
+            result.add(expr);
+        }
+        return result;
+    }
+
+    private static List<String> sorted(List<Expr> exprs) {
+        return exprs.stream().map(Object::toString).sorted().collect(toList());
+    }
+}
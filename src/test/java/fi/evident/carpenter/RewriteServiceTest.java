@@ -0,0 +1,143 @@
+package fi.evident.carpenter;
+
+import fi.evident.carpenter.RewriteService.WhenFull;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RewriteServiceTest {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    @Test
+    public void jobsProduceRewrittenValues() throws Exception {
+        RuleSet<Expr> rules = new RuleSet<>(asList(new Rule<>(whole.save(ADD.matcher(x, isEqual(num(0)))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)))));
+
+        try (RewriteService service = new RewriteService(2, 10, WhenFull.BLOCK)) {
+            assertThat(service.rewriteAll(add(add(num(1), num(0)), num(0)), rules).get(), is(num(1)));
+            assertThat(service.rewriteAll(neg(neg(num(2))), whole.save(NEG.matcher(NEG.matcher(x))), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))).get(), is(num(2)));
+        }
+    }
+
+    @Test
+    public void jobsAreRejectedWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (RewriteService service = new RewriteService(1, 1, WhenFull.REJECT)) {
+            CompletableFuture<Integer> running = service.submit(() -> await(release, 1));
+            CompletableFuture<Integer> queued = service.submit(() -> 2);
+            CompletableFuture<Integer> rejected = service.submit(() -> 3);
+
+            assertThat(failure(rejected), is(instanceOf(RejectedExecutionException.class)));
+
+            release.countDown();
+            assertThat(running.get(), is(1));
+            assertThat(queued.get(), is(2));
+            assertThat(service.submit(() -> 4).get(), is(4));
+        }
+    }
+
+    @Test
+    public void submittersBlockWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (RewriteService service = new RewriteService(1, 0, WhenFull.BLOCK)) {
+            CompletableFuture<Integer> running = service.submit(() -> await(release, 1));
+            CompletableFuture<CompletableFuture<Integer>> blocked = CompletableFuture.supplyAsync(() -> service.submit(() -> 2));
+
+            Thread.sleep(50);
+            assertThat(blocked.isDone(), is(false));
+
+            release.countDown();
+            assertThat(running.get(), is(1));
+            assertThat(blocked.get().get(), is(2));
+        }
+    }
+
+    @Test
+    public void cancellingStopsRewriteAll() throws Exception {
+        Capture<Integer> n = new Capture<>("n");
+        AtomicInteger rewrites = new AtomicInteger();
+
+        try (RewriteService service = new RewriteService(1, 1, WhenFull.REJECT)) {
+            // Never reaches a fixpoint
+            CompletableFuture<Integer> endless = service.rewriteAll(0, n, (m, r) -> {
+                rewrites.incrementAndGet();
+                r.replaceValue(n, m.getValue(n) + 1);
+            });
+
+            while (rewrites.get() < 100)
+                Thread.yield();
+            endless.cancel(false);
+
+            // The single thread is free again once the endless job has stopped
+            assertThat(service.submit(() -> 1).get(10, TimeUnit.SECONDS), is(1));
+            int stoppedAt = rewrites.get();
+            Thread.sleep(20);
+            assertThat(rewrites.get(), is(stoppedAt));
+        }
+    }
+
+    @Test
+    public void cancellingQueuedJobFreesItsPlace() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+
+        try (RewriteService service = new RewriteService(1, 1, WhenFull.REJECT)) {
+            CompletableFuture<Integer> running = service.submit(() -> await(release, 1));
+            CompletableFuture<Integer> queued = service.submit(ran::incrementAndGet);
+
+            queued.cancel(false);
+            CompletableFuture<Integer> next = service.submit(() -> 3);
+
+            release.countDown();
+            assertThat(running.get(), is(1));
+            assertThat(next.get(), is(3));
+            assertThat(ran.get(), is(0));
+        }
+    }
+
+    @Test
+    public void failuresCompleteFutureExceptionally() {
+        try (RewriteService service = new RewriteService(1, 1, WhenFull.BLOCK)) {
+            CompletableFuture<Integer> failing = service.submit(() -> {
+                throw new IllegalStateException("failed");
+            });
+
+            assertThat(failure(failing), is(instanceOf(IllegalStateException.class)));
+        }
+    }
+
+    private static int await(CountDownLatch latch, int result) {
+        try {
+            latch.await();
+            return result;
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        try {
+            future.get();
+            throw new AssertionError("expected failure");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
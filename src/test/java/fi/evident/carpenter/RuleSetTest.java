@@ -0,0 +1,105 @@
+package fi.evident.carpenter;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Optional;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.any;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static fi.evident.carpenter.Matchers.isInstance;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RuleSetTest {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    private final Rule<Expr> addZero = replaceWithX(ADD.matcher(x, isEqual(num(0))));
+    private final Rule<Expr> mulOne = replaceWithX(MUL.matcher(x, isEqual(num(1))));
+    private final Rule<Expr> doubleNeg = replaceWithX(NEG.matcher(NEG.matcher(x)));
+    private final Rule<Expr> addSame = new Rule<>(whole.save(ADD.matcher(x, x)), (m, rewrites) -> rewrites.replaceValue(whole, mul(num(2), m.getValue(x))));
+
+    @Test
+    public void onlyStructurallyApplicableRulesAreCandidates() {
+        RuleSet<Expr> rules = new RuleSet<>(asList(addZero, mulOne, doubleNeg, addSame));
+
+        assertThat(rules.candidates(num(1)), is(emptyList()));
+        assertThat(rules.candidates(neg(num(1))), is(emptyList()));
+        assertThat(rules.candidates(neg(neg(num(1)))), is(singletonList(doubleNeg)));
+        assertThat(rules.candidates(add(num(1), num(2))), is(singletonList(addSame)));
+        assertThat(rules.candidates(add(num(1), num(0))), is(asList(addZero, addSame)));
+        assertThat(rules.candidates(mul(num(1), num(1))), is(singletonList(mulOne)));
+    }
+
+    @Test
+    public void rulesAreLabelledByCapturesAndShapes() {
+        assertThat(addSame.getLabel(), is("whole@Add[_, _]"));
+        assertThat(addZero.getLabel(), is("whole@Add[_, =0]"));
+        assertThat(new Rule<>("label", any(), (m, rewrites) -> { }).getLabel(), is("label"));
+        assertThat(new Rule<>(ADD.matcher(x, x).instrumented("addSame"), (m, rewrites) -> { }).getLabel(), is("addSame"));
+    }
+
+    @Test
+    public void rulesWithoutShapeAreAlwaysCandidates() {
+        Rule<Expr> opaque = new Rule<>(Matcher.from(Match::constant), (m, rewrites) -> { });
+        Rule<Expr> anything = new Rule<>(any(), (m, rewrites) -> { });
+        RuleSet<Expr> rules = new RuleSet<>(asList(opaque, doubleNeg, anything));
+
+        assertThat(rules.candidates(num(1)), is(asList(opaque, anything)));
+        assertThat(rules.candidates(neg(neg(num(1)))), is(asList(opaque, doubleNeg, anything)));
+    }
+
+    @Test
+    public void subclassesAreIndexedByTheirSuperclass() {
+        Rule<Expr> binary = new Rule<>(isInstance(Binary.class), (m, rewrites) -> { });
+        RuleSet<Expr> rules = new RuleSet<>(asList(addZero, binary));
+
+        assertThat(rules.candidates(num(1)), is(emptyList()));
+        assertThat(rules.candidates(mul(num(1), num(0))), is(singletonList(binary)));
+        assertThat(rules.candidates(add(num(1), num(0))), is(asList(addZero, binary)));
+    }
+
+    @Test
+    public void equalConstantsOfDifferentClassesAreIndexedSeparately() {
+        Rule<Object> isOneTwo = new Rule<>(isEqual(asList(1, 2)), (m, rewrites) -> { });
+        Rule<Object> isLinked = new Rule<>(isInstance(LinkedList.class), (m, rewrites) -> { });
+        RuleSet<Object> rules = new RuleSet<>(asList(isOneTwo, isLinked));
+
+        assertThat(rules.candidates(new LinkedList<>(asList(1, 2))), is(asList(isOneTwo, isLinked)));
+        assertThat(rules.candidates(new ArrayList<>(asList(1, 2))), is(singletonList(isOneTwo)));
+        assertThat(rules.candidates(new LinkedList<>(asList(1, 2))), is(asList(isOneTwo, isLinked)));
+        assertThat(rules.candidates(new ArrayList<>(asList(2, 1))), is(emptyList()));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        RuleSet<Expr> rules = new RuleSet<>(asList(addZero, addSame));
+
+        assertThat(rules.rewrite(add(num(0), num(0))), is(Optional.of(num(0))));
+        assertThat(rules.rewrite(add(num(3), num(3))), is(Optional.of(mul(num(2), num(3)))));
+        assertThat(rules.rewrite(add(num(3), num(4))), is(Optional.empty()));
+    }
+
+    @Test
+    public void rewriteAllIsEquivalentToOrChain() {
+        RuleSet<Expr> rules = new RuleSet<>(asList(addZero, mulOne, doubleNeg, addSame));
+        Matcher<Expr> chain = addZero.getMatcher().or(mulOne.getMatcher()).or(doubleNeg.getMatcher()).or(addSame.getMatcher());
+        Expr value = neg(neg(mul(add(add(num(5), num(0)), num(0)), num(1))));
+
+        assertThat(rules.rewriteAll(value), is(num(5)));
+        assertThat(chain.rewriteAll(value, (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x))), is(num(5)));
+    }
+
+    @NotNull
+    private Rule<Expr> replaceWithX(@NotNull Matcher<Expr> matcher) {
+        return new Rule<>(whole.save(matcher), (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+    }
+}
@@ -0,0 +1,85 @@
+package fi.evident.carpenter.matchables;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Expr;
+import fi.evident.carpenter.Expr.Binary;
+import fi.evident.carpenter.Matcher;
+import org.junit.Test;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.any;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MatchablesTest {
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> y = new Capture<>("y");
+
+    @Test
+    public void rebuildWithoutReplacementsReturnsOriginal() {
+        Expr value = add(mul(num(1), num(2)), neg(num(3)));
+        Matcher<Expr> matcher = ADD.matcher(MUL.matcher(x, any()), NEG.matcher(y));
+
+        assertThat(matcher.rewrite(value, (m, rewrites) -> { }).get(), is(sameInstance(value)));
+    }
+
+    @Test
+    public void rebuildDeepMatches() {
+        Matcher<Expr> matcher = x;
+        Expr value = num(1);
+        Expr expected = num(2);
+        for (int i = 0; i < 1000; i++) {
+            matcher = NEG.matcher(matcher);
+            value = neg(value);
+            expected = neg(expected);
+        }
+
+        Expr result = matcher.rewrite(value, (m, rewrites) -> rewrites.replaceValue(x, num(2))).get();
+
+        assertThat(result, is(expected));
+    }
+
+    @Test
+    public void rebuildOnlyReconstructsPathToReplacements() {
+        Expr untouched = mul(num(1), num(2));
+        Expr value = add(untouched, neg(num(3)));
+        Matcher<Expr> matcher = ADD.matcher(MUL.matcher(x, any()), NEG.matcher(y));
+
+        Expr result = matcher.rewrite(value, (m, rewrites) -> rewrites.replaceValue(y, num(4))).get();
+
+        assertThat(result, is(add(untouched, neg(num(4)))));
+        assertThat(result, is(not(sameInstance(value))));
+        assertThat(((Binary) result).getLeft(), is(sameInstance(untouched)));
+    }
+
+    @Test
+    public void conflictingBindingFailsMatch() {
+        Matcher<Expr> matcher = ADD.matcher(x, x);
+
+        assertThat(matcher.apply(add(num(1), num(1))).isSuccess(), is(true));
+        assertThat(matcher.apply(add(num(1), num(2))).isSuccess(), is(false));
+    }
+
+    @Test
+    public void backtrackingTriesAlternativesOfChildren() {
+        Expr value = add(neg(num(1)), neg(num(1)));
+        Matcher<Expr> matcher = ADD.matcher(NEG.matcher(x).or(x), x);
+
+        assertThat(matcher.apply(value).isSuccess(), is(false));
+        assertThat(matcher.matchAll(value).count(), is(1L));
+        assertThat(matcher.backtracking().rewrite(value, (m, rewrites) -> rewrites.replaceValue(x, num(0))).get(), is(add(num(0), num(0))));
+    }
+
+    @Test
+    public void nodeTypeProvidesAccessToChildren() {
+        NodeType<Expr> nodeType = MUL.getNodeType();
+        Expr value = mul(num(1), num(2));
+
+        assertThat(nodeType.getArity(), is(2));
+        assertThat(nodeType.getChild(value, 1), is(num(2)));
+        assertThat(nodeType.construct(new Object[] { num(3), num(4) }), is(mul(num(3), num(4))));
+    }
+}
@@ -0,0 +1,191 @@
+package fi.evident.carpenter.matchables;
+
+import fi.evident.carpenter.DoubleMatcher;
+import fi.evident.carpenter.IntCapture;
+import fi.evident.carpenter.IntMatcher;
+import fi.evident.carpenter.LongCapture;
+import fi.evident.carpenter.LongMatcher;
+import fi.evident.carpenter.Matcher;
+import fi.evident.carpenter.Rule;
+import fi.evident.carpenter.RuleSet;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Objects;
+
+import static fi.evident.carpenter.Matchers.any;
+import static fi.evident.carpenter.matchables.Matchables.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PrimitiveMatchablesTest {
+
+    private static final IntMatchable<Ir> REG = matchableInt(Reg.class, Reg::new, Reg::getNumber);
+    private static final LongMatchable<Ir> IMM = matchableLong(Imm.class, Imm::new, Imm::getValue);
+    private static final DoubleMatchable<Ir> SCALE = matchableDouble(Scale.class, Scale::new, Scale::getFactor);
+    private static final ObjIntMatchable<Ir, Ir> LOAD = matchableInt(Load.class, Load::new, Load::getBase, Load::getOffset);
+
+    private final IntCapture r = new IntCapture("r");
+    private final IntCapture offset = new IntCapture("offset");
+
+    @Test
+    public void equalityAndRangeMatchers() {
+        Matcher<Ir> zero = REG.matcher(IntMatcher.isEqual(0));
+        Matcher<Ir> lowRegister = REG.matcher(IntMatcher.between(0, 7));
+
+        assertThat(zero.apply(new Reg(0)).isSuccess(), is(true));
+        assertThat(zero.apply(new Reg(1)).isSuccess(), is(false));
+        assertThat(zero.apply(new Imm(0)).isSuccess(), is(false));
+        assertThat(lowRegister.apply(new Reg(7)).isSuccess(), is(true));
+        assertThat(lowRegister.apply(new Reg(8)).isSuccess(), is(false));
+        assertThat(IMM.matcher(LongMatcher.isEqual(1L << 40)).apply(new Imm(1L << 40)).isSuccess(), is(true));
+    }
+
+    @Test
+    public void doubleEqualityFollowsDoubleEquals() {
+        assertThat(DoubleMatcher.isEqual(Double.NaN).matches(Double.NaN), is(true));
+        assertThat(DoubleMatcher.isEqual(0.0).matches(-0.0), is(false));
+        assertThat(SCALE.matcher(DoubleMatcher.isEqual(0.5)).apply(new Scale(0.5)).isSuccess(), is(true));
+    }
+
+    @Test
+    public void capturedValuesCanBeReplaced() {
+        Matcher<Ir> matcher = LOAD.matcher(REG.matcher(r), offset);
+
+        Ir result = matcher.rewrite(new Load(new Reg(3), 8), (m, rewrites) -> {
+            rewrites.replaceInt(r, m.getInt(r) + 1);
+            rewrites.replaceInt(offset, m.getInt(offset) * 2);
+        }).get();
+
+        assertThat(result, is(new Load(new Reg(4), 16)));
+    }
+
+    @Test
+    public void savedCapturesMatchInnerMatcher() {
+        LongCapture value = new LongCapture("value");
+        Matcher<Ir> matcher = IMM.matcher(value.save(LongMatcher.between(0, 255)));
+
+        assertThat(matcher.apply(new Imm(256)).isSuccess(), is(false));
+        assertThat(matcher.apply(new Imm(255)).getLong(value), is(255L));
+    }
+
+    @Test
+    public void sameCaptureRequiresEqualValues() {
+        Matcher<Ir> matcher = LOAD.matcher(REG.matcher(r), r);
+
+        assertThat(matcher.apply(new Load(new Reg(4), 4)).isSuccess(), is(true));
+        assertThat(matcher.apply(new Load(new Reg(4), 8)).isSuccess(), is(false));
+    }
+
+    @Test
+    public void rebuildWithoutReplacementsReturnsOriginal() {
+        Ir value = new Load(new Reg(1), 8);
+        Matcher<Ir> matcher = LOAD.matcher(any(), IntMatcher.isEqual(8));
+
+        assertThat(matcher.rewrite(value, (m, rewrites) -> { }).get(), is(sameInstance(value)));
+    }
+
+    @Test
+    public void primitiveConstantsAreIndexed() {
+        Rule<Ir> loadZero = new Rule<>(LOAD.matcher(any(), IntMatcher.isEqual(0)), (m, rewrites) -> { });
+        RuleSet<Ir> rules = new RuleSet<>(asList(loadZero));
+
+        assertThat(rules.candidates(new Load(new Reg(1), 4)), is(emptyList()));
+        assertThat(rules.candidates(new Load(new Reg(1), 0)), is(asList(loadZero)));
+    }
+
+    @Test
+    public void nodeTypeBoxesPrimitiveChildren() {
+        NodeType<Ir> nodeType = LOAD.getNodeType();
+
+        assertThat(nodeType.getChild(new Load(new Reg(1), 8), 1), is((Object) 8));
+        assertThat(nodeType.construct(new Object[] { new Reg(2), 4 }), is(new Load(new Reg(2), 4)));
+    }
+
+    private abstract static class Ir {
+    }
+
+    private static final class Reg extends Ir {
+
+        private final int number;
+
+        Reg(int number) {
+            this.number = number;
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Reg && number == ((Reg) o).number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+    }
+
+    private static final class Imm extends Ir {
+
+        private final long value;
+
+        Imm(long value) {
+            this.value = value;
+        }
+
+        long getValue() {
+            return value;
+        }
+    }
+
+    private static final class Scale extends Ir {
+
+        private final double factor;
+
+        Scale(double factor) {
+            this.factor = factor;
+        }
+
+        double getFactor() {
+            return factor;
+        }
+    }
+
+    private static final class Load extends Ir {
+
+        @NotNull
+        private final Ir base;
+
+        private final int offset;
+
+        Load(@NotNull Ir base, int offset) {
+            this.base = base;
+            this.offset = offset;
+        }
+
+        @NotNull
+        Ir getBase() {
+            return base;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Load && base.equals(((Load) o).base) && offset == ((Load) o).offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(base, offset);
+        }
+    }
+}
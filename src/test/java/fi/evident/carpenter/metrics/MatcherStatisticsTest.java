@@ -0,0 +1,101 @@
+package fi.evident.carpenter.metrics;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Expr;
+import fi.evident.carpenter.Instrumentation;
+import fi.evident.carpenter.Matcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static fi.evident.carpenter.Expr.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MatcherStatisticsTest {
+
+    private final MatcherStatistics statistics = new MatcherStatistics();
+
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+    private final Matcher<Expr> addSame = whole.save(ADD.matcher(x, x)).instrumented("addSame");
+
+    @Before
+    public void install() {
+        Instrumentation.install(statistics);
+    }
+
+    @After
+    public void uninstall() {
+        Instrumentation.uninstall();
+    }
+
+    @Test
+    public void countsAttemptsAndConflicts() {
+        addSame.apply(add(num(1), num(1)));
+        addSame.apply(add(num(1), num(2)));
+        addSame.apply(num(1));
+
+        MatcherStatisticsMXBean stats = statistics.get("addSame");
+        assertThat(stats.getAttempts(), is(3L));
+        assertThat(stats.getSuccesses(), is(1L));
+        assertThat(stats.getFailures(), is(2L));
+        assertThat(stats.getConstraintConflicts(), is(1L));
+
+        // The number fails immediately, the conflicting addition only after matching both children
+        long[] failuresByDepth = stats.getFailuresByDepth();
+        assertThat(failuresByDepth[0], is(1L));
+        assertThat(failuresByDepth[2], is(1L));
+    }
+
+    @Test
+    public void countsRewriteSteps() {
+        Expr result = addSame.rewriteAll(add(add(num(1), num(1)), add(num(1), num(1))),
+                (m, rewrites) -> rewrites.replaceValue(whole, mul(num(2), m.getValue(x))));
+
+        assertThat(result, is(mul(num(2), add(num(1), num(1)))));
+
+        MatcherStatisticsMXBean stats = statistics.get("addSame");
+        assertThat(stats.getRewrites(), is(1L));
+        assertThat(stats.getRewriteSteps(), is(1L));
+
+        // The step matched and the rewritten value didn't
+        assertThat(stats.getAttempts(), is(2L));
+        assertThat(stats.getSuccesses(), is(1L));
+    }
+
+    @Test
+    public void nothingIsReportedWhenUninstalled() {
+        Instrumentation.uninstall();
+
+        addSame.apply(add(num(1), num(1)));
+
+        assertThat(statistics.get("addSame"), is(nullValue()));
+    }
+
+    @Test
+    public void exportsStatisticsOverJmx() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        statistics.registerMBeans(server);
+
+        addSame.apply(add(num(1), num(1)));
+
+        ObjectName name = new ObjectName(MatcherStatistics.DOMAIN + ":type=Matcher,name=" + ObjectName.quote("addSame"));
+        assertThat(server.getAttribute(name, "Attempts"), is(1L));
+        assertThat(server.getAttribute(name, "Successes"), is(1L));
+    }
+
+    @Test
+    public void depthBuckets() {
+        assertThat(MatcherStatistics.depthBucket(0), is(0));
+        assertThat(MatcherStatistics.depthBucket(1), is(1));
+        assertThat(MatcherStatistics.depthBucket(3), is(2));
+        assertThat(MatcherStatistics.depthBucket(4), is(3));
+        assertThat(MatcherStatistics.depthBucket(Integer.MAX_VALUE), is(MatcherStatistics.DEPTH_BUCKETS - 1));
+    }
+}
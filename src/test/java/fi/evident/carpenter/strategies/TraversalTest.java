@@ -0,0 +1,183 @@
+package fi.evident.carpenter.strategies;
+
+import fi.evident.carpenter.Capture;
+import fi.evident.carpenter.Expr;
+import fi.evident.carpenter.Expr.Neg;
+import fi.evident.carpenter.Rule;
+import fi.evident.carpenter.RuleSet;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static fi.evident.carpenter.Expr.*;
+import static fi.evident.carpenter.Matchers.isEqual;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TraversalTest {
+
+    private final Traversal<Expr> traversal = Traversal.of(Expr.class, NUM, NEG, ADD, MUL);
+
+    private final Capture<Integer> a = new Capture<>("a");
+    private final Capture<Integer> b = new Capture<>("b");
+    private final Capture<Expr> x = new Capture<>("x");
+    private final Capture<Expr> whole = new Capture<>("whole");
+
+    private final Rule<Expr> fold = new Rule<>(whole.save(ADD.matcher(NUM.matcher(a), NUM.matcher(b))),
+            (m, rewrites) -> rewrites.replaceValue(whole, num(m.getValue(a) + m.getValue(b))));
+
+    private final Rule<Expr> doubleNeg = new Rule<>(whole.save(NEG.matcher(NEG.matcher(x))),
+            (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+
+    private final Rule<Expr> mulOne = new Rule<>(whole.save(MUL.matcher(x, isEqual(num(1)))),
+            (m, rewrites) -> rewrites.replaceValue(whole, m.getValue(x)));
+
+    private final Strategy<Expr> rules = new RuleSet<>(asList(fold, doubleNeg, mulOne))::rewrite;
+
+    @Test
+    public void topdownVisitsEveryNodeOnce() {
+        assertThat(traversal.topdown(add(add(num(1), num(2)), num(3)), fold::rewrite), is(add(num(3), num(3))));
+    }
+
+    @Test
+    public void bottomupRewritesChildrenBeforeParents() {
+        assertThat(traversal.bottomup(add(add(num(1), num(2)), num(3)), fold::rewrite), is(num(6)));
+    }
+
+    @Test
+    public void innermostProducesNormalForm() {
+        Expr value = add(add(num(1), num(2)), neg(neg(add(num(3), mul(num(4), num(1))))));
+
+        assertThat(traversal.innermost(value, rules), is(num(10)));
+    }
+
+    @Test
+    public void outermostProducesNormalForm() {
+        Expr value = neg(neg(add(mul(num(1), num(1)), num(2))));
+
+        assertThat(traversal.outermost(value, rules), is(num(3)));
+    }
+
+    @Test
+    public void untouchedSubtreesAreShared() {
+        Expr untouched = neg(add(num(1), neg(num(2))));
+        Expr value = mul(untouched, neg(neg(num(3))));
+
+        Expr result = traversal.innermost(value, rules);
+
+        assertThat(result, is(mul(untouched, num(3))));
+        assertThat(((Binary) result).getLeft(), is(sameInstance(untouched)));
+        assertThat(traversal.outermost(untouched, rules), is(sameInstance(untouched)));
+    }
+
+    @Test
+    public void sharedSubtreesAreRewrittenOnce() {
+        AtomicInteger count = new AtomicInteger();
+        Strategy<Expr> counting = value -> {
+            count.incrementAndGet();
+            return fold.rewrite(value);
+        };
+
+        Expr shared = add(num(1), num(2));
+        Expr value = mul(shared, neg(shared));
+
+        Expr result = traversal.withSharing().bottomup(value, counting);
+
+        assertThat(result, is(mul(num(3), neg(num(3)))));
+        assertThat(((Binary) result).getLeft(), is(sameInstance(((Neg) ((Binary) result).getRight()).getExpr())));
+        assertThat(count.get(), is(5));
+
+        count.set(0);
+        traversal.bottomup(value, counting);
+        assertThat(count.get(), is(8));
+    }
+
+    @Test
+    public void structurallyEqualSubtreesAreSharedInResult() {
+        Expr value = mul(neg(add(num(1), num(2))), neg(add(num(1), num(2))));
+
+        Expr result = traversal.withSharing(Function.identity()).innermost(value, rules);
+
+        assertThat(result, is(mul(neg(num(3)), neg(num(3)))));
+        assertThat(((Binary) result).getLeft(), is(sameInstance(((Binary) result).getRight())));
+    }
+
+    @Test
+    public void parallelTraversalsProduceSameResults() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Traversal<Expr> parallel = traversal.withParallelism(pool, 16);
+            Expr value = randomTree(new Random(42), 12);
+
+            assertThat(parallel.topdown(value, rules), is(traversal.topdown(value, rules)));
+            assertThat(parallel.bottomup(value, rules), is(traversal.bottomup(value, rules)));
+            assertThat(parallel.innermost(value, rules), is(traversal.innermost(value, rules)));
+            assertThat(parallel.outermost(value, rules), is(traversal.outermost(value, rules)));
+            assertThat(parallel.withSharing().bottomup(value, rules), is(traversal.bottomup(value, rules)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rewriteAllTriesRebuiltAncestorsAgain() {
+        Expr value = add(num(1), add(add(num(2), num(3)), num(4)));
+
+        assertThat(traversal.rewriteAll(value, fold.getMatcher(), fold.getRewriteGenerator()), is(num(10)));
+    }
+
+    @Test
+    public void rewriteAllIsIdenticalToRewritingAnywhereFromRoot() {
+        for (Rule<Expr> rule : asList(fold, doubleNeg, mulOne)) {
+            for (int seed = 0; seed < 20; seed++) {
+                Expr value = randomTree(new Random(seed), 8);
+                AtomicInteger worklistSteps = new AtomicInteger();
+                AtomicInteger rootSteps = new AtomicInteger();
+
+                Expr worklist = traversal.rewriteAll(value, rule.getMatcher(), (m, rewrites) -> {
+                    worklistSteps.incrementAndGet();
+                    rule.getRewriteGenerator().accept(m, rewrites);
+                });
+                Expr fromRoot = traversal.anywhere(rule.getMatcher()).rewriteAll(value, (m, rewrites) -> {
+                    rootSteps.incrementAndGet();
+                    rule.getRewriteGenerator().accept(m, rewrites);
+                });
+
+                assertThat(worklist, is(fromRoot));
+                assertThat(worklistSteps.get(), is(rootSteps.get()));
+            }
+        }
+    }
+
+    @Test
+    public void anywhereRebuildsOnlyThePathToTheMatch() {
+        Expr untouched = add(num(1), num(2));
+        Expr value = mul(untouched, neg(neg(num(3))));
+
+        Expr result = traversal.anywhere(doubleNeg.getMatcher()).rewrite(value, doubleNeg.getRewriteGenerator()).orElse(null);
+
+        assertThat(result, is(mul(add(num(1), num(2)), num(3))));
+        assertThat(((Binary) result).getLeft(), is(sameInstance(untouched)));
+    }
+
+    @NotNull
+    private static Expr randomTree(@NotNull Random random, int depth) {
+        if (depth == 0)
+            return num(random.nextInt(3));
+
+        switch (random.nextInt(4)) {
+            case 0:
+                return neg(randomTree(random, depth - 1));
+            case 1:
+                return mul(randomTree(random, depth - 1), random.nextBoolean() ? num(1) : randomTree(random, depth - 1));
+            default:
+                return add(randomTree(random, depth - 1), randomTree(random, depth - 1));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package fi.evident.carpenter.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PersistentVectorTest {
+
+    @Test
+    public void appendingBehavesLikeArrayList() {
+        List<Integer> expected = new ArrayList<>();
+        PersistentVector<Integer> vector = PersistentVector.empty();
+
+        // Cross the boundaries of the tail and of two levels of the trie
+        for (int i = 0; i < 40000; i++) {
+            expected.add(i);
+            vector = vector.plus(i);
+        }
+
+        assertThat(vector.size(), is(expected.size()));
+        assertThat(vector, is(expected));
+        assertThat(PersistentVector.copyOf(expected), is(expected));
+        assertThat(PersistentVector.<Integer>empty().plusAll(expected.subList(0, 1000)).plusAll(expected.subList(1000, 40000)), is(expected));
+    }
+
+    @Test
+    public void replacingKeepsOriginalIntact() {
+        Random random = new Random(42);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            expected.add(i);
+
+        PersistentVector<Integer> original = PersistentVector.copyOf(expected);
+        PersistentVector<Integer> vector = original;
+
+        for (int n = 0; n < 2000; n++) {
+            int index = random.nextInt(expected.size());
+            int value = random.nextInt();
+            expected.set(index, value);
+            vector = vector.with(index, value);
+        }
+
+        assertThat(vector, is(expected));
+        assertThat(original.get(1234), is(1234));
+        assertThat(original.get(4999), is(4999));
+    }
+
+    @Test
+    public void replacingWithSameValueReturnsSameVector() {
+        PersistentVector<String> vector = PersistentVector.of("foo", "bar", "baz");
+
+        assertThat(vector.with(1, vector.get(1)), is(sameInstance(vector)));
+        assertThat(vector.withAll(1, asList("quux", "xyzzy")), is(asList("foo", "quux", "xyzzy")));
+    }
+
+    @Test
+    public void iteratorVisitsElementsInOrder() {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1100; i++)
+            expected.add(i);
+
+        List<Integer> visited = new ArrayList<>();
+        for (Iterator<Integer> it = PersistentVector.copyOf(expected).iterator(); it.hasNext(); )
+            visited.add(it.next());
+
+        assertThat(visited, is(expected));
+    }
+
+    @Test
+    public void collectionUtilsPreserveVectors() {
+        PersistentVector<String> vector = PersistentVector.of("foo", "bar");
+
+        assertThat(CollectionUtils.copyWithReplacedValue(vector, 0, "baz"), is(instanceOf(PersistentVector.class)));
+        assertThat(CollectionUtils.copyWithReplacedSubList(vector, 0, asList("baz", "quux")), is(asList("baz", "quux")));
+        assertThat(CollectionUtils.concat(vector, asList("baz")), is(instanceOf(PersistentVector.class)));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutOfBounds() {
+        PersistentVector.of("foo").get(1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void vectorsAreImmutable() {
+        PersistentVector.of("foo").set(0, "bar");
+    }
+}